@@ -0,0 +1,205 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import jenkins.model.Jenkins;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Measures the provisioning decision path that {@code NodeProvisioner} runs
+ * constantly, against a real Jenkins holding synthetic nodes and templates.
+ *
+ * <p>
+ * Half of the nodes belong to the benchmarked cloud, spread over its
+ * templates, a quarter to another cloud and the rest are plain agents. The
+ * benchmarked label matches the last template only, so that every template is
+ * looked at.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProvisioningDecisionBenchmark {
+
+    private static final String CLOUD_NAME = "benchmark";
+
+    @Param({"10", "1000", "10000"})
+    public int nodes;
+
+    @Param({"1", "10", "100"})
+    public int templates;
+
+    private ScalewayCloud cloud;
+
+    private SlaveTemplate lastTemplate;
+
+    private Label label;
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private Thread jenkinsThread;
+
+    private volatile Throwable failure;
+
+    /**
+     * Runs Jenkins through {@link JenkinsRule} on its own thread for the whole
+     * trial, as the rule only keeps Jenkins up while its statement runs.
+     */
+    @Setup(Level.Trial)
+    public void startJenkins() throws Throwable {
+        // the decision path logs every cap check, which would be measured otherwise
+        Logger.getLogger(ScalewayCloud.class.getPackage().getName()).setLevel(java.util.logging.Level.WARNING);
+        Scaleway.setClientFactory(new FakeScalewayApi());
+
+        final JenkinsRule rule = new JenkinsRule();
+        rule.timeout = 0;
+        jenkinsThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rule.apply(new Statement() {
+                        @Override
+                        public void evaluate() throws Throwable {
+                            populate(rule.getInstance());
+                            started.countDown();
+                            stopped.await();
+                        }
+                    }, Description.createTestDescription(ProvisioningDecisionBenchmark.class, "benchmark")).evaluate();
+                } catch (Throwable t) {
+                    failure = t;
+                    started.countDown();
+                }
+            }
+        }, "benchmark-jenkins");
+        jenkinsThread.start();
+        started.await();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopJenkins() throws InterruptedException {
+        stopped.countDown();
+        jenkinsThread.join();
+        Scaleway.setClientFactory(null);
+    }
+
+    private void populate(Jenkins jenkins) throws Exception {
+        List<SlaveTemplate> templateList = new ArrayList<SlaveTemplate>();
+        for (int i = 0; i < templates; i++) {
+            templateList.add(new SlaveTemplate("template." + i, "image", "C2S", "root", "/jenkins/", 22,
+                    "10", "1", "benchmark label" + i, String.valueOf(Integer.MAX_VALUE), ""));
+        }
+        lastTemplate = templateList.get(templateList.size() - 1);
+        // caps are never reached but still counted, as in a busy cloud
+        cloud = new ScalewayCloud(CLOUD_NAME, ScalewayComputeRegion.values()[0].toString(),
+                "token", "organization", "", String.valueOf(Integer.MAX_VALUE), "5", templateList);
+        jenkins.clouds.add(cloud);
+
+        List<Node> nodeList = new ArrayList<Node>();
+        for (int i = 0; i < nodes; i++) {
+            String templateName = "template." + (i % templates);
+            switch (i % 4) {
+                case 0:
+                case 1:
+                    nodeList.add(newSlave(CLOUD_NAME, templateName));
+                    break;
+                case 2:
+                    nodeList.add(newSlave("other.cloud", templateName));
+                    break;
+                default:
+                    nodeList.add(new DumbSlave("static-agent-" + i, "", "/tmp", "1", Node.Mode.NORMAL, "", new JNLPLauncher(),
+                            hudson.slaves.RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList()));
+            }
+        }
+        jenkins.setNodes(nodeList);
+
+        label = Label.get("label" + (templates - 1));
+    }
+
+    /**
+     * A slave which is never launched, the benchmark only looks at it.
+     */
+    private static Slave newSlave(String cloudName, String templateName) throws Exception {
+        String name = ScalewayServerName.generateServerName(cloudName, templateName);
+        return new Slave(cloudName, templateName, name, "", "server-" + name, "", "root", "/tmp", 22, 1, 10,
+                Node.Mode.NORMAL, "", new ScalewayComputerLauncher(), hudson.slaves.RetentionStrategy.NOOP,
+                Collections.<NodeProperty<?>>emptyList(), "", "", BillingPolicy.DEFAULT, false,
+                System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public boolean canProvision() {
+        return cloud.canProvision(label);
+    }
+
+    @Benchmark
+    public List<SlaveTemplate> getTemplates() {
+        return cloud.getTemplates(label);
+    }
+
+    @Benchmark
+    public boolean isCloudInstanceCapReachedLocal() {
+        return cloud.isInstanceCapReachedLocal();
+    }
+
+    @Benchmark
+    public boolean isTemplateInstanceCapReachedLocal() {
+        return lastTemplate.isInstanceCapReachedLocal(CLOUD_NAME);
+    }
+}
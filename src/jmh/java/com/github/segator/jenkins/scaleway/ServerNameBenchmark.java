@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures generating and parsing the names that identify the servers and
+ * nodes of a cloud and template.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerNameBenchmark {
+
+    private String matchingName;
+
+    private String otherCloudName;
+
+    private String foreignName;
+
+    @Setup
+    public void setUp() {
+        matchingName = ScalewayServerName.generateServerName("benchmark", "template.42");
+        otherCloudName = ScalewayServerName.generateServerName("other.cloud", "template.42");
+        foreignName = "web-frontend-production-7";
+    }
+
+    @Benchmark
+    public String generateServerName() {
+        return ScalewayServerName.generateServerName("benchmark", "template.42");
+    }
+
+    @Benchmark
+    public boolean isServerInstanceOfCloud() {
+        return ScalewayServerName.isServerInstanceOfCloud(matchingName, "benchmark");
+    }
+
+    @Benchmark
+    public boolean isServerInstanceOfCloudOtherCloud() {
+        return ScalewayServerName.isServerInstanceOfCloud(otherCloudName, "benchmark");
+    }
+
+    @Benchmark
+    public boolean isServerInstanceOfSlave() {
+        return ScalewayServerName.isServerInstanceOfSlave(matchingName, "benchmark", "template.42");
+    }
+
+    @Benchmark
+    public boolean isServerInstanceOfSlaveForeignServer() {
+        return ScalewayServerName.isServerInstanceOfSlave(foreignName, "benchmark", "template.42");
+    }
+}
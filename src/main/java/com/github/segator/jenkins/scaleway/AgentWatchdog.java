@@ -0,0 +1,299 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.ScalewayState;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.Cloud;
+import hudson.slaves.OfflineCause;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link AgentWatchdog} reclaims slaves whose server is dead or whose
+ * agent stopped answering, instead of leaving them to count against the
+ * instance caps until their retention kicks in.
+ *
+ * <p>
+ * Every {@link #PERIOD_MILLIS} the servers of each cloud are listed once and
+ * every online agent is sent a heartbeat. A check of a slave fails when:
+ * <ul>
+ * <li>its server is gone, which the API must confirm as listings may miss
+ * servers, see {@link SlaveAdopter#isServerGone},</li>
+ * <li>its server was powered off without the slave being suspended,</li>
+ * <li>its agent doesn't answer the heartbeat within
+ * {@link #HEARTBEAT_TIMEOUT_MILLIS}.</li>
+ * </ul>
+ * After {@link #FAILURES} failed checks in a row the slave is removed, which
+ * terminates its server. A busy slave whose agent doesn't answer is only
+ * disconnected, as its build may still be running: it is removed once it
+ * stayed disconnected, and not connecting, for {@link #OFFLINE_GRACE_MILLIS},
+ * like any other slave. Suspended slaves, slaves being resumed and slaves still being provisioned
+ * are left alone. Once slaves are removed, the labels with queued builds are
+ * reviewed right away so that replacements get provisioned.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+public final class AgentWatchdog {
+
+    private static final Logger LOGGER = Logger.getLogger(AgentWatchdog.class.getName());
+
+    static final long PERIOD_MILLIS = Long.getLong(AgentWatchdog.class.getName() + ".periodMillis",
+            TimeUnit.MINUTES.toMillis(1));
+
+    static final long HEARTBEAT_TIMEOUT_MILLIS = Long.getLong(AgentWatchdog.class.getName() + ".heartbeatTimeoutMillis",
+            TimeUnit.SECONDS.toMillis(30));
+
+    static final long OFFLINE_GRACE_MILLIS = Long.getLong(AgentWatchdog.class.getName() + ".offlineGraceMillis",
+            TimeUnit.MINUTES.toMillis(5));
+
+    static final int FAILURES = Integer.getInteger(AgentWatchdog.class.getName() + ".failures", 3);
+
+    /**
+     * How many checks of each computer failed in a row.
+     */
+    private static final Map<Computer, Integer> failures = new ConcurrentHashMap<Computer, Integer>();
+
+    /**
+     * When each disconnected computer was first seen disconnected.
+     */
+    private static final Map<Computer, Long> offlineSince = new ConcurrentHashMap<Computer, Long>();
+
+    private AgentWatchdog() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Checks the slaves of every cloud once.
+     */
+    static void check() {
+        Jenkins instance = Jenkins.getInstance();
+        if (instance == null) {
+            return;
+        }
+        Map<ScalewayCloud, List<Computer>> byCloud = new LinkedHashMap<ScalewayCloud, List<Computer>>();
+        for (Cloud cloud : instance.clouds) {
+            if (cloud instanceof ScalewayCloud) {
+                byCloud.put((ScalewayCloud) cloud, new ArrayList<Computer>());
+            }
+        }
+        for (hudson.model.Computer c : instance.getComputers()) {
+            if (!(c instanceof Computer)) {
+                continue;
+            }
+            Computer computer = (Computer) c;
+            List<Computer> computers = byCloud.get(computer.getCloud());
+            if (computers != null && isWatched(computer)) {
+                computers.add(computer);
+            }
+        }
+        List<Computer> watched = flatten(byCloud.values());
+        offlineSince.keySet().retainAll(watched);
+        failures.keySet().retainAll(watched);
+
+        List<Slave> removed = new ArrayList<Slave>();
+        for (Map.Entry<ScalewayCloud, List<Computer>> entry : byCloud.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                removed.addAll(check(entry.getKey(), entry.getValue()));
+            }
+        }
+        // the node provisioners only review the queue periodically, the
+        // builds still waiting for the removed slaves are reviewed right away
+        for (Slave slave : removed) {
+            ScalewayCloud.suggestProvisioningFor(slave);
+        }
+    }
+
+    private static boolean isWatched(Computer computer) {
+        Slave slave = computer.getNode();
+        if (slave == null || slave.isSuspended() || slave.isResuming()) {
+            return false;
+        }
+        for (ProvisioningPipeline pipeline : ProvisioningPipeline.getInFlight()) {
+            if (pipeline.getServerName().equals(slave.getNodeName())) {
+                // the pipeline gives up on its own
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Slave> check(ScalewayCloud cloud, List<Computer> computers) {
+        Map<String, ScalewayState> states = null;
+        try {
+            states = SlaveAdopter.listServerStates(cloud);
+        } catch (ScalewayException e) {
+            LOGGER.log(Level.WARNING, "Failed to list the servers of cloud " + cloud.getName()
+                    + ", only checking the agents", e);
+        }
+
+        // heartbeats are all sent first, so that they share the timeout
+        Map<Computer, Future<Long>> heartbeats = new LinkedHashMap<Computer, Future<Long>>();
+        List<Slave> removed = new ArrayList<Slave>();
+        long now = System.currentTimeMillis();
+        for (Computer computer : computers) {
+            if (states != null && !states.containsKey(computer.getServerId())
+                    && SlaveAdopter.isServerGone(cloud, computer.getServerId())) {
+                fail(computer, "its server is gone", false, removed);
+            } else if (states != null && states.get(computer.getServerId()) == ScalewayState.STOPPED) {
+                fail(computer, "its server was powered off", false, removed);
+            } else if (computer.isConnecting()) {
+                offlineSince.remove(computer);
+                failures.remove(computer);
+            } else {
+                VirtualChannel channel = computer.getChannel();
+                if (channel != null) {
+                    offlineSince.remove(computer);
+                    try {
+                        heartbeats.put(computer, channel.callAsync(new Heartbeat()));
+                    } catch (IOException e) {
+                        fail(computer, "its agent can't be reached: " + e.getMessage(), true, removed);
+                    }
+                } else {
+                    failures.remove(computer);
+                    Long since = offlineSince.get(computer);
+                    if (since == null) {
+                        offlineSince.put(computer, now);
+                    } else if (now - since >= OFFLINE_GRACE_MILLIS) {
+                        reclaim(computer, "it stayed disconnected for " + TimeUnit.MILLISECONDS.toMinutes(now - since)
+                                + " minutes", removed);
+                    }
+                }
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + HEARTBEAT_TIMEOUT_MILLIS;
+        for (Map.Entry<Computer, Future<Long>> entry : heartbeats.entrySet()) {
+            try {
+                entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                failures.remove(entry.getKey());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return removed;
+            } catch (Exception e) {
+                entry.getValue().cancel(true);
+                fail(entry.getKey(), "its agent doesn't answer: " + e, true, removed);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Counts a failed check, acting once {@link #FAILURES} checks failed in
+     * a row.
+     *
+     * @param agentOnly true if only the agent failed, the server may still be
+     * running a build
+     */
+    private static void fail(Computer computer, String reason, boolean agentOnly, List<Slave> removed) {
+        Integer count = failures.get(computer);
+        count = count == null ? 1 : count + 1;
+        if (count < FAILURES) {
+            failures.put(computer, count);
+            LOGGER.log(Level.INFO, "Check {0} of slave {1} failed, {2}",
+                    new Object[]{count, computer.getName(), reason});
+            return;
+        }
+        failures.remove(computer);
+        if (agentOnly && !computer.isIdle()) {
+            LOGGER.warning("Disconnecting busy slave " + computer.getName() + ", " + reason);
+            computer.disconnect(new OfflineCause.ChannelTermination(new IOException(reason)));
+            return;
+        }
+        reclaim(computer, reason, removed);
+    }
+
+    private static void reclaim(Computer computer, String reason, List<Slave> removed) {
+        Slave slave = computer.getNode();
+        Jenkins instance = Jenkins.getInstance();
+        offlineSince.remove(computer);
+        failures.remove(computer);
+        if (slave == null || instance == null) {
+            return;
+        }
+        LOGGER.warning("Removing slave " + slave.getNodeName() + " of server " + computer.getServerId() + ", " + reason);
+        try {
+            instance.removeNode(slave);
+            removed.add(slave);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to remove slave " + slave.getNodeName(), e);
+        }
+    }
+
+    private static List<Computer> flatten(Iterable<List<Computer>> lists) {
+        List<Computer> all = new ArrayList<Computer>();
+        for (List<Computer> list : lists) {
+            all.addAll(list);
+        }
+        return all;
+    }
+
+    /**
+     * Answers from the agent JVM, proving that the channel and the agent are
+     * alive.
+     */
+    private static final class Heartbeat extends MasterToSlaveCallable<Long, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Long call() {
+            return System.currentTimeMillis();
+        }
+    }
+
+    @Extension
+    public static final class Check extends AsyncPeriodicWork {
+
+        public Check() {
+            super("Scaleway agent watchdog");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return PERIOD_MILLIS;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            check();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import hudson.util.TimeUnit2;
+
+/**
+ *
+ * The {@link BillingPolicy} knows how a Scaleway server is billed and decides
+ * when an idle server is worth keeping until the end of the period that has
+ * already been paid for.
+ *
+ * <p>
+ * Idle servers are only released inside the termination window, i.e. during
+ * the last {@code leadMinutes} of a billing period, so that agents which are
+ * already paid for keep serving queued work instead of new servers being
+ * booted.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+public class BillingPolicy {
+
+    /**
+     * How often servers are billed. Every commercial type of the compute API
+     * is billed per started hour, {@link #PER_MINUTE} is for accounts billed
+     * otherwise.
+     */
+    public enum Granularity {
+
+        HOURLY(60),
+        PER_MINUTE(1);
+
+        private final int periodMinutes;
+
+        Granularity(int periodMinutes) {
+            this.periodMinutes = periodMinutes;
+        }
+
+        public int getPeriodMinutes() {
+            return periodMinutes;
+        }
+
+        /**
+         * @param value the name of a granularity
+         * @return the granularity, {@link #HOURLY} for unknown values such as
+         * the former {@code AUTO}
+         */
+        public static Granularity fromString(String value) {
+            for (Granularity granularity : values()) {
+                if (granularity.name().equalsIgnoreCase(value)) {
+                    return granularity;
+                }
+            }
+            return HOURLY;
+        }
+    }
+
+    public static final int DEFAULT_LEAD_MINUTES = 5;
+
+    public static final BillingPolicy DEFAULT = new BillingPolicy(Granularity.HOURLY, DEFAULT_LEAD_MINUTES, 0);
+
+    private final Granularity granularity;
+
+    private final int leadMinutes;
+
+    private final int minimumUptimeMinutes;
+
+    public BillingPolicy(Granularity granularity, int leadMinutes, int minimumUptimeMinutes) {
+        this.granularity = granularity;
+        this.leadMinutes = leadMinutes;
+        this.minimumUptimeMinutes = minimumUptimeMinutes;
+    }
+
+    /**
+     * @param uptimeMillis how long the server has been running
+     * @return how long until the server enters its next termination window, 0
+     * if it already is in one
+     */
+    public long millisUntilTerminationWindow(long uptimeMillis) {
+        long minimumUptimeMillis = TimeUnit2.MINUTES.toMillis(minimumUptimeMinutes);
+        long periodMillis = TimeUnit2.MINUTES.toMillis(granularity.getPeriodMinutes());
+        long leadMillis = TimeUnit2.MINUTES.toMillis(leadMinutes);
+
+        long from = Math.max(uptimeMillis, minimumUptimeMillis);
+        if (leadMillis < periodMillis) {
+            long windowStart = (from / periodMillis) * periodMillis + periodMillis - leadMillis;
+            if (from < windowStart) {
+                from = windowStart;
+            }
+        }
+        return from - uptimeMillis;
+    }
+
+    public Granularity getGranularity() {
+        return granularity;
+    }
+
+    public int getLeadMinutes() {
+        return leadMinutes;
+    }
+
+    public int getMinimumUptimeMinutes() {
+        return minimumUptimeMinutes;
+    }
+}
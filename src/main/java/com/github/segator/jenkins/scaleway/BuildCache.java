@@ -0,0 +1,406 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link BuildCache} gives new servers a warm build cache volume, e.g.
+ * holding {@code ~/.m2} or {@code /var/lib/docker}.
+ *
+ * <p>
+ * Each template with a cache has a master snapshot, named after the cloud and
+ * the template. New servers get a volume cloned from the latest available
+ * master, or an empty one until the first master exists. When the template
+ * writes its cache back, the master is refreshed every
+ * {@link #REFRESH_MILLIS} from the cache volume of a slave that has been up
+ * for at least {@link #MIN_DONOR_AGE_MILLIS}, while it is idle or right before
+ * it is terminated, in which case the server is only terminated once the
+ * snapshot is taken. Older masters are deleted once a newer one is available.
+ *
+ * <p>
+ * The masters are listed from Scaleway, so they survive restarts. The latest
+ * one is remembered for {@link #LOOKUP_TTL_MILLIS} to keep provisioning from
+ * listing snapshots for every server.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+final class BuildCache {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildCache.class.getName());
+
+    static final long REFRESH_MILLIS = TimeUnit.HOURS.toMillis(
+            Integer.getInteger(BuildCache.class.getName() + ".refreshHours", 6));
+
+    static final long MIN_DONOR_AGE_MILLIS = TimeUnit.MINUTES.toMillis(
+            Integer.getInteger(BuildCache.class.getName() + ".minDonorAgeMinutes", 30));
+
+    static final long SNAPSHOT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(
+            Integer.getInteger(BuildCache.class.getName() + ".snapshotTimeoutMinutes", 30));
+
+    private static final long SNAPSHOT_POLL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final long LOOKUP_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String PREFIX = "jenkins-cache-";
+
+    static final String VOLUME_SUFFIX = "-cache";
+
+    /**
+     * A master snapshot of a cache volume.
+     */
+    static final class Snapshot {
+
+        private final String id;
+        private final String state;
+        private final String creationDate;
+
+        Snapshot(String id, String state, String creationDate) {
+            this.id = id;
+            this.state = state;
+            this.creationDate = creationDate;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        boolean isAvailable() {
+            return "available".equals(state);
+        }
+
+        /**
+         * @return when the snapshot was taken, e.g. from
+         * {@code 2017-03-01T10:00:00.000000+00:00}, which the API returns in
+         * UTC
+         */
+        long getCreationMillis() {
+            if (creationDate == null || creationDate.length() < 19) {
+                return 0;
+            }
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                return format.parse(creationDate.substring(0, 19)).getTime();
+            } catch (ParseException e) {
+                return 0;
+            }
+        }
+    }
+
+    private static final class Lookup {
+
+        private final Snapshot latest;
+        private final long time = System.currentTimeMillis();
+
+        Lookup(Snapshot latest) {
+            this.latest = latest;
+        }
+    }
+
+    private static final ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+    private BuildCache() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Forgets the masters looked up so far.
+     */
+    static void invalidateAll() {
+        lookups.clear();
+    }
+
+    /**
+     * @return the name of the master snapshots of the template
+     */
+    static String getSnapshotName(String cloudName, String templateName) {
+        return PREFIX + cloudName + "-" + templateName;
+    }
+
+    /**
+     * @param rest the REST client of the cloud
+     * @param cloudName the cloud of the template
+     * @param templateName the template
+     * @return the latest available master, or null if there is none yet
+     * @throws ScalewayException if the snapshots can't be listed
+     */
+    static Snapshot getMaster(ScalewayRestClient rest, String cloudName, String templateName) throws ScalewayException {
+        String name = getSnapshotName(cloudName, templateName);
+        Lookup lookup = lookups.get(name);
+        if (lookup == null || System.currentTimeMillis() - lookup.time > LOOKUP_TTL_MILLIS) {
+            lookup = new Lookup(getLatest(listSnapshots(rest, name), true));
+            lookups.put(name, lookup);
+        }
+        return lookup.latest;
+    }
+
+    /**
+     * @return the volume definition of the cache of a new server
+     */
+    static JSONObject getVolumeDefinition(ScalewayRestClient rest, String cloudName, String templateName,
+            String serverName, String orgToken, int sizeGb) throws ScalewayException {
+        JSONObject volume = new JSONObject();
+        volume.put("name", serverName + VOLUME_SUFFIX);
+        volume.put("organization", orgToken);
+        volume.put("volume_type", WorkspaceStorage.VOLUME_TYPE);
+        Snapshot master = getMaster(rest, cloudName, templateName);
+        if (master != null) {
+            volume.put("base_snapshot", master.getId());
+        } else {
+            volume.put("size", sizeGb * WorkspaceStorage.BYTES_PER_GB);
+        }
+        return volume;
+    }
+
+    /**
+     * Refreshes the master from the cache of a slave being terminated, if the
+     * template writes back and the master is due. Returns once the snapshot
+     * is available or failed, as the server can't be terminated before.
+     *
+     * @return true if a snapshot was taken
+     */
+    static boolean writeBack(ScalewayCloud cloud, String templateName, String serverId, long startTimeMillis) {
+        SlaveTemplate template = cloud.getTemplate(templateName);
+        if (template == null || !template.isCacheWriteBack()
+                || System.currentTimeMillis() - startTimeMillis < MIN_DONOR_AGE_MILLIS) {
+            return false;
+        }
+        try {
+            List<Snapshot> snapshots = listSnapshots(cloud.getRestClient(), getSnapshotName(cloud.name, templateName));
+            if (!isDue(snapshots)) {
+                return false;
+            }
+            String snapshotId = snapshot(cloud, templateName, serverId);
+            if (snapshotId == null) {
+                return false;
+            }
+            awaitSnapshot(cloud.getRestClient(), snapshotId);
+            return true;
+        } catch (ScalewayException e) {
+            LOGGER.log(Level.WARNING, "Failed to write back the build cache of server " + serverId, e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.WARNING, "Interrupted while writing back the build cache of server " + serverId, e);
+            return true;
+        }
+    }
+
+    /**
+     * Polls the snapshot until it is available, failed or
+     * {@link #SNAPSHOT_TIMEOUT_MILLIS} elapsed. API errors are retried until
+     * then.
+     */
+    private static void awaitSnapshot(ScalewayRestClient rest, String snapshotId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SNAPSHOT_TIMEOUT_MILLIS;
+        while (true) {
+            String state = null;
+            try {
+                state = rest.get("/snapshots/" + snapshotId).getJSONObject("snapshot").optString("state");
+            } catch (ScalewayException e) {
+                if (ScalewayRestClient.NotFoundException.isNotFound(e)) {
+                    LOGGER.log(Level.WARNING, "Build cache snapshot {0} disappeared while being taken", snapshotId);
+                    return;
+                }
+                LOGGER.log(Level.FINE, "Failed to poll build cache snapshot " + snapshotId + ", retrying", e);
+            }
+            if ("available".equals(state)) {
+                return;
+            }
+            if ("error".equals(state)) {
+                LOGGER.log(Level.WARNING, "Build cache snapshot {0} failed", snapshotId);
+                return;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                LOGGER.log(Level.WARNING, "Build cache snapshot {0} still not taken after {1} minutes, giving up waiting",
+                        new Object[]{snapshotId, TimeUnit.MILLISECONDS.toMinutes(SNAPSHOT_TIMEOUT_MILLIS)});
+                return;
+            }
+            Thread.sleep(SNAPSHOT_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Deletes outdated masters, and refreshes the master of the template from
+     * one of its slaves when due.
+     */
+    static void maintain(ScalewayCloud cloud, SlaveTemplate template) throws ScalewayException {
+        ScalewayRestClient rest = cloud.getRestClient();
+        String name = getSnapshotName(cloud.name, template.getName());
+        List<Snapshot> snapshots = listSnapshots(rest, name);
+
+        Snapshot latest = getLatest(snapshots, true);
+        for (Snapshot snapshot : snapshots) {
+            if (latest != null && snapshot.isAvailable() && snapshot.getCreationMillis() < latest.getCreationMillis()) {
+                LOGGER.log(Level.INFO, "Deleting outdated build cache snapshot {0} of {1}", new Object[]{snapshot.getId(), name});
+                rest.delete("/snapshots/" + snapshot.getId());
+            }
+        }
+        lookups.put(name, new Lookup(latest));
+
+        if (!template.isCacheWriteBack() || !isDue(snapshots)) {
+            return;
+        }
+        Jenkins instance = Jenkins.getInstance();
+        if (instance == null) {
+            return;
+        }
+        for (Node node : instance.getNodes()) {
+            if (!(node instanceof Slave) || !((Slave) node).isInstanceOf(cloud.name, template.getName())) {
+                continue;
+            }
+            Slave slave = (Slave) node;
+            hudson.model.Computer computer = slave.toComputer();
+            // snapshotting the cache of a running build would capture it half written
+            if (computer != null && computer.isOnline() && computer.isIdle()
+                    && System.currentTimeMillis() - slave.getStartTimeMillis() >= MIN_DONOR_AGE_MILLIS) {
+                snapshot(cloud, template.getName(), slave.getServerId());
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true unless a master younger than the refresh interval exists or
+     * is being taken
+     */
+    private static boolean isDue(List<Snapshot> snapshots) {
+        Snapshot latest = getLatest(snapshots, false);
+        return latest == null || System.currentTimeMillis() - latest.getCreationMillis() >= REFRESH_MILLIS;
+    }
+
+    /**
+     * @return the id of the snapshot being taken, or null if the server has
+     * no cache volume
+     */
+    private static String snapshot(ScalewayCloud cloud, String templateName, String serverId) throws ScalewayException {
+        ScalewayRestClient rest = cloud.getRestClient();
+        JSONObject server = rest.get("/servers/" + serverId).getJSONObject("server");
+        JSONObject volumes = server.optJSONObject("volumes");
+        if (volumes == null) {
+            return null;
+        }
+        for (Iterator<?> it = volumes.keys(); it.hasNext(); ) {
+            JSONObject volume = volumes.getJSONObject((String) it.next());
+            if (volume.optString("name").endsWith(VOLUME_SUFFIX)) {
+                String name = getSnapshotName(cloud.name, templateName);
+                JSONObject definition = new JSONObject();
+                definition.put("name", name);
+                definition.put("organization", cloud.getOrgToken());
+                definition.put("volume_id", volume.getString("id"));
+                JSONObject snapshot = rest.post("/snapshots", definition).getJSONObject("snapshot");
+                LOGGER.log(Level.INFO, "Refreshing build cache {0} from server {1}", new Object[]{name, serverId});
+                return snapshot.getString("id");
+            }
+        }
+        return null;
+    }
+
+    private static List<Snapshot> listSnapshots(ScalewayRestClient rest, String name) throws ScalewayException {
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+        JSONArray array = rest.get("/snapshots?name=" + Util.rawEncode(name) + "&per_page=100").getJSONArray("snapshots");
+        for (int i = 0; i < array.size(); i++) {
+            JSONObject json = array.getJSONObject(i);
+            // the name filter matches on prefixes
+            if (name.equals(json.optString("name"))) {
+                snapshots.add(new Snapshot(json.getString("id"), json.optString("state"), json.optString("creation_date")));
+            }
+        }
+        return snapshots;
+    }
+
+    private static Snapshot getLatest(List<Snapshot> snapshots, boolean availableOnly) {
+        Snapshot latest = null;
+        for (Snapshot snapshot : snapshots) {
+            if ((!availableOnly || snapshot.isAvailable())
+                    && (latest == null || snapshot.getCreationMillis() > latest.getCreationMillis())) {
+                latest = snapshot;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Maintains the build caches of every template having one.
+     */
+    @Extension
+    public static final class Maintenance extends AsyncPeriodicWork {
+
+        public Maintenance() {
+            super("Scaleway build cache maintenance");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(15);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            Jenkins instance = Jenkins.getInstance();
+            if (instance == null) {
+                return;
+            }
+            for (Cloud cloud : instance.clouds) {
+                if (!(cloud instanceof ScalewayCloud)) {
+                    continue;
+                }
+                for (SlaveTemplate template : ((ScalewayCloud) cloud).getTemplates()) {
+                    if (template.getCacheVolumeSize() <= 0) {
+                        continue;
+                    }
+                    try {
+                        maintain((ScalewayCloud) cloud, template);
+                    } catch (ScalewayException e) {
+                        LOGGER.log(Level.WARNING, "Failed to maintain the build cache of template " + template.getName(), e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link CircuitBreaker} stops provisioning from a template whose servers
+ * keep failing to come up, e.g. because its image is broken or its commercial
+ * type is out of stock in the region.
+ *
+ * <p>
+ * The breaker opens after {@link #THRESHOLD} consecutive failed
+ * provisionings. While open, the template is not offered to Jenkins. Once the
+ * backoff has elapsed, a single probe provisioning is let through: if it
+ * succeeds the breaker closes, otherwise it opens again with twice the
+ * backoff, up to {@link #MAX_BACKOFF_MILLIS}. Only the provisioning holding
+ * the probe decides its outcome: provisionings started before the breaker
+ * opened still count as failures but neither close it nor extend the backoff.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+final class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    static final int THRESHOLD = Integer.getInteger(CircuitBreaker.class.getName() + ".threshold", 3);
+
+    static final long INITIAL_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(
+            Integer.getInteger(CircuitBreaker.class.getName() + ".backoffMinutes", 1));
+
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(
+            Integer.getInteger(CircuitBreaker.class.getName() + ".maxBackoffMinutes", 30));
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final String key;
+    private final int threshold;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private int failures;
+    private long backoffMillis;
+    private long retryAt;
+
+    CircuitBreaker(String key, int threshold, long initialBackoffMillis, long maxBackoffMillis) {
+        this.key = key;
+        this.threshold = threshold;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * @param regionId the region of the cloud
+     * @param cloudName the cloud of the template
+     * @param templateName the template
+     * @return the breaker of the template in the region
+     */
+    static CircuitBreaker of(String regionId, String cloudName, String templateName) {
+        String key = regionId + "/" + cloudName + "/" + templateName;
+        CircuitBreaker breaker = breakers.get(key);
+        if (breaker == null) {
+            breakers.putIfAbsent(key, new CircuitBreaker(key, THRESHOLD, INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS));
+            breaker = breakers.get(key);
+        }
+        return breaker;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if servers can be provisioned, or a probe is due
+     */
+    synchronized boolean isAvailable() {
+        return state == State.CLOSED || state == State.OPEN && System.currentTimeMillis() >= retryAt;
+    }
+
+    synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * @return true if the caller may provision the probe, in which case it
+     * must report its outcome with {@code probe} set, or give it back with
+     * {@link #releaseProbe()}
+     */
+    synchronized boolean tryProbe() {
+        if (state != State.OPEN || System.currentTimeMillis() < retryAt) {
+            return false;
+        }
+        state = State.HALF_OPEN;
+        LOGGER.log(Level.INFO, "Probing {0} after {1} failed provisionings", new Object[]{key, failures});
+        return true;
+    }
+
+    /**
+     * Gives back a probe which was not provisioned after all.
+     */
+    synchronized void releaseProbe() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    /**
+     * @param probe true if the provisioning held the probe
+     */
+    synchronized void recordSuccess(boolean probe) {
+        if (state != State.CLOSED && !probe) {
+            // started before the breaker opened, the probe decides
+            return;
+        }
+        if (state != State.CLOSED) {
+            LOGGER.log(Level.INFO, "Provisioning of {0} recovered, closing its circuit breaker", key);
+        }
+        state = State.CLOSED;
+        failures = 0;
+        backoffMillis = 0;
+    }
+
+    /**
+     * @param probe true if the provisioning held the probe
+     */
+    synchronized void recordFailure(boolean probe) {
+        failures++;
+        if (probe && state == State.HALF_OPEN) {
+            backoffMillis = Math.min(maxBackoffMillis, backoffMillis * 2);
+        } else if (state == State.CLOSED && failures >= threshold) {
+            backoffMillis = initialBackoffMillis;
+        } else {
+            return;
+        }
+        state = State.OPEN;
+        retryAt = System.currentTimeMillis() + backoffMillis;
+        LOGGER.log(Level.WARNING, "Provisioning of {0} failed {1} times in a row, not provisioning it for {2} seconds",
+                new Object[]{key, failures, TimeUnit.MILLISECONDS.toSeconds(backoffMillis)});
+    }
+}
@@ -25,12 +25,10 @@
  */
 package com.github.segator.jenkins.scaleway;
 
-import com.github.segator.scaleway.api.ScalewayClient;
-import com.github.segator.scaleway.api.ScalewayFactory;
-import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
 import com.github.segator.scaleway.api.entity.ScalewayServer;
 import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
 import hudson.slaves.AbstractCloudComputer;
+import jenkins.model.Jenkins;
 
 import java.util.logging.Logger;
 
@@ -50,41 +48,86 @@ public class Computer extends AbstractCloudComputer<Slave> {
 
     private static final Logger LOGGER = Logger.getLogger(Computer.class.getName());
 
-    private final String authToken;
-    private final String orgToken;
-    private final ScalewayComputeRegion regionId;
+    private final String cloudName;
 
-    private String serverId;
+    private final String serverId;
 
+    private final String templateName;
+
+    private final long startTimeMillis;
+
+    /**
+     * The cloud is only looked up when needed, as computers are created while
+     * Jenkins is still loading its configuration.
+     */
     public Computer(Slave slave) {
         super(slave);
         serverId = slave.getServerId();
-        authToken = slave.getCloud().getAuthToken();
-        orgToken = slave.getCloud().getOrgToken();
-        regionId = slave.getCloud().getScalewayClient().getRegion();
+        cloudName = slave.getCloudName();
+        templateName = slave.getTemplateName();
+        startTimeMillis = slave.getStartTimeMillis();
     }
 
     public ScalewayServer updateInstanceDescription() throws ScalewayException {
-        ScalewayClient scaleway = ScalewayFactory.getScalewayClient(authToken, orgToken,regionId);
-        return scaleway.getServer(serverId);
+        ScalewayCloud cloud = getCloud();
+        if (cloud == null) {
+            throw new ScalewayException(new IllegalStateException("Cloud " + cloudName + " of server " + serverId + " doesn't exist"));
+        }
+        return cloud.getScalewayClient().getServer(serverId);
     }
 
     @Override
     protected void onRemoved() {
         super.onRemoved();
 
-        LOGGER.info("Slave removed, deleting server " + serverId);
-        Scaleway.tryDestroyServerAsync(authToken, orgToken,regionId, serverId);
+        final ScalewayCloud cloud = getCloud();
+        if (cloud == null) {
+            LOGGER.warning("Slave removed, but cloud " + cloudName + " doesn't exist anymore to delete server " + serverId);
+            Tracing.endAgent(getName(), null);
+            return;
+        }
+        final String serverName = getName();
+        final Tracing.Span terminate = Tracing.getAgent(serverName).startChild("terminate");
+        SlaveTemplate template = cloud.getTemplate(templateName);
+        if (template == null || !template.isCacheWriteBack()) {
+            LOGGER.info("Slave removed, deleting server " + serverId);
+            Scaleway.tryDestroyServerAsync(cloud.getAuthToken(), cloud.getOrgToken(), cloud.getScalewayClient().getRegion(), serverId);
+            terminate.end();
+            Tracing.endAgent(serverName, null);
+            return;
+        }
+
+        // the build cache may be written back first, which returns once the snapshot of the server is taken
+        threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                Tracing.Span writeBack = terminate.startChild("cache write back");
+                BuildCache.writeBack(cloud, templateName, serverId, startTimeMillis);
+                writeBack.end();
+                LOGGER.info("Slave removed, deleting server " + serverId);
+                Scaleway.tryDestroyServerAsync(cloud.getAuthToken(), cloud.getOrgToken(), cloud.getScalewayClient().getRegion(), serverId);
+                terminate.end();
+                Tracing.endAgent(serverName, null);
+            }
+        });
     }
 
+    /**
+     * @return the cloud of the slave, which stays known once the slave is
+     * removed
+     */
     public ScalewayCloud getCloud() {
-        Slave node = getNode();
-        if (node != null) {
-            return node.getCloud();
+        Jenkins instance = Jenkins.getInstance();
+        if (instance != null) {
+            return (ScalewayCloud) instance.getCloud(cloudName);
         }
         return null;
     }
 
+    public String getServerId() {
+        return serverId;
+    }
+
     public int getSshPort() {
         Slave node = getNode();
         if (node != null) {
@@ -108,4 +151,12 @@ public class Computer extends AbstractCloudComputer<Slave> {
         }
         return 0;
     }
+
+    public long getBillingStartMillis() {
+        Slave node = getNode();
+        if (node != null) {
+            return node.getBillingStartMillis();
+        }
+        return 0;
+    }
 }
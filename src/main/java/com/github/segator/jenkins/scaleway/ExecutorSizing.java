@@ -0,0 +1,59 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+/**
+ *
+ * The {@link ExecutorSizing} derives the number of executors of a slave from
+ * the server type of its {@link SlaveTemplate}.
+ *
+ * <p>
+ * Each executor needs a number of cores and an amount of memory, the
+ * executor profile of the template. A server gets as many executors as both
+ * its cores and its memory allow, and at least one. The memory used by a
+ * tmpfs workspace and by the agent JVM is taken out first.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+final class ExecutorSizing {
+
+    private ExecutorSizing() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @param serverType the server type the slave runs on
+     * @param reservedBytes memory of the server not available to the builds
+     * @param coresPerExecutor cores needed by each executor
+     * @param memoryPerExecutorGb memory in GB needed by each executor
+     * @return the number of executors, at least 1
+     */
+    static int getExecutors(ScalewayCatalog.ServerType serverType, long reservedBytes, int coresPerExecutor,
+            int memoryPerExecutorGb) {
+        long availableBytes = Math.max(0, serverType.getRamBytes() - reservedBytes);
+        long byCores = serverType.getCores() / Math.max(1, coresPerExecutor);
+        long byMemory = availableBytes / (Math.max(1, memoryPerExecutorGb) * JvmSizing.BYTES_PER_MB * 1024L);
+        return (int) Math.max(1, Math.min(byCores, byMemory));
+    }
+}
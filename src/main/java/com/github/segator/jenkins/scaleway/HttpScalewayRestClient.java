@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+
+/**
+ *
+ * A {@link ScalewayRestClient} over {@link HttpURLConnection}.
+ *
+ * <p>
+ * The API endpoint is derived from the region, e.g.
+ * {@code https://cp-par1.scaleway.com}, and can be overridden with the
+ * {@code com.github.segator.jenkins.scaleway.HttpScalewayRestClient.endpoint}
+ * system property.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+class HttpScalewayRestClient implements ScalewayRestClient {
+
+    private static final String ENDPOINT = System.getProperty(HttpScalewayRestClient.class.getName() + ".endpoint");
+
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final String authToken;
+
+    private final String endpoint;
+
+    HttpScalewayRestClient(String authToken, ScalewayComputeRegion region) {
+        this.authToken = authToken;
+        this.endpoint = ENDPOINT != null ? ENDPOINT : "https://cp-" + region.toString().toLowerCase(Locale.ENGLISH) + ".scaleway.com";
+    }
+
+    @Override
+    public JSONObject get(String path) throws ScalewayException {
+        return request("GET", path, null);
+    }
+
+    @Override
+    public JSONObject post(String path, JSONObject body) throws ScalewayException {
+        return request("POST", path, body);
+    }
+
+    @Override
+    public void delete(String path) throws ScalewayException {
+        request("DELETE", path, null);
+    }
+
+    private JSONObject request(String method, String path, JSONObject body) throws ScalewayException {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(path.startsWith("https://") ? path : endpoint + path).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestProperty("X-Auth-Token", authToken);
+            connection.setRequestProperty("Accept", "application/json");
+            try {
+                if (body != null) {
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type", "application/json");
+                    OutputStream out = connection.getOutputStream();
+                    try {
+                        out.write(body.toString().getBytes("UTF-8"));
+                    } finally {
+                        out.close();
+                    }
+                }
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NO_CONTENT) {
+                    return new JSONObject();
+                }
+                if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                    throw new NotFoundException(method + " " + path + " returned " + status + " " + connection.getResponseMessage());
+                }
+                if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_CREATED) {
+                    throw new IOException(method + " " + path + " returned " + status + " " + connection.getResponseMessage());
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    return JSONObject.fromObject(IOUtils.toString(in, "UTF-8"));
+                } finally {
+                    in.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            throw new ScalewayException(e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import jenkins.util.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link IdleTerminationScheduler} terminates idle slaves at their exact
+ * idle deadline instead of waiting for the next periodic retention check.
+ *
+ * <p>
+ * A deadline is scheduled when a {@link Computer} comes online or finishes a
+ * task and cancelled as soon as it accepts a new one or goes offline. When the
+ * deadline fires the {@link RetentionStrategy} is asked to check the computer
+ * again, so the termination rules stay in a single place.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+public final class IdleTerminationScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(IdleTerminationScheduler.class.getName());
+
+    /**
+     * Leaves some time for the executor that just completed a task to be
+     * reported idle.
+     */
+    private static final long SETTLE_MILLIS = 1000;
+
+    /**
+     * Deadlines that fired without the slave being terminated, e.g. because
+     * it was still connecting, are checked again after this delay.
+     */
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Map<Computer, ScheduledFuture<?>> deadlines = new ConcurrentHashMap<Computer, ScheduledFuture<?>>();
+
+    private IdleTerminationScheduler() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Computes the idle deadline of the computer shortly and schedules its
+     * termination, replacing any deadline already scheduled.
+     *
+     * @param computer the computer which may have become idle
+     */
+    static void schedule(Computer computer) {
+        Tracing.idleStarted(computer.getName());
+        schedule(computer, SETTLE_MILLIS);
+    }
+
+    /**
+     * Cancels the idle deadline of the computer, if any.
+     *
+     * @param computer the computer which is busy again or went away
+     */
+    static void cancel(Computer computer) {
+        Tracing.idleEnded(computer.getName());
+        ScheduledFuture<?> deadline = deadlines.remove(computer);
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+    }
+
+    static int getScheduledCount() {
+        return deadlines.size();
+    }
+
+    private static void schedule(final Computer computer, long delayMillis) {
+        ScheduledFuture<?> deadline = Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                evaluate(computer);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+
+        ScheduledFuture<?> previous = deadlines.put(computer, deadline);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private static void evaluate(final Computer computer) {
+        hudson.slaves.RetentionStrategy<?> strategy = computer.getRetentionStrategy();
+        if (!(strategy instanceof RetentionStrategy) || computer.getNode() == null) {
+            deadlines.remove(computer);
+            return;
+        }
+        final RetentionStrategy retentionStrategy = (RetentionStrategy) strategy;
+
+        long delayMillis = retentionStrategy.getMillisUntilIdleTermination(computer);
+        if (delayMillis < 0) {
+            // busy or never terminated, the next completed task schedules it again
+            deadlines.remove(computer);
+            return;
+        }
+        if (delayMillis > 0) {
+            schedule(computer, delayMillis);
+            return;
+        }
+
+        try {
+            Queue.withLock(new Runnable() {
+                @Override
+                public void run() {
+                    retentionStrategy.check(computer);
+                }
+            });
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to check idle slave " + computer.getName(), e);
+        }
+
+        if (computer.getNode() != null && computer.isOnline()) {
+            schedule(computer, RETRY_MILLIS);
+        } else {
+            deadlines.remove(computer);
+        }
+    }
+
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+
+        @Override
+        public void onOnline(hudson.model.Computer c, TaskListener listener) {
+            if (c instanceof Computer) {
+                schedule((Computer) c);
+            }
+        }
+
+        @Override
+        public void onOffline(hudson.model.Computer c, OfflineCause cause) {
+            if (c instanceof Computer) {
+                cancel((Computer) c);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import com.google.common.base.Joiner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * The {@link JvmSizing} derives the options of the slave agent JVM from the
+ * server type of a {@link SlaveTemplate}.
+ *
+ * <p>
+ * The agent shares the server with the builds it runs, so it only gets a
+ * quarter of the memory left once the tmpfs workspace is taken out, between
+ * {@link #MIN_HEAP_MB} and {@link #MAX_HEAP_MB}. Small servers use the serial
+ * collector, which has no extra threads and the smallest footprint. Bigger
+ * ones use G1 with half of the cores for the collector, so a collection
+ * doesn't stall the builds running next to it.
+ *
+ * <p>
+ * Only options understood by both Java 7 and Java 8 are used, the launcher
+ * installs either.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+final class JvmSizing {
+
+    static final long BYTES_PER_MB = 1024L * 1024L;
+
+    /**
+     * The smallest heap given to the agent, below that it can't even load
+     * the remoting classes comfortably.
+     */
+    static final long MIN_HEAP_MB = 256;
+
+    /**
+     * The largest heap given to the agent, staying below 32 GB keeps the
+     * compressed object pointers.
+     */
+    static final long MAX_HEAP_MB = 16 * 1024;
+
+    /**
+     * Heaps below this size, or servers with fewer cores, use the serial
+     * collector.
+     */
+    static final long G1_MIN_HEAP_MB = 1024;
+
+    static final int G1_MIN_CORES = 4;
+
+    private JvmSizing() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @param serverType the server type the agent runs on
+     * @param reservedBytes memory of the server not available to processes,
+     * e.g. a tmpfs workspace
+     * @return the JVM options, separated by spaces
+     */
+    static String getOptions(ScalewayCatalog.ServerType serverType, long reservedBytes) {
+        long heapMb = getHeapMb(serverType, reservedBytes);
+        int cores = Math.max(1, serverType.getCores());
+
+        List<String> options = new ArrayList<String>();
+        options.add("-Xms" + Math.max(MIN_HEAP_MB, heapMb / 4) + "m");
+        options.add("-Xmx" + heapMb + "m");
+        if (heapMb < G1_MIN_HEAP_MB || cores < G1_MIN_CORES) {
+            options.add("-XX:+UseSerialGC");
+        } else {
+            int gcThreads = cores / 2;
+            options.add("-XX:+UseG1GC");
+            options.add("-XX:ParallelGCThreads=" + gcThreads);
+            options.add("-XX:ConcGCThreads=" + Math.max(1, gcThreads / 4));
+        }
+        return Joiner.on(' ').join(options);
+    }
+
+    /**
+     * @param serverType the server type the agent runs on
+     * @param reservedBytes memory of the server not available to processes
+     * @return the maximum heap of the agent in MB
+     */
+    static long getHeapMb(ScalewayCatalog.ServerType serverType, long reservedBytes) {
+        long availableMb = Math.max(0, serverType.getRamBytes() - reservedBytes) / BYTES_PER_MB;
+        return Math.min(MAX_HEAP_MB, Math.max(MIN_HEAP_MB, availableMb / 4));
+    }
+}
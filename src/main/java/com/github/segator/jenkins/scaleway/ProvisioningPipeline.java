@@ -0,0 +1,689 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+import com.github.segator.scaleway.api.entity.ScalewayServerAction;
+import com.github.segator.scaleway.api.entity.ScalewayState;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.model.Computer;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link ProvisioningPipeline} brings up one planned node of a
+ * {@link ScalewayCloud}.
+ *
+ * <p>
+ * Provisioning runs as a chain of stages: the server is created, powered on,
+ * waited for (see {@link ServerReadiness}), added to Jenkins as a
+ * {@link Slave} and connected. The API calls run on
+ * {@link Computer#threadPoolForRemoting} and are retried up to
+ * {@link #ATTEMPTS} times. A create that failed may still have created the
+ * server, e.g. on a read timeout, so a retry first looks the server up by its
+ * name and adopts it. Waiting happens on the Jenkins {@link Timer}, so
+ * pipelines of different nodes interleave without holding a thread each.
+ *
+ * <p>
+ * A suspended slave is resumed by a pipeline too, see
+ * {@link #resume(ScalewayCloud, SlaveTemplate, Slave)}: once its server
+ * finished powering off, it is powered on, waited for and connected.
+ *
+ * <p>
+ * A pipeline reserves a server of its template from the moment it is planned
+ * until its slave is added, so that instance caps count it, see
+ * {@link #countReserved(String, String)}. When it fails or its future is
+ * cancelled, the reservation is released and a server already created is
+ * terminated, so is a suspended slave that failed to resume. Outcomes are
+ * reported to the {@link CircuitBreaker} of the template, only the pipeline
+ * holding its probe gives the probe back. Each stage is a span of the trace
+ * of the slave, see {@link Tracing}.
+ *
+ * <p>
+ * The pipeline also holds the {@link QuotaGovernor} reservation of its
+ * server, released when no server was created.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+final class ProvisioningPipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(ProvisioningPipeline.class.getName());
+
+    static final int ATTEMPTS = Integer.getInteger(ProvisioningPipeline.class.getName() + ".attempts", 3);
+
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final long CONNECT_POLL_MILLIS = 1000;
+
+    private static final long STOP_POLL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    enum Stage {
+        RESUMING, CREATING, POWERING_ON, BOOTING, ADDING, CONNECTING, DONE, FAILED, CANCELLED
+    }
+
+    private static final Set<ProvisioningPipeline> inFlight
+            = Collections.newSetFromMap(new ConcurrentHashMap<ProvisioningPipeline, Boolean>());
+
+    static final int RECENT_FAILURES = 20;
+
+    // guarded by itself, newest first
+    private static final Deque<Failure> recentFailures = new ArrayDeque<Failure>();
+
+    /**
+     * A failed provisioning, kept for display.
+     */
+    static final class Failure {
+
+        private final long timeMillis;
+        private final String cloudName;
+        private final String templateName;
+        private final String serverName;
+        private final Stage stage;
+        private final String message;
+
+        Failure(long timeMillis, String cloudName, String templateName, String serverName, Stage stage, String message) {
+            this.timeMillis = timeMillis;
+            this.cloudName = cloudName;
+            this.templateName = templateName;
+            this.serverName = serverName;
+            this.stage = stage;
+            this.message = message;
+        }
+
+        long getTimeMillis() {
+            return timeMillis;
+        }
+
+        String getCloudName() {
+            return cloudName;
+        }
+
+        String getTemplateName() {
+            return templateName;
+        }
+
+        String getServerName() {
+            return serverName;
+        }
+
+        Stage getStage() {
+            return stage;
+        }
+
+        String getMessage() {
+            return message;
+        }
+    }
+
+    private final ScalewayCloud cloud;
+    private final SlaveTemplate template;
+    private final String serverName;
+    private final long startMillis;
+    private final long deadline;
+    private final CircuitBreaker breaker;
+    private final Tracing.Span trace;
+    private final QuotaGovernor.Reservation reservation;
+
+    /**
+     * Whether the pipeline provisions the probe of the circuit breaker.
+     */
+    private final boolean probe;
+
+    /**
+     * The suspended slave being resumed, or null when provisioning a new
+     * server.
+     */
+    private final Slave suspended;
+
+    private final SettableFuture<Node> node = SettableFuture.create();
+
+    private volatile Stage stage;
+
+    private volatile boolean reserved;
+
+    /**
+     * When the server was powered on, the billing of the slave starts then
+     * rather than once it booted.
+     */
+    private volatile long poweredOnMillis;
+
+    /**
+     * The future of the stage being waited for, cancelled with the pipeline.
+     */
+    private volatile Future<?> waiting;
+
+    // guarded by this
+    private ScalewayServer server;
+    private Slave slave;
+    private boolean finished;
+    private Tracing.Span stageSpan;
+
+    private ProvisioningPipeline(ScalewayCloud cloud, SlaveTemplate template, String serverName,
+            QuotaGovernor.Reservation reservation, boolean probe, Slave suspended) {
+        this.cloud = cloud;
+        this.template = template;
+        this.serverName = serverName;
+        this.startMillis = System.currentTimeMillis();
+        this.deadline = startMillis + TimeUnit.MINUTES.toMillis(cloud.getTimeoutMinutes());
+        this.breaker = cloud.getCircuitBreaker(template);
+        this.trace = Tracing.getAgent(serverName);
+        this.reservation = reservation;
+        this.probe = probe;
+        this.suspended = suspended;
+        // a suspended slave counts against the instance caps by itself
+        this.reserved = suspended == null;
+        this.stage = suspended == null ? Stage.CREATING : Stage.RESUMING;
+        this.slave = suspended;
+    }
+
+    /**
+     * Reserves a server of the template and starts provisioning it. Must be
+     * called while the instance caps were checked, so that the reservation is
+     * counted by the next check.
+     *
+     * @param cloud the cloud to provision in
+     * @param template the template of the server
+     * @param serverName the name of the server
+     * @param reservation the resources of the server in the quotas of the
+     * organization, released if the server isn't created
+     * @param probe true if the server is the probe of the circuit breaker of
+     * the template, see {@link CircuitBreaker#tryProbe()}
+     * @return the future of the node, cancelling it stops the pipeline
+     */
+    static ListenableFuture<Node> start(ScalewayCloud cloud, SlaveTemplate template, String serverName,
+            QuotaGovernor.Reservation reservation, boolean probe) {
+        ProvisioningPipeline pipeline = new ProvisioningPipeline(cloud, template, serverName, reservation, probe, null);
+        pipeline.start(Stage.CREATING);
+        return pipeline.node;
+    }
+
+    /**
+     * Resumes a suspended slave, which must have been marked as resuming, see
+     * {@link Slave#startResuming()}.
+     *
+     * @param cloud the cloud of the slave
+     * @param template the template of the slave
+     * @param slave the suspended slave
+     * @return the future of the node, cancelling it stops the pipeline
+     */
+    static ListenableFuture<Node> resume(ScalewayCloud cloud, SlaveTemplate template, Slave slave) {
+        ProvisioningPipeline pipeline = new ProvisioningPipeline(cloud, template, slave.getNodeName(), null, false, slave);
+        pipeline.start(Stage.RESUMING);
+        return pipeline.node;
+    }
+
+    private void start(Stage first) {
+        inFlight.add(this);
+        node.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (node.isCancelled()) {
+                    finish(Stage.CANCELLED, new CancellationException("Provisioning cancelled"));
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        call(first, 1);
+    }
+
+    /**
+     * @param cloudName the cloud of the servers
+     * @param templateName the template of the servers, or null for all of
+     * them
+     * @return how many servers are reserved by pipelines that didn't add
+     * their slave yet
+     */
+    static int countReserved(String cloudName, String templateName) {
+        int count = 0;
+        for (ProvisioningPipeline pipeline : inFlight) {
+            if (pipeline.reserved && pipeline.cloud.name.equals(cloudName)
+                    && (templateName == null || pipeline.template.getName().equals(templateName))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the pipelines still running, in no particular order
+     */
+    static List<ProvisioningPipeline> getInFlight() {
+        return new ArrayList<ProvisioningPipeline>(inFlight);
+    }
+
+    /**
+     * @return the last {@link #RECENT_FAILURES} failed provisionings, newest
+     * first
+     */
+    static List<Failure> getRecentFailures() {
+        synchronized (recentFailures) {
+            return new ArrayList<Failure>(recentFailures);
+        }
+    }
+
+    long getStartMillis() {
+        return startMillis;
+    }
+
+    String getServerName() {
+        return serverName;
+    }
+
+    String getCloudName() {
+        return cloud.name;
+    }
+
+    String getTemplateName() {
+        return template.getName();
+    }
+
+    Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Runs a stage making an API call on the remoting pool, retrying it on
+     * failure.
+     */
+    private void call(final Stage next, final int attempt) {
+        if (!enter(next)) {
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (next == Stage.RESUMING) {
+                        resumeServer();
+                    } else if (next == Stage.CREATING) {
+                        create(attempt);
+                    } else {
+                        powerOn();
+                    }
+                } catch (Exception e) {
+                    // retrying can't help until the quota frees up
+                    if (attempt >= ATTEMPTS || node.isDone() || QuotaGovernor.isQuotaExceeded(e)) {
+                        fail(e);
+                        return;
+                    }
+                    LOGGER.log(Level.INFO, "Attempt " + attempt + " of " + next + " server " + serverName + " failed, retrying", e);
+                    Timer.get().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            call(next, attempt + 1);
+                        }
+                    }, RETRY_MILLIS * attempt, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    private void create(int attempt) throws Exception {
+        ScalewayServer created = attempt > 1 ? findCreated() : null;
+        if (created != null) {
+            LOGGER.log(Level.INFO, "Adopting server {0} created by a failed attempt", serverName);
+        } else {
+            created = post();
+        }
+        reservation.created();
+        trace.setAttribute("scaleway.server.id", created.getId());
+        synchronized (this) {
+            server = created;
+            if (finished) {
+                // cancelled while the server was being created
+                destroy(created.getId());
+                return;
+            }
+        }
+        call(Stage.POWERING_ON, 1);
+    }
+
+    /**
+     * Server names are unique, so a server of the cloud with the name of the
+     * pipeline was created by an earlier attempt whose response was lost.
+     *
+     * @return the server, or null if no attempt created it
+     */
+    private ScalewayServer findCreated() throws ScalewayException {
+        final ScalewayServer[] found = new ScalewayServer[1];
+        Tracing.Span span = startApiCall("GET /servers");
+        try {
+            cloud.getInventory().visitServers(ScalewayServerName.generateCloudTag(cloud.name), new ScalewayInventory.Visitor() {
+                @Override
+                public boolean visit(ScalewayServer candidate) {
+                    if (serverName.equals(candidate.getName())) {
+                        found[0] = candidate;
+                        return false;
+                    }
+                    return true;
+                }
+            });
+        } catch (ScalewayException e) {
+            span.end(e);
+            throw e;
+        }
+        span.end();
+        return found[0];
+    }
+
+    private ScalewayServer post() throws Exception {
+        Tracing.Span span = startApiCall("POST /servers");
+        ScalewayServer created;
+        try {
+            created = template.createServer(serverName, cloud.name, cloud.getOrgToken(),
+                    cloud.getScalewayClient(), cloud.getRestClient());
+        } catch (Exception e) {
+            span.end(e);
+            if (QuotaGovernor.isQuotaExceeded(e)) {
+                // the cached usage is off, e.g. resources were created from the console
+                QuotaGovernor.of(cloud).invalidate();
+            }
+            throw e;
+        }
+        span.end();
+        return created;
+    }
+
+    private void powerOn() throws Exception {
+        ScalewayServer created;
+        synchronized (this) {
+            created = server;
+        }
+        Tracing.Span span = startApiCall("POST /servers/{id}/action");
+        try {
+            cloud.getScalewayClient().executeServerAction(created, ScalewayServerAction.POWER_ON);
+        } catch (Exception e) {
+            span.end(e);
+            throw e;
+        }
+        span.end();
+        poweredOnMillis = System.currentTimeMillis();
+        boot(created);
+    }
+
+    /**
+     * Powers the server of the suspended slave on, once its power off
+     * completed.
+     */
+    private void resumeServer() throws Exception {
+        Tracing.Span span = startApiCall("GET /servers/{id}");
+        ScalewayServer current;
+        try {
+            current = cloud.getScalewayClient().getServer(suspended.getServerId());
+        } catch (Exception e) {
+            span.end(e);
+            throw e;
+        }
+        span.end();
+        synchronized (this) {
+            server = current;
+        }
+        if (current.getState() != ScalewayState.STOPPED && current.getState() != ScalewayState.RUNNING) {
+            // a server can only be powered on once the power off has completed
+            if (System.currentTimeMillis() > deadline) {
+                fail(new TimeoutException("Server " + current.getId() + " didn't stop before the launch timed out"));
+                return;
+            }
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    call(Stage.RESUMING, 1);
+                }
+            }, STOP_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (current.getState() == ScalewayState.STOPPED) {
+            LOGGER.log(Level.INFO, "Powering on server {0} of suspended slave {1}",
+                    new Object[]{current.getId(), serverName});
+            span = startApiCall("POST /servers/{id}/action");
+            try {
+                cloud.getScalewayClient().executeServerAction(current, ScalewayServerAction.POWER_ON);
+            } catch (Exception e) {
+                span.end(e);
+                throw e;
+            }
+            span.end();
+            suspended.resumed(System.currentTimeMillis());
+        } else {
+            // never powered off, its billing didn't stop
+            suspended.resumed(0);
+        }
+        boot(current);
+    }
+
+    private void boot(final ScalewayServer created) {
+        if (!enter(Stage.BOOTING)) {
+            return;
+        }
+        int minutesLeft = (int) Math.max(1, TimeUnit.MILLISECONDS.toMinutes(deadline - System.currentTimeMillis()));
+        final ListenableFuture<String> address = ServerReadiness.watch(cloud.getRestClient(), created.getId(),
+                template.getSshPort(), template.getNetworkingMode().isPrivate(), minutesLeft);
+        waiting = address;
+        address.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    address.get();
+                    add(created);
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+        }, Computer.threadPoolForRemoting);
+    }
+
+    private void add(ScalewayServer created) throws Exception {
+        Slave added = suspended;
+        if (added == null) {
+            if (!enter(Stage.ADDING)) {
+                return;
+            }
+            added = template.newSlave(cloud.name, created, cloud.getPrivateKey(), cloud.getServerType(template),
+                    poweredOnMillis);
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                slave = added;
+            }
+            Jenkins instance = Jenkins.getInstance();
+            if (instance == null) {
+                throw new IllegalStateException("Jenkins is shutting down");
+            }
+            instance.addNode(added);
+            // the slave counts against the instance caps by itself from now on
+            reserved = false;
+        }
+
+        if (!enter(Stage.CONNECTING)) {
+            return;
+        }
+        hudson.model.Computer computer = added.toComputer();
+        if (computer == null) {
+            throw new IllegalStateException("Slave " + added.getNodeName() + " has no computer");
+        }
+        waiting = computer.connect(false);
+        awaitConnection(added);
+    }
+
+    /**
+     * {@link hudson.model.Computer#connect(boolean)} doesn't return a
+     * listenable future, so it is polled.
+     */
+    private void awaitConnection(final Slave added) {
+        Future<?> connection = waiting;
+        if (node.isDone()) {
+            return;
+        }
+        if (connection.isDone()) {
+            try {
+                connection.get();
+                finish(Stage.DONE, null);
+                node.set(added);
+            } catch (ExecutionException e) {
+                fail(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            } catch (Exception e) {
+                fail(e);
+            }
+            return;
+        }
+        if (System.currentTimeMillis() > deadline) {
+            connection.cancel(true);
+            fail(new TimeoutException("Slave " + added.getNodeName() + " didn't connect before the launch timed out"));
+            return;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                awaitConnection(added);
+            }
+        }, CONNECT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false if the pipeline ended meanwhile and the stage must not
+     * run
+     */
+    private synchronized boolean enter(Stage next) {
+        if (finished) {
+            return false;
+        }
+        // retries stay in the span of their stage
+        if (stageSpan == null || stage != next) {
+            if (stageSpan != null) {
+                stageSpan.end();
+            }
+            stageSpan = trace.startChild(next.name().toLowerCase(Locale.ENGLISH));
+        }
+        stage = next;
+        return true;
+    }
+
+    private synchronized Tracing.Span startApiCall(String name) {
+        return stageSpan.startApiCall(name);
+    }
+
+    private void fail(Exception e) {
+        if (node.isDone()) {
+            return;
+        }
+        LOGGER.log(Level.WARNING, "Failed to provision server " + serverName + " while " + stage, e);
+        synchronized (recentFailures) {
+            recentFailures.addFirst(new Failure(System.currentTimeMillis(), cloud.name, template.getName(), serverName,
+                    stage, String.valueOf(e.getMessage())));
+            while (recentFailures.size() > RECENT_FAILURES) {
+                recentFailures.removeLast();
+            }
+        }
+        finish(Stage.FAILED, e);
+        node.setException(e);
+    }
+
+    /**
+     * Ends the pipeline, releasing its reservation. Unless it succeeded, the
+     * slave or server it brought up is removed and the trace of the slave
+     * ends.
+     */
+    private void finish(Stage end, Exception cause) {
+        ScalewayServer created;
+        Slave added;
+        Tracing.Span lastStage;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            stage = end;
+            created = server;
+            added = slave;
+            lastStage = stageSpan;
+        }
+        reserved = false;
+        inFlight.remove(this);
+        if (suspended != null) {
+            suspended.endResuming();
+        }
+        if (end == Stage.DONE) {
+            lastStage.end();
+            breaker.recordSuccess(probe);
+            return;
+        }
+        if (lastStage != null) {
+            lastStage.end(cause);
+        }
+        Tracing.endAgent(serverName, cause);
+        if (created == null && reservation != null) {
+            reservation.release();
+        }
+        // a quota says nothing about the health of the template
+        if (end == Stage.FAILED && !QuotaGovernor.isQuotaExceeded(cause)) {
+            breaker.recordFailure(probe);
+        } else if (probe) {
+            breaker.releaseProbe();
+        }
+
+        Future<?> pending = waiting;
+        if (pending != null) {
+            pending.cancel(true);
+        }
+        if (added != null) {
+            // the computer terminates the server once removed
+            try {
+                Jenkins instance = Jenkins.getInstance();
+                if (instance != null) {
+                    instance.removeNode(added);
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, e.getMessage(), e);
+            }
+        } else if (created != null) {
+            destroy(created.getId());
+        }
+    }
+
+    private void destroy(String serverId) {
+        LOGGER.log(Level.INFO, "Terminating server {0} of an abandoned provisioning", serverId);
+        Scaleway.tryDestroyServerAsync(cloud.getAuthToken(), cloud.getOrgToken(), cloud.getScalewayClient().getRegion(), serverId);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import java.util.Arrays;
+
+/**
+ *
+ * The {@link ProvisioningPlanner} chooses how many servers of each matching
+ * {@link SlaveTemplate} should be booted to cover an excess workload.
+ *
+ * <p>
+ * Among the combinations allowed by the per template and cloud instance caps,
+ * it picks the one that covers the workload with the fewest servers, and among
+ * those the one wasting the fewest executors. When the caps don't allow the
+ * whole workload to be covered, it covers as much of it as possible. Templates
+ * listed first win ties.
+ *
+ * <p>
+ * A single plan covers at most {@link #MAX_WORKLOAD} executors, which bounds
+ * its cost. The rest of the workload is still excess on the next provisioning
+ * round and gets planned then.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+public final class ProvisioningPlanner {
+
+    /**
+     * Used for templates and clouds without instance cap.
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * The most executors covered by a single plan.
+     */
+    static final int MAX_WORKLOAD = 1000;
+
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private ProvisioningPlanner() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @param workload the number of executors needed
+     * @param executors the number of executors of a server of each template
+     * @param available how many more servers each template may boot
+     * @param cloudAvailable how many more servers the cloud may boot
+     * @return how many servers to boot for each template
+     */
+    public static int[] plan(int workload, int[] executors, int[] available, int cloudAvailable) {
+        int[] counts = new int[executors.length];
+        workload = Math.min(workload, MAX_WORKLOAD);
+        if (workload <= 0 || cloudAvailable <= 0 || executors.length == 0) {
+            return counts;
+        }
+
+        // no server ever needs to be booted beyond what covers the workload
+        int maxExecutors = 0;
+        int[] copies = new int[executors.length];
+        int totalCopies = 0;
+        for (int i = 0; i < executors.length; i++) {
+            if (executors[i] <= 0) {
+                continue;
+            }
+            maxExecutors = Math.max(maxExecutors, executors[i]);
+            copies[i] = Math.min(Math.min(available[i], cloudAvailable), (workload + executors[i] - 1) / executors[i]);
+            totalCopies += copies[i];
+        }
+        if (totalCopies == 0) {
+            return counts;
+        }
+
+        // boots[t] is the fewest servers giving exactly t executors, a 0/1
+        // knapsack over every server each template may boot. used[i][t] is
+        // how many servers of template i that solution has once template i
+        // is processed, the rest of it is the solution for
+        // t - used[i][t] * executors[i] over the previous templates
+        int limit = workload + maxExecutors - 1;
+        int[] boots = new int[limit + 1];
+        Arrays.fill(boots, UNREACHABLE);
+        boots[0] = 0;
+        int[][] used = new int[executors.length][];
+        for (int i = 0; i < executors.length; i++) {
+            used[i] = new int[limit + 1];
+            for (int c = 0; c < copies[i]; c++) {
+                for (int t = limit; t >= executors[i]; t--) {
+                    int previous = boots[t - executors[i]];
+                    if (previous != UNREACHABLE && previous + 1 < boots[t]) {
+                        boots[t] = previous + 1;
+                        used[i][t] = used[i][t - executors[i]] + 1;
+                    }
+                }
+            }
+        }
+
+        int best = -1;
+        for (int t = workload; t <= limit; t++) {
+            if (boots[t] <= cloudAvailable && (best < 0 || boots[t] < boots[best])) {
+                best = t;
+            }
+        }
+        if (best < 0) {
+            // the caps don't allow covering everything, cover as much as possible
+            for (int t = Math.min(workload - 1, limit); t > 0 && best < 0; t--) {
+                if (boots[t] <= cloudAvailable) {
+                    best = t;
+                }
+            }
+        }
+        if (best < 0) {
+            return counts;
+        }
+
+        for (int t = best, i = executors.length - 1; t > 0 && i >= 0; i--) {
+            counts[i] = used[i][t];
+            t -= counts[i] * executors[i];
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import hudson.Util;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link QuotaGovernor} keeps the clouds of an organization within its
+ * Scaleway quotas of servers, IPs and volumes, whatever their own instance
+ * caps. There is a single governor per organization and region, shared by
+ * every cloud of the controller using them.
+ *
+ * <p>
+ * The quotas are read from the account API along with the current usage of
+ * the region, listed from the compute API, which includes the resources not
+ * created by Jenkins. Both are loaded and refreshed in the background, like
+ * the {@link ScalewayCatalog}, and cached for {@link #TTL_MILLIS}. The API is
+ * called with the token of the last cloud asking for the governor, so that a
+ * rotated token takes over. Each planned server
+ * reserves what it will use, see {@link Demand}, until its server is created
+ * and shows up in the usage of the next refresh. Servers that don't fit are
+ * not planned, their builds stay queued until the quota frees up.
+ *
+ * <p>
+ * Until the quotas are loaded, or when they can't be, provisioning is not
+ * limited. A create rejected by Scaleway for exceeding a quota refreshes
+ * them right away, see {@link #invalidate()}.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+final class QuotaGovernor {
+
+    private static final Logger LOGGER = Logger.getLogger(QuotaGovernor.class.getName());
+
+    static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(Long.getLong(QuotaGovernor.class.getName() + ".ttlMinutes", 5));
+
+    /**
+     * How long to wait before trying again to load quotas that failed to
+     * load.
+     */
+    static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    static final String ACCOUNT_ENDPOINT = System.getProperty(QuotaGovernor.class.getName() + ".accountEndpoint",
+            "https://account.scaleway.com");
+
+    private static final ConcurrentMap<String, QuotaGovernor> governors = new ConcurrentHashMap<String, QuotaGovernor>();
+
+    /**
+     * What a server of a template uses from the quotas.
+     */
+    static final class Demand {
+
+        final int servers;
+        final int ips;
+        final int volumes;
+
+        Demand(int servers, int ips, int volumes) {
+            this.servers = servers;
+            this.ips = ips;
+            this.volumes = volumes;
+        }
+
+        static Demand of(SlaveTemplate template) {
+            return new Demand(1, template.getNetworkingMode().isPublicIpRequired() ? 1 : 0, template.getVolumeCount());
+        }
+    }
+
+    /**
+     * The resources held by a planned server, counted until the server shows
+     * up in the usage.
+     */
+    final class Reservation {
+
+        private final Demand demand;
+
+        // guarded by the governor
+        private long createdMillis;
+
+        private Reservation(Demand demand) {
+            this.demand = demand;
+        }
+
+        /**
+         * Records that the server was created, it is counted in the usage
+         * from the next refresh on.
+         */
+        void created() {
+            synchronized (QuotaGovernor.this) {
+                createdMillis = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Gives the resources back, when the server won't be created.
+         */
+        void release() {
+            synchronized (QuotaGovernor.this) {
+                reservations.remove(this);
+            }
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final int[] limits;
+        private final int[] usage;
+        private final long startedAt;
+        private final long loadedAt;
+
+        Snapshot(int[] limits, int[] usage, long startedAt) {
+            this.limits = limits;
+            this.usage = usage;
+            this.startedAt = startedAt;
+            this.loadedAt = System.currentTimeMillis();
+        }
+    }
+
+    private static final int SERVERS = 0;
+    private static final int IPS = 1;
+    private static final int VOLUMES = 2;
+
+    private static final String[] QUOTA_NAMES = {"servers", "ips", "volumes"};
+
+    private volatile String authToken;
+    private final String orgToken;
+    private final ScalewayComputeRegion region;
+
+    private volatile Snapshot snapshot;
+
+    private volatile long failedAt;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    // guarded by this
+    private final List<Reservation> reservations = new ArrayList<Reservation>();
+
+    private QuotaGovernor(String authToken, String orgToken, ScalewayComputeRegion region) {
+        this.authToken = authToken;
+        this.orgToken = orgToken;
+        this.region = region;
+    }
+
+    /**
+     * @return the governor of the organization of the cloud in its region
+     */
+    static QuotaGovernor of(ScalewayCloud cloud) {
+        return get(cloud.getAuthToken(), cloud.getOrgToken(), ScalewayComputeRegion.valueOf(cloud.getRegionId()));
+    }
+
+    /**
+     * @return the governor of the organization in the region, which calls
+     * the API with the given token from now on
+     */
+    static QuotaGovernor get(String authToken, String orgToken, ScalewayComputeRegion region) {
+        // the organization is digested so that it isn't kept as a map key
+        String key = Util.getDigestOf(orgToken) + ":" + region;
+        QuotaGovernor governor = governors.get(key);
+        if (governor == null) {
+            governors.putIfAbsent(key, new QuotaGovernor(authToken, orgToken, region));
+            governor = governors.get(key);
+        }
+        governor.authToken = authToken;
+        return governor;
+    }
+
+    /**
+     * Drops every governor, along with its reservations.
+     */
+    static void invalidateAll() {
+        governors.clear();
+    }
+
+    /**
+     * @param demand what each server uses
+     * @return how many more servers fit in the quotas, or
+     * {@link ProvisioningPlanner#UNLIMITED} if the quotas are unknown
+     */
+    synchronized int getAvailable(Demand demand) {
+        Snapshot current = getSnapshot();
+        if (current == null) {
+            return ProvisioningPlanner.UNLIMITED;
+        }
+        int[] used = getUsed(current);
+        int[] needed = {demand.servers, demand.ips, demand.volumes};
+        long available = ProvisioningPlanner.UNLIMITED;
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i] > 0 && current.limits[i] >= 0) {
+                available = Math.min(available, Math.max(0, current.limits[i] - used[i]) / needed[i]);
+            }
+        }
+        return (int) available;
+    }
+
+    /**
+     * Reserves the resources of a server, if they fit in the quotas.
+     *
+     * @param demand what the server uses
+     * @return the reservation, or null if the server doesn't fit
+     */
+    synchronized Reservation tryReserve(Demand demand) {
+        if (getAvailable(demand) < 1) {
+            return null;
+        }
+        Reservation reservation = new Reservation(demand);
+        reservations.add(reservation);
+        return reservation;
+    }
+
+    /**
+     * Refreshes the quotas and usage in the background. The cached ones are
+     * kept meanwhile, as they are closer to the truth than no limit at all.
+     */
+    void invalidate() {
+        failedAt = 0;
+        refreshAsync();
+    }
+
+    /**
+     * @return true if the quotas are known
+     */
+    boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return true while the quotas are being loaded
+     */
+    boolean isRefreshing() {
+        return refreshing.get();
+    }
+
+    /**
+     * @param e why a create failed
+     * @return true if Scaleway rejected it for exceeding a quota
+     */
+    static boolean isQuotaExceeded(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null && message.toLowerCase(Locale.ENGLISH).contains("quota")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int[] getUsed(Snapshot current) {
+        int[] used = current.usage.clone();
+        for (Reservation reservation : reservations) {
+            used[SERVERS] += reservation.demand.servers;
+            used[IPS] += reservation.demand.ips;
+            used[VOLUMES] += reservation.demand.volumes;
+        }
+        return used;
+    }
+
+    /**
+     * Never calls the API, as it runs while provisioning is synchronized.
+     *
+     * @return the cached quotas and usage, or null while they are unknown
+     */
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            if (System.currentTimeMillis() - failedAt >= RETRY_MILLIS) {
+                refreshAsync();
+            }
+            return null;
+        }
+        if (System.currentTimeMillis() - current.loadedAt > TTL_MILLIS) {
+            refreshAsync();
+        }
+        return current;
+    }
+
+    /**
+     * Servers created before the usage was listed are counted by the usage,
+     * their reservations are dropped.
+     */
+    private synchronized void install(Snapshot loaded) {
+        Iterator<Reservation> it = reservations.iterator();
+        while (it.hasNext()) {
+            Reservation reservation = it.next();
+            if (reservation.createdMillis != 0 && reservation.createdMillis < loaded.startedAt) {
+                it.remove();
+            }
+        }
+        snapshot = loaded;
+    }
+
+    private void refreshAsync() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    install(load());
+                } catch (Exception e) {
+                    failedAt = System.currentTimeMillis();
+                    LOGGER.log(Level.WARNING, "Failed to load the Scaleway quotas of " + region
+                            + (snapshot == null ? ", not enforcing them" : ""), e);
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private Snapshot load() throws ScalewayException {
+        LOGGER.log(Level.INFO, "Loading the Scaleway quotas of {0}", region);
+        long startedAt = System.currentTimeMillis();
+        ScalewayRestClient rest = Scaleway.getRestClient(authToken, region);
+
+        JSONObject quotas = rest.get(ACCOUNT_ENDPOINT + "/organizations/" + orgToken + "/quotas").getJSONObject("quotas");
+        int[] limits = new int[QUOTA_NAMES.length];
+        for (int i = 0; i < QUOTA_NAMES.length; i++) {
+            // quotas missing from the answer are not enforced
+            limits[i] = quotas.optInt(QUOTA_NAMES[i], -1);
+        }
+
+        int[] usage = new int[QUOTA_NAMES.length];
+        for (int i = 0; i < QUOTA_NAMES.length; i++) {
+            if (limits[i] >= 0) {
+                usage[i] = count(rest, QUOTA_NAMES[i]);
+            }
+        }
+        return new Snapshot(limits, usage, startedAt);
+    }
+
+    /**
+     * Counts every resource of the region, page by page.
+     */
+    private static int count(ScalewayRestClient rest, String resource) throws ScalewayException {
+        int count = 0;
+        for (int page = 1; ; page++) {
+            JSONArray array = rest.get("/" + resource + "?page=" + page + "&per_page=" + ScalewayInventory.PAGE_SIZE)
+                    .getJSONArray(resource);
+            count += array.size();
+            if (array.size() < ScalewayInventory.PAGE_SIZE) {
+                return count;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+import com.github.segator.scaleway.api.entity.ScalewayState;
+
+import java.util.List;
+
+/**
+ *
+ * The {@link RemoteInstanceCount} counts the running servers of a cloud, per
+ * template, while the {@link ScalewayInventory} lists them. It stops the
+ * listing as soon as the limit is reached, as the cap is known to be reached
+ * then and nothing will be provisioned.
+ *
+ * <p>
+ * Template counts are only exact when the limit was not reached.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+public class RemoteInstanceCount implements ScalewayInventory.Visitor {
+
+    private final String cloudName;
+
+    private final int limit;
+
+    private final String[] templateNames;
+
+    private final int[] templateCounts;
+
+    private int total;
+
+    /**
+     * @param cloudName the cloud the servers belong to
+     * @param templates the templates of the cloud
+     * @param limit the count after which the listing stops, or
+     * {@link ProvisioningPlanner#UNLIMITED}
+     */
+    public RemoteInstanceCount(String cloudName, List<? extends SlaveTemplate> templates, int limit) {
+        this.cloudName = cloudName;
+        this.limit = limit;
+        templateNames = new String[templates.size()];
+        for (int i = 0; i < templateNames.length; i++) {
+            templateNames[i] = templates.get(i).getName();
+        }
+        templateCounts = new int[templateNames.length];
+    }
+
+    @Override
+    public boolean visit(ScalewayServer server) {
+        if (server.getState() != ScalewayState.RUNNING
+                || !ScalewayServerName.isServerInstanceOfCloud(server, cloudName)) {
+            return true;
+        }
+
+        total++;
+        for (int i = 0; i < templateNames.length; i++) {
+            if (ScalewayServerName.isServerInstanceOfSlave(server, cloudName, templateNames[i])) {
+                templateCounts[i]++;
+                break;
+            }
+        }
+        return total < limit;
+    }
+
+    /**
+     * @return the number of running servers seen, at most the limit
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return true if the listing stopped because the limit was reached
+     */
+    public boolean isLimitReached() {
+        return total >= limit;
+    }
+
+    /**
+     * @param templateName a template of the cloud
+     * @return the number of running servers of the template seen
+     */
+    public int getCount(String templateName) {
+        for (int i = 0; i < templateNames.length; i++) {
+            if (templateNames[i].equals(templateName)) {
+                return templateCounts[i];
+            }
+        }
+        return 0;
+    }
+}
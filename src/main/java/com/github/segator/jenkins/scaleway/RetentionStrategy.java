@@ -28,18 +28,32 @@ package com.github.segator.jenkins.scaleway;
 
 
 import hudson.model.Descriptor;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Node;
+import hudson.model.Queue;
 import hudson.slaves.CloudSlaveRetentionStrategy;
 import hudson.util.TimeUnit2;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
  * The {@link RetentionStrategy} is mainly used to determine
  * when an idle Server can be destroyed.
  *
+ * <p>
+ * It also terminates single use slaves as soon as their build is done.
+ *
  * @author robert.gruendler@dubture.com
  * @author isaac.aymerich@gmail.com
  */
-public class RetentionStrategy extends CloudSlaveRetentionStrategy<Computer> {
+public class RetentionStrategy extends CloudSlaveRetentionStrategy<Computer> implements ExecutorListener {
+
+    private static final Logger LOGGER = Logger.getLogger(RetentionStrategy.class.getName());
 
     public static class DescriptorImpl extends Descriptor<hudson.slaves.RetentionStrategy<?>> {
         @Override
@@ -49,42 +63,161 @@ public class RetentionStrategy extends CloudSlaveRetentionStrategy<Computer> {
     }
 
     public void start(Computer computer) {
+        Slave node = computer.getNode();
+        if (node != null && node.isSuspended()) {
+            // powered off on purpose, it is connected again when resumed
+            return;
+        }
+        if (SlaveAdopter.adoptLater(computer)) {
+            // Jenkins is starting, the adopter reconnects the slaves it finds
+            return;
+        }
         computer.connect(false);
     }
 
+    @Override
+    public long check(Computer computer) {
+        Slave node = computer.getNode();
+        if (node != null && (node.isSuspended() || node.isResuming())) {
+            return checkCycle();
+        }
+        return super.check(computer);
+    }
+
+    /**
+     * Powers the server off instead of terminating it when its template asks
+     * for it and the stopped instance cap allows it.
+     */
+    @Override
+    protected void kill(Node node) throws IOException {
+        if (node instanceof Slave) {
+            Slave slave = (Slave) node;
+            SlaveTemplate template = slave.getTemplate();
+            ScalewayCloud cloud = slave.getCloud();
+            if (template != null && cloud != null && !template.isStoppedInstanceCapReached(cloud.getName())) {
+                hudson.model.Computer computer = slave.toComputer();
+                if (computer != null) {
+                    computer.disconnect(null);
+                }
+                traceDecision(node, "suspend");
+                slave.suspend();
+                return;
+            }
+        }
+        LOGGER.info("Terminating idle slave " + node.getNodeName());
+        traceDecision(node, "terminate");
+        Jenkins instance = Jenkins.getInstance();
+        if (instance != null) {
+            instance.removeNode(node);
+        }
+    }
+
+    /**
+     * Idle slaves are terminated by {@link IdleTerminationScheduler} at their
+     * exact deadline, this periodic check is only a safety net.
+     */
     @Override
     protected long checkCycle() {
-        return 1; // ask Jenkins to check every 1 minute, though it might decide to check in 2 or 3 (or longer?)
+        return 10;
     }
 
     @Override
     protected boolean isIdleForTooLong(Computer computer) {
+        return getMillisUntilIdleTermination(computer) == 0;
+    }
+
+    /**
+     * @param computer the computer to check
+     * @return how long until the computer can be terminated, 0 if it can be
+     * terminated now or -1 if it is busy or never terminated
+     */
+    long getMillisUntilIdleTermination(Computer computer) {
         int idleTerminationTime = 0;
+        BillingPolicy billingPolicy = BillingPolicy.DEFAULT;
         Slave node = computer.getNode();
         if(node!=null){            
             idleTerminationTime = node.getIdleTerminationTime();
+            billingPolicy = node.getBillingPolicy();
         }
 
-        if (idleTerminationTime == 0) {
-            return false;
+        if (idleTerminationTime == 0 || !computer.isIdle()) {
+            return -1;
         }
 
+        long now = System.currentTimeMillis();
+        // a resumed server is billed again from when it was powered back on
+        long uptimeMillis = now - computer.getBillingStartMillis();
+
         if (idleTerminationTime > 0) {
-            return System.currentTimeMillis() - computer.getIdleStartMilliseconds() > TimeUnit2.MINUTES.toMillis(idleTerminationTime);
-        } else if (idleTerminationTime < 0 && computer.isIdle()) {
-            long uptimeMinutes = TimeUnit2.MILLISECONDS.toMinutes(System.currentTimeMillis() - computer.getStartTimeMillis());
+            long idleDeadline = computer.getIdleStartMilliseconds() + TimeUnit2.MINUTES.toMillis(idleTerminationTime);
+            long uptimeDeadline = computer.getBillingStartMillis() + TimeUnit2.MINUTES.toMillis(billingPolicy.getMinimumUptimeMinutes());
+            return Math.max(0, Math.max(idleDeadline, uptimeDeadline) - now);
+        }
 
-            if (uptimeMinutes < 60) {
-                return false;
-            }
+        // keep the server until just before the period we already paid for runs out
+        return billingPolicy.millisUntilTerminationWindow(uptimeMillis);
+    }
 
-            while (uptimeMinutes >= 60) {
-                uptimeMinutes -= 60;
-            }
+    @Override
+    public void taskAccepted(Executor executor, Queue.Task task) {
+        hudson.model.Computer computer = executor.getOwner();
+        Node node = computer.getNode();
+        if (node instanceof Slave && ((Slave) node).isSingleUse()) {
+            LOGGER.info("Single use slave " + node.getNodeName() + " accepted " + task.getDisplayName() + ", no longer accepting tasks");
+            computer.setAcceptingTasks(false);
+            // start booting the replacement while this build runs
+            ScalewayCloud.suggestProvisioningFor(node);
+        }
+        if (computer instanceof Computer) {
+            IdleTerminationScheduler.cancel((Computer) computer);
+        }
+    }
 
-            return uptimeMinutes >= 25 && uptimeMinutes < 30;
+    @Override
+    public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+        if (!terminateIfSingleUse(executor)) {
+            scheduleIdleTermination(executor);
         }
+    }
 
-        return false;
+    @Override
+    public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+        if (!terminateIfSingleUse(executor)) {
+            scheduleIdleTermination(executor);
+        }
+    }
+
+    private static void traceDecision(Node node, String decision) {
+        Tracing.getAgent(node.getNodeName()).startChild("retention")
+                .setAttribute("scaleway.retention.decision", decision).end();
+    }
+
+    private static void scheduleIdleTermination(Executor executor) {
+        hudson.model.Computer computer = executor.getOwner();
+        if (computer instanceof Computer) {
+            IdleTerminationScheduler.schedule((Computer) computer);
+        }
+    }
+
+    private static boolean terminateIfSingleUse(Executor executor) {
+        Node node = executor.getOwner().getNode();
+        if (!(node instanceof Slave) || !((Slave) node).isSingleUse()) {
+            return false;
+        }
+        final Slave slave = (Slave) node;
+        hudson.model.Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LOGGER.info("Terminating single use slave " + slave.getNodeName());
+                    traceDecision(slave, "single use");
+                    slave.terminate();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to terminate single use slave " + slave.getNodeName(), e);
+                }
+                ScalewayCloud.suggestProvisioningFor(slave);
+            }
+        });
+        return true;
     }
 }
@@ -29,6 +29,8 @@ import com.github.segator.scaleway.api.ScalewayFactory;
 import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
 import com.github.segator.scaleway.api.entity.ScalewayServer;
 import com.github.segator.scaleway.api.entity.ScalewayServerAction;
+import com.github.segator.scaleway.api.entity.ScalewayState;
+import hudson.model.Computer;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -50,6 +52,44 @@ public final class Scaleway {
 
     private static final Logger LOGGER = Logger.getLogger(Scaleway.class.getName());
 
+    /**
+     * Creates the {@link ScalewayClient} and {@link ScalewayRestClient}
+     * instances used by the plugin, tests replace it to talk to a fake
+     * Scaleway API.
+     */
+    interface ClientFactory {
+
+        ScalewayClient getClient(String authToken, String orgToken, ScalewayComputeRegion region);
+
+        ScalewayRestClient getRestClient(String authToken, ScalewayComputeRegion region);
+    }
+
+    private static final ClientFactory DEFAULT_CLIENT_FACTORY = new ClientFactory() {
+        @Override
+        public ScalewayClient getClient(String authToken, String orgToken, ScalewayComputeRegion region) {
+            return ScalewayFactory.getScalewayClient(authToken, orgToken, region);
+        }
+
+        @Override
+        public ScalewayRestClient getRestClient(String authToken, ScalewayComputeRegion region) {
+            return new HttpScalewayRestClient(authToken, region);
+        }
+    };
+
+    private static volatile ClientFactory clientFactory = DEFAULT_CLIENT_FACTORY;
+
+    static ScalewayClient getClient(String authToken, String orgToken, ScalewayComputeRegion region) {
+        return clientFactory.getClient(authToken, orgToken, region);
+    }
+
+    static ScalewayRestClient getRestClient(String authToken, ScalewayComputeRegion region) {
+        return clientFactory.getRestClient(authToken, region);
+    }
+
+    static void setClientFactory(ClientFactory factory) {
+        clientFactory = factory == null ? DEFAULT_CLIENT_FACTORY : factory;
+    }
+
     private static class DestroyInfo {
 
         public final String authToken;
@@ -87,7 +127,7 @@ public final class Scaleway {
 
                         if (di.authToken != previousAuthToken) {
                             previousAuthToken = di.authToken;
-                            client = ScalewayFactory.getScalewayClient(di.authToken, di.orgToken,di.regionId);
+                            client = getClient(di.authToken, di.orgToken,di.regionId);
                             // new auth token -- new list of servers
                             servers = null;
                         }
@@ -109,8 +149,16 @@ public final class Scaleway {
                             if (servers != null) {
                                 boolean found = false;
                                 for (ScalewayServer d : servers) {
-                                    if (d.getId() == di.serverId) {
+                                    if (d.getId().equals(di.serverId)) {
                                         found = true;
+                                        if (d.getState() == ScalewayState.STOPPED) {
+                                            // only running servers can be terminated, power it on and retry
+                                            try {
+                                                client.executeServerAction(di.serverId, ScalewayServerAction.POWER_ON);
+                                            } catch (Exception ee) {
+                                                LOGGER.log(Level.WARNING, ee.getMessage(), ee);
+                                            }
+                                        }
                                         break;
                                     }
                                 }
@@ -174,6 +222,31 @@ public final class Scaleway {
         }
     }
 
+    /**
+     * @return how many servers are waiting to be destroyed
+     */
+    static int getPendingDestroyCount() {
+        synchronized (toBeDestroyedServers) {
+            return toBeDestroyedServers.size();
+        }
+    }
+
+    static void tryPowerOffServerAsync(final ScalewayClient client, final String serverId) {
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LOGGER.info("Trying to power off server " + serverId);
+                    client.executeServerAction(serverId, ScalewayServerAction.POWER_OFF);
+                    LOGGER.info("Server " + serverId + " is powering off");
+                } catch (Exception e) {
+                    LOGGER.warning("Failed to power off server " + serverId);
+                    LOGGER.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        });
+    }
+
     private static Comparator<String> ignoringCase() {
         return new Comparator<String>() {
             @Override
@@ -0,0 +1,265 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
+import com.github.segator.scaleway.api.entity.ScalewayImage;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import hudson.Util;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link ScalewayCatalog} caches the images and server types offered to
+ * an account in a region, so that configuration forms don't call the API
+ * every time they are rendered.
+ *
+ * <p>
+ * A catalog is loaded in the background on first use, then served from
+ * memory. Until it is loaded it is empty, so that forms render right away and
+ * provisioning, which looks up server types while holding the lock of its
+ * cloud, never waits for the API. A failed load is retried after
+ * {@link #RETRY_MILLIS}. Once it is older than {@link #TTL_MILLIS} it is
+ * still served while a refresh runs in the background, see
+ * {@link #invalidate()} to refresh it right away.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+public final class ScalewayCatalog {
+
+    private static final Logger LOGGER = Logger.getLogger(ScalewayCatalog.class.getName());
+
+    static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(Long.getLong(ScalewayCatalog.class.getName() + ".ttlMinutes", 60));
+
+    /**
+     * How long to wait before trying again to load a catalog that failed to
+     * load.
+     */
+    static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ConcurrentMap<String, ScalewayCatalog> catalogs = new ConcurrentHashMap<String, ScalewayCatalog>();
+
+    /**
+     * A commercial type with its specs, as listed by the products API.
+     */
+    public static final class ServerType {
+
+        private final String name;
+        private final int cores;
+        private final long ramBytes;
+        private final String arch;
+
+        ServerType(String name, int cores, long ramBytes, String arch) {
+            this.name = name;
+            this.cores = cores;
+            this.ramBytes = ramBytes;
+            this.arch = arch;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCores() {
+            return cores;
+        }
+
+        public long getRamBytes() {
+            return ramBytes;
+        }
+
+        public String getArch() {
+            return arch;
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final List<ScalewayImage> images;
+        private final Map<String, ServerType> serverTypes;
+        private final long loadedAt;
+
+        Snapshot(List<ScalewayImage> images, Map<String, ServerType> serverTypes) {
+            this.images = images;
+            this.serverTypes = serverTypes;
+            this.loadedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final String authToken;
+    private final String orgToken;
+    private final ScalewayComputeRegion region;
+
+    private volatile Snapshot snapshot;
+
+    private volatile long failedAt;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private ScalewayCatalog(String authToken, String orgToken, ScalewayComputeRegion region) {
+        this.authToken = authToken;
+        this.orgToken = orgToken;
+        this.region = region;
+    }
+
+    /**
+     * @return the catalog of the account in the region, shared by all the
+     * clouds and forms using the same credentials
+     */
+    public static ScalewayCatalog get(String authToken, String orgToken, ScalewayComputeRegion region) {
+        // tokens are digested so that they aren't kept as map keys
+        String key = Util.getDigestOf(authToken + ":" + orgToken) + ":" + region;
+        ScalewayCatalog catalog = catalogs.get(key);
+        if (catalog == null) {
+            catalogs.putIfAbsent(key, new ScalewayCatalog(authToken, orgToken, region));
+            catalog = catalogs.get(key);
+        }
+        return catalog;
+    }
+
+    /**
+     * Drops every cached catalog.
+     */
+    public static void invalidateAll() {
+        catalogs.clear();
+    }
+
+    /**
+     * Refreshes the catalog in the background, the cached one is served
+     * meanwhile.
+     */
+    public void invalidate() {
+        failedAt = 0;
+        refreshAsync();
+    }
+
+    /**
+     * @return true if the catalog is loaded
+     */
+    boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return true while the catalog is being loaded
+     */
+    boolean isRefreshing() {
+        return refreshing.get();
+    }
+
+    /**
+     * @return the images of the region, none until the catalog is loaded
+     */
+    public List<ScalewayImage> getImages() {
+        Snapshot current = getSnapshot();
+        return current == null ? Collections.<ScalewayImage>emptyList() : current.images;
+    }
+
+    /**
+     * @return the server types offered in the region, none until the catalog
+     * is loaded
+     */
+    public List<ServerType> getServerTypes() {
+        Snapshot current = getSnapshot();
+        return current == null ? Collections.<ServerType>emptyList() : new ArrayList<ServerType>(current.serverTypes.values());
+    }
+
+    /**
+     * @param name a commercial type, e.g. "C2S"
+     * @return its specs, or null if it isn't offered in the region or the
+     * catalog isn't loaded yet
+     */
+    public ServerType getServerType(String name) {
+        Snapshot current = getSnapshot();
+        return current == null ? null : current.serverTypes.get(name);
+    }
+
+    /**
+     * Never calls the API.
+     *
+     * @return the cached catalog, or null while it is unknown
+     */
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            if (System.currentTimeMillis() - failedAt >= RETRY_MILLIS) {
+                refreshAsync();
+            }
+            return null;
+        }
+        if (System.currentTimeMillis() - current.loadedAt > TTL_MILLIS) {
+            refreshAsync();
+        }
+        return current;
+    }
+
+    private void refreshAsync() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot = load();
+                } catch (Exception e) {
+                    failedAt = System.currentTimeMillis();
+                    LOGGER.log(Level.WARNING, "Failed to load the Scaleway catalog of " + region, e);
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private Snapshot load() throws ScalewayException {
+        LOGGER.log(Level.INFO, "Loading the Scaleway catalog of {0}", region);
+        List<ScalewayImage> images = Scaleway.getClient(authToken, orgToken, region).getAllImages();
+
+        Map<String, ServerType> serverTypes = new LinkedHashMap<String, ServerType>();
+        JSONObject products = Scaleway.getRestClient(authToken, region).get("/products/servers").getJSONObject("servers");
+        for (Object name : products.keySet()) {
+            JSONObject product = products.getJSONObject((String) name);
+            serverTypes.put((String) name, new ServerType((String) name, product.optInt("ncpus"),
+                    product.optLong("ram"), product.optString("arch")));
+        }
+
+        return new Snapshot(Collections.unmodifiableList(new ArrayList<ScalewayImage>(images)),
+                Collections.unmodifiableMap(serverTypes));
+    }
+}
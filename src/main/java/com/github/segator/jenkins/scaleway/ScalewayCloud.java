@@ -27,22 +27,30 @@ package com.github.segator.jenkins.scaleway;
 
 import com.google.common.base.Strings;
 import com.github.segator.scaleway.api.ScalewayClient;
-import com.github.segator.scaleway.api.ScalewayFactory;
 import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
 import com.github.segator.scaleway.api.entity.ScalewayCommercialType;
-import com.github.segator.scaleway.api.entity.ScalewayServer;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
 
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Queue;
 import hudson.slaves.NodeProvisioner;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -51,7 +59,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -95,7 +102,28 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
 
     private static final Logger LOGGER = Logger.getLogger(ScalewayCloud.class.getName());
 
-    private final ScalewayClient scalewayClient;
+    private String regionId;
+
+    /**
+     * The region of clouds saved before {@link #regionId} existed, read from
+     * the client they used to serialize, see {@link LegacyRegionConverter}.
+     */
+    @Deprecated
+    private transient ScalewayComputeRegion legacyRegion;
+
+    private transient ScalewayClient scalewayClient;
+
+    private transient ScalewayRestClient restClient;
+
+    private transient ScalewayInventory inventory;
+
+    /**
+     * The last count of the running servers, kept for display so that
+     * showing it doesn't call the API.
+     */
+    private transient volatile RemoteInstanceCount lastRemoteCount;
+
+    private transient volatile long lastRemoteCountMillis;
 
     /**
      * Sometimes nodes can be provisioned very fast (or in parallel), leading to
@@ -148,7 +176,8 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
         } else {
             this.templates = templates;
         }
-        scalewayClient = ScalewayFactory.getScalewayClient(authToken, orgToken, ScalewayComputeRegion.valueOf(regionId));
+        this.regionId = regionId;
+        readResolve();
 
         LOGGER.info("Creating Scaleway cloud with " + this.templates.size() + " templates");
     }
@@ -158,10 +187,18 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
             return false;
         }
 
-        int count = 0;
-
         LOGGER.log(Level.INFO, "cloud limit check");
 
+        return countLocalInstances() >= Math.min(instanceCap, getSlaveInstanceCap());
+    }
+
+    /**
+     * @return the slaves of this cloud, plus the servers reserved by
+     * provisionings still in flight
+     */
+    private int countLocalInstances() {
+        int count = ProvisioningPipeline.countReserved(name, null);
+
         List<Node> nodes = new ArrayList();
         Jenkins instance = Jenkins.getInstance();
         if (instance != null) {
@@ -169,45 +206,93 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
         }
 
         for (Node n : nodes) {
-            if (ScalewayServerName.isServerInstanceOfCloud(n.getDisplayName(), name)) {
+            if (n instanceof Slave && name.equals(((Slave) n).getCloudName())) {
                 count++;
             }
         }
 
-        return count >= Math.min(instanceCap, getSlaveInstanceCap());
+        return count;
+    }
+
+    /**
+     * @return how many more servers this cloud may boot, or
+     * {@link ProvisioningPlanner#UNLIMITED}
+     */
+    public int getAvailableInstances() {
+        if (instanceCap == 0) {
+            return ProvisioningPlanner.UNLIMITED;
+        }
+        return Math.max(0, Math.min(instanceCap, getSlaveInstanceCap()) - countLocalInstances());
+    }
+
+    public boolean isInstanceCapReachedRemote(RemoteInstanceCount remote) {
+        if (instanceCap == 0) {
+            return false;
+        }
+
+        LOGGER.log(Level.INFO, "cloud limit check");
+
+        return remote.isLimitReached();
+    }
+
+    /**
+     * @param template a template of this cloud
+     * @return the breaker tracking the failed provisionings of the template
+     */
+    CircuitBreaker getCircuitBreaker(SlaveTemplate template) {
+        return CircuitBreaker.of(regionId, name, template.getName());
+    }
+
+    ScalewayRestClient getRestClient() {
+        return restClient;
+    }
+
+    ScalewayInventory getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Counts the running servers of this cloud known to Scaleway, stopping as
+     * soon as the cloud instance cap is reached. Servers created before they
+     * were tagged with their cloud are not listed.
+     *
+     * @return the count
+     * @throws ScalewayException if an API call fails
+     */
+    public RemoteInstanceCount countRemoteInstances() throws ScalewayException {
+        int limit = instanceCap == 0 ? ProvisioningPlanner.UNLIMITED : Math.min(instanceCap, getSlaveInstanceCap());
+        RemoteInstanceCount count = new RemoteInstanceCount(name, templates, limit);
+        inventory.visitServers(ScalewayServerName.generateCloudTag(name), count);
+        lastRemoteCount = count;
+        lastRemoteCountMillis = System.currentTimeMillis();
+        return count;
     }
 
-    public boolean isInstanceCapReachedRemote(List<ScalewayServer> servers) {
+    /**
+     * @return the result of the last {@link #countRemoteInstances()}, or null
+     * if the servers were not counted yet
+     */
+    RemoteInstanceCount getLastRemoteCount() {
+        return lastRemoteCount;
+    }
 
-        return false;
-//        int count = 0;
-//
-//        LOGGER.log(Level.INFO, "cloud limit check");
-//
-//        for (ScalewayServer server : servers) {
-//            if (server.isActive() || server.isNew()) {
-//                if (ScalewayServerName.isServerInstanceOfCloud(server.getName(), name)) {
-//                    count ++;
-//                }
-//            }
-//        }
-//
-//        return count >= Math.min(instanceCap, getSlaveInstanceCap());
+    long getLastRemoteCountMillis() {
+        return lastRemoteCountMillis;
     }
 
     private int getSlaveInstanceCap() {
-        int slaveTotalInstanceCap = 0;
+        // summed as a long, large template caps must not wrap around to a reached cap
+        long slaveTotalInstanceCap = 0;
         for (SlaveTemplate t : templates) {
             int slaveInstanceCap = t.getInstanceCap();
             if (slaveInstanceCap == 0) {
-                slaveTotalInstanceCap = Integer.MAX_VALUE;
-                break;
+                return Integer.MAX_VALUE;
             } else {
                 slaveTotalInstanceCap += t.getInstanceCap();
             }
         }
 
-        return slaveTotalInstanceCap;
+        return (int) Math.min(slaveTotalInstanceCap, Integer.MAX_VALUE);
     }
 
     /**
@@ -223,48 +308,50 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
         synchronized (provisionSynchronizor) {
             List<NodeProvisioner.PlannedNode> provisioningNodes = new ArrayList<NodeProvisioner.PlannedNode>();
             try {
-                while (excessWorkload > 0) {
+                excessWorkload -= resumeSuspendedSlaves(label, excessWorkload, provisioningNodes);
 
-                    List<ScalewayServer> servers = scalewayClient.getAllServers();
+                if (excessWorkload > 0) {
+                    RemoteInstanceCount remote = countRemoteInstances();
 
-                    if (isInstanceCapReachedLocal() || isInstanceCapReachedRemote(servers)) {
+                    if (isInstanceCapReachedLocal() || isInstanceCapReachedRemote(remote)) {
                         LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
-                        break;
-                    }
-
-                    final SlaveTemplate template = getTemplateBelowInstanceCap(servers, label);
-                    if (template == null) {
-                        break;
-                    }
-
-                    final String serverName = ScalewayServerName.generateServerName(name, template.getName());
-
-                    provisioningNodes.add(new NodeProvisioner.PlannedNode(serverName, Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                        public Node call() throws Exception {
-                            Slave slave;
-                            synchronized (provisionSynchronizor) {
-                                List<ScalewayServer> servers = scalewayClient.getAllServers();
+                    } else {
+                        List<SlaveTemplate> matchingTemplates = getTemplates(label);
+                        int[] executors = new int[matchingTemplates.size()];
+                        int[] available = new int[matchingTemplates.size()];
+                        boolean[] probes = new boolean[matchingTemplates.size()];
+                        QuotaGovernor quotas = QuotaGovernor.of(this);
+                        for (int i = 0; i < matchingTemplates.size(); i++) {
+                            executors[i] = getEffectiveNumExecutors(matchingTemplates.get(i));
+                            available[i] = Math.min(matchingTemplates.get(i).getAvailableInstances(remote, name),
+                                    quotas.getAvailable(QuotaGovernor.Demand.of(matchingTemplates.get(i))));
+
+                            // a failing template only gets a single probe server once its backoff elapsed
+                            CircuitBreaker breaker = getCircuitBreaker(matchingTemplates.get(i));
+                            if (!breaker.isClosed()) {
+                                probes[i] = available[i] > 0 && breaker.tryProbe();
+                                available[i] = probes[i] ? 1 : 0;
+                            }
+                        }
 
-                                if (isInstanceCapReachedLocal() || isInstanceCapReachedRemote(servers)) {
-                                    LOGGER.log(Level.INFO, "Instance cap reached, not provisioning.");
-                                    return null;
+                        int[] counts = ProvisioningPlanner.plan(excessWorkload, executors, available, getAvailableInstances());
+                        for (int i = 0; i < counts.length; i++) {
+                            int provisioned = 0;
+                            while (provisioned < counts[i]) {
+                                // other clouds of the organization may have taken the quota meanwhile
+                                NodeProvisioner.PlannedNode planned = provisionNode(matchingTemplates.get(i), quotas,
+                                        probes[i] && provisioned == 0);
+                                if (planned == null) {
+                                    break;
                                 }
-                                slave = template.provision(serverName, name, orgToken, scalewayClient, privateKey, servers);
+                                provisioningNodes.add(planned);
+                                provisioned++;
                             }
-                            Jenkins instance = Jenkins.getInstance();
-                            if (instance != null) {
-                                instance.addNode(slave);
+                            if (probes[i] && provisioned == 0) {
+                                getCircuitBreaker(matchingTemplates.get(i)).releaseProbe();
                             }
-                            Computer slaveComputer = slave.toComputer();
-                            if (slaveComputer != null) {
-                                slaveComputer.connect(false).get();
-                            }
-
-                            return slave;
                         }
-                    }), template.getNumExecutors()));
-
-                    excessWorkload -= template.getNumExecutors();
+                    }
                 }
 
                 LOGGER.info("Provisioning " + provisioningNodes.size() + " Scaleway nodes");
@@ -272,7 +359,122 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
                 return provisioningNodes;
             } catch (Exception e) {
                 LOGGER.log(Level.WARNING, e.getMessage(), e);
-                return Collections.emptyList();
+                return provisioningNodes;
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding {@link #provisionSynchronizor}, as the
+     * pipeline reserves its server right away.
+     *
+     * @param probe true if the server is the probe of the circuit breaker of
+     * the template
+     * @return the planned node, or null if the server doesn't fit in the
+     * quotas of the organization
+     */
+    private NodeProvisioner.PlannedNode provisionNode(SlaveTemplate template, QuotaGovernor quotas, boolean probe) {
+        QuotaGovernor.Reservation reservation = quotas.tryReserve(QuotaGovernor.Demand.of(template));
+        if (reservation == null) {
+            LOGGER.log(Level.INFO, "Scaleway quotas reached, not provisioning template {0}", template.getName());
+            return null;
+        }
+        String serverName = ScalewayServerName.generateServerName(name, template.getName());
+        int executors = getEffectiveNumExecutors(template);
+        Tracing.startAgent(serverName, name, template.getName()).setAttribute("scaleway.executors", executors);
+        return new NodeProvisioner.PlannedNode(serverName, ProvisioningPipeline.start(this, template, serverName, reservation, probe),
+                executors);
+    }
+
+    /**
+     * Only looks the server type up when the template needs it, the catalog
+     * is cached so this rarely calls the API.
+     */
+    private int getEffectiveNumExecutors(SlaveTemplate template) {
+        return template.getEffectiveNumExecutors(template.isAutoExecutors() ? getServerType(template) : null);
+    }
+
+    /**
+     * Powers suspended slaves matching the label back on before any new
+     * server gets created, as resuming skips creation and the init script.
+     *
+     * @param label slave label
+     * @param excessWorkload excess workload
+     * @param provisioningNodes receives a planned node for each resumed slave
+     * @return the number of executors being resumed
+     */
+    private int resumeSuspendedSlaves(Label label, int excessWorkload, List<NodeProvisioner.PlannedNode> provisioningNodes) {
+        int resumedExecutors = 0;
+        for (Slave slave : getSuspendedSlaves(label)) {
+            if (resumedExecutors >= excessWorkload) {
+                break;
+            }
+            SlaveTemplate template = slave.getTemplate();
+            if (template == null) {
+                // the pipeline waits for the server as its template says, a removed one can't be resumed
+                continue;
+            }
+            if (!slave.startResuming()) {
+                continue;
+            }
+
+            LOGGER.log(Level.INFO, "Resuming suspended slave {0}", slave.getNodeName());
+            provisioningNodes.add(new NodeProvisioner.PlannedNode(slave.getNodeName(),
+                    ProvisioningPipeline.resume(this, template, slave), slave.getNumExecutors()));
+            resumedExecutors += slave.getNumExecutors();
+        }
+
+        return resumedExecutors;
+    }
+
+    /**
+     * @param label slave label
+     * @return the suspended slaves of this cloud which can run the label
+     */
+    public List<Slave> getSuspendedSlaves(Label label) {
+        List<Slave> slaves = new ArrayList<Slave>();
+        Jenkins instance = Jenkins.getInstance();
+        if (instance == null) {
+            return slaves;
+        }
+
+        for (Node n : instance.getNodes()) {
+            if (!(n instanceof Slave) || !name.equals(((Slave) n).getCloudName())) {
+                continue;
+            }
+            Slave slave = (Slave) n;
+            if (!slave.isSuspended() || slave.isResuming()) {
+                continue;
+            }
+            if (label == null ? slave.getMode() == Node.Mode.NORMAL : label.matches(slave)) {
+                slaves.add(slave);
+            }
+        }
+
+        return slaves;
+    }
+
+    /**
+     * Asks Jenkins to review the provisioning of the labels the given node
+     * could serve right away, when builds for them are still queued, instead of
+     * waiting for the next periodic review.
+     *
+     * @param node a node that is going away or no longer accepts tasks
+     */
+    static void suggestProvisioningFor(Node node) {
+        Jenkins instance = Jenkins.getInstance();
+        if (instance == null) {
+            return;
+        }
+
+        for (Queue.BuildableItem item : instance.getQueue().getBuildableItems()) {
+            Label label = item.getAssignedLabel();
+            if (label == null) {
+                if (node.getMode() == Node.Mode.NORMAL) {
+                    instance.unlabeledNodeProvisioner.suggestReviewNow();
+                }
+            } else if (label.matches(node)) {
+                label.nodeProvisioner.suggestReviewNow();
             }
         }
     }
@@ -281,9 +483,13 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
     public boolean canProvision(Label label) {
         synchronized (provisionSynchronizor) {
             try {
+                if (!getSuspendedSlaves(label).isEmpty()) {
+                    return true;
+                }
+
                 SlaveTemplate template = getTemplateBelowInstanceCapLocal(label);
                 if (template == null) {
-                    LOGGER.log(Level.INFO, "No slaves could provision for label " + label.getDisplayName() + " because they either didn't support such a label or have reached the instance cap.");
+                    LOGGER.log(Level.INFO, "No slaves could provision for label " + label.getDisplayName() + " because they either didn't support such a label, have reached the instance cap or keep failing to provision.");
                     return false;
                 }
 
@@ -316,28 +522,12 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
         return matchingTemplates;
     }
 
-    public SlaveTemplate getTemplateBelowInstanceCap(List<ScalewayServer> servers, Label label) {
-        List<SlaveTemplate> matchingTempaltes = getTemplates(label);
-
-        try {
-            for (SlaveTemplate t : matchingTempaltes) {
-                if (!t.isInstanceCapReachedLocal(name) && !t.isInstanceCapReachedRemote(servers, name)) {
-                    return t;
-                }
-            }
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, e.getMessage(), e);
-        }
-
-        return null;
-    }
-
     public SlaveTemplate getTemplateBelowInstanceCapLocal(Label label) {
         List<SlaveTemplate> matchingTempaltes = getTemplates(label);
 
         try {
             for (SlaveTemplate t : matchingTempaltes) {
-                if (!t.isInstanceCapReachedLocal(name)) {
+                if (!t.isInstanceCapReachedLocal(name) && getCircuitBreaker(t).isAvailable()) {
                     return t;
                 }
             }
@@ -366,7 +556,76 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
     
     
     public String getRegionId() {
-        return scalewayClient.getRegion().toString();
+        return regionId;
+    }
+
+    protected Object readResolve() {
+        if (regionId == null) {
+            if (legacyRegion != null) {
+                regionId = legacyRegion.toString();
+            } else {
+                regionId = ScalewayComputeRegion.values()[0].toString();
+                LOGGER.log(Level.WARNING, "No region found for cloud {0}, using {1}", new Object[]{name, regionId});
+            }
+        }
+        scalewayClient = Scaleway.getClient(authToken, orgToken, ScalewayComputeRegion.valueOf(regionId));
+        restClient = Scaleway.getRestClient(authToken, ScalewayComputeRegion.valueOf(regionId));
+        inventory = new ScalewayInventory(restClient);
+        return this;
+    }
+
+    /**
+     * Clouds used to serialize their {@link ScalewayClient}, which held the
+     * region. Its element is now read into {@link #legacyRegion}.
+     */
+    @Initializer(before = InitMilestone.PLUGINS_STARTED)
+    public static void addLegacyRegionAlias() {
+        Jenkins.XSTREAM2.aliasField("scalewayClient", ScalewayCloud.class, "legacyRegion");
+        Jenkins.XSTREAM2.registerLocalConverter(ScalewayCloud.class, "legacyRegion", new LegacyRegionConverter());
+    }
+
+    /**
+     * Finds the region among the values of a serialized client, whatever the
+     * client implementation and its field names.
+     */
+    private static final class LegacyRegionConverter implements Converter {
+
+        @Override
+        public boolean canConvert(Class type) {
+            return type == ScalewayComputeRegion.class;
+        }
+
+        @Override
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            // the legacy field is transient, it is never written
+        }
+
+        @Override
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            return findRegion(reader);
+        }
+
+        private static ScalewayComputeRegion findRegion(HierarchicalStreamReader reader) {
+            ScalewayComputeRegion region = null;
+            while (reader.hasMoreChildren()) {
+                reader.moveDown();
+                ScalewayComputeRegion found = reader.hasMoreChildren() ? findRegion(reader) : toRegion(reader.getValue());
+                if (region == null) {
+                    region = found;
+                }
+                reader.moveUp();
+            }
+            return region;
+        }
+
+        private static ScalewayComputeRegion toRegion(String value) {
+            for (ScalewayComputeRegion region : ScalewayComputeRegion.values()) {
+                if (region.name().equals(value.trim())) {
+                    return region;
+                }
+            }
+            return null;
+        }
     }
 
     public String getPrivateKey() {
@@ -381,6 +640,29 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
         return Collections.unmodifiableList(templates);
     }
 
+    /**
+     * @param templateName the name of a template
+     * @return the template, or null if this cloud has no such template
+     */
+    public SlaveTemplate getTemplate(String templateName) {
+        for (SlaveTemplate template : templates) {
+            if (template.getName().equals(templateName)) {
+                return template;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param template a template of this cloud
+     * @return the specs of the server size of the template, or null if they
+     * are not known yet
+     */
+    public ScalewayCatalog.ServerType getServerType(SlaveTemplate template) {
+        return ScalewayCatalog.get(authToken, orgToken, ScalewayComputeRegion.valueOf(regionId))
+                .getServerType(template.getSizeId());
+    }
+
     public Integer getTimeoutMinutes() {
         return timeoutMinutes;
     }
@@ -400,7 +682,7 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
         public FormValidation doTestConnection(@QueryParameter("authToken") final String authToken, @QueryParameter("orgToken") final String orgToken,
                 @QueryParameter("regionId") final String regionId) {
             try {
-                ScalewayClient client = ScalewayFactory.getScalewayClient(authToken, authToken,ScalewayComputeRegion.valueOf(regionId));
+                ScalewayClient client = Scaleway.getClient(authToken, authToken,ScalewayComputeRegion.valueOf(regionId));
                 client.getAllOrganizations();
                 return FormValidation.ok("Scaleway API request succeeded.");
             } catch (Exception e) {
@@ -409,11 +691,22 @@ public class ScalewayCloud extends hudson.slaves.Cloud {
             }
         }
 
+        @RequirePOST
+        public FormValidation doRefreshCatalog(@QueryParameter("authToken") final String authToken, @QueryParameter("orgToken") final String orgToken,
+                @QueryParameter("regionId") final String regionId) {
+            Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+            if (Strings.isNullOrEmpty(authToken) || Strings.isNullOrEmpty(regionId)) {
+                return FormValidation.error("Auth token and region must be set");
+            }
+            ScalewayCatalog.get(authToken, orgToken, ScalewayComputeRegion.valueOf(regionId)).invalidate();
+            return FormValidation.ok("Images and sizes are being reloaded, save and reopen the page to see them.");
+        }
+
         public FormValidation doCheckName(@QueryParameter String name) {
             if (Strings.isNullOrEmpty(name)) {
                 return FormValidation.error("Must be set");
             } else if (!ScalewayServerName.isValidCloudName(name)) {
-                return FormValidation.error("Must consist of A-Z, a-z, 0-9 and . symbols");
+                return FormValidation.error("Must consist of A-Z, a-z, 0-9 and . _ - symbols");
             } else {
                 return FormValidation.ok();
             }
@@ -25,11 +25,8 @@
  */
 package com.github.segator.jenkins.scaleway;
 
-import com.google.common.base.Strings;
-import com.github.segator.scaleway.api.ScalewayClient;
-import com.github.segator.scaleway.api.ScalewayFactory;
-import com.github.segator.scaleway.api.entity.ScalewayServer;
 import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.SCPClient;
 import com.trilead.ssh2.Session;
@@ -51,12 +48,10 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static java.lang.String.format;
-import static java.lang.String.format;
-
 /**
  * The {@link ScalewayComputerLauncher} is responsible for:
  *
@@ -156,8 +151,11 @@ public class ScalewayComputerLauncher extends hudson.slaves.ComputerLauncher {
             boolean successful = false;
             Slave slave = computer.getNode();
             if (slave != null) {
+                Tracing.Span launch = Tracing.getAgent(computer.getName()).startChild("launch");
+                Tracing.Span phase = launch.startChild("ssh");
                 try {
                     conn = connectToSsh(computer, logger);
+                    phase.end();
 
                     cleanupConn = conn;
 
@@ -170,14 +168,36 @@ public class ScalewayComputerLauncher extends hudson.slaves.ComputerLauncher {
 
                         final SCPClient scp = conn.createSCPClient();
 
-                        if (!runInitScript(computer, logger, conn, scp)) {
-                            return;
-                        }
+                        if (slave.isBootstrapped()) {
+                            logger.println("Server already bootstrapped, skipping the init script and the Java check");
+                        } else {
+                            phase = launch.startChild("storage");
+                            if (!setUpStorage(computer, logger, conn, scp)) {
+                                phase.end(new IOException("Storage setup failed"));
+                                launch.end(new IOException("Storage setup failed"));
+                                return;
+                            }
+                            phase.end();
 
-                        if (!installJava(logger, conn)) {
-                            return;
+                            phase = launch.startChild("init script");
+                            if (!runInitScript(computer, logger, conn, scp)) {
+                                phase.end(new IOException("Init script failed"));
+                                launch.end(new IOException("Init script failed"));
+                                return;
+                            }
+                            phase.end();
+
+                            phase = launch.startChild("java");
+                            if (!installJava(logger, conn)) {
+                                phase.end(new IOException("Java could not be installed"));
+                                launch.end(new IOException("Java could not be installed"));
+                                return;
+                            }
+                            phase.end();
+                            slave.markBootstrapped();
                         }
 
+                        phase = launch.startChild("agent");
                         logger.println("Copying slave.jar");
                         scp.put(instance.getJnlpJars("slave.jar").readFully(), "slave.jar", "/tmp");
                         String jvmOpts = Util.fixNull(slave.getJvmOpts());
@@ -194,8 +214,12 @@ public class ScalewayComputerLauncher extends hudson.slaves.ComputerLauncher {
                         });
 
                         successful = true;
+                        phase.end();
+                        launch.end();
                     }
                 } catch (Exception e) {
+                    phase.end(e);
+                    launch.end(e);
                     LOGGER.log(Level.WARNING, e.getMessage(), e);
                     try {
                         instance.removeNode(slave);
@@ -215,6 +239,37 @@ public class ScalewayComputerLauncher extends hudson.slaves.ComputerLauncher {
         }
     }
 
+    /**
+     * Formats and mounts the extra volumes and the workspace of the template,
+     * see {@link WorkspaceStorage}.
+     */
+    private boolean setUpStorage(final Computer computer, final PrintStream logger, final Connection conn, final SCPClient scp)
+            throws IOException, InterruptedException {
+        Slave slave = computer.getNode();
+        ScalewayCloud cloud = computer.getCloud();
+        SlaveTemplate template = slave == null ? null : slave.getTemplate();
+        if (template == null || cloud == null) {
+            return true;
+        }
+
+        WorkspaceStorage storage = template.getWorkspaceStorage(cloud.getServerType(template));
+        if (storage.isDefault()) {
+            return true;
+        }
+        if (conn.exec("test -e ~/.scaleway-storage", logger) == 0) {
+            return true;
+        }
+
+        logger.println("Preparing the volumes and the workspace");
+        scp.put(storage.getSetupScript(slave.getRemoteFS(), computer.getRemoteAdmin()).getBytes("UTF-8"), "storage.sh", "/tmp", "0700");
+        int exitStatus = conn.exec(buildUpCommand(computer, "/tmp/storage.sh") + " && touch ~/.scaleway-storage", logger);
+        if (exitStatus != 0) {
+            logger.println("storage setup failed: exit code=" + exitStatus);
+            return false;
+        }
+        return true;
+    }
+
     private boolean runInitScript(final Computer computer, final PrintStream logger, final Connection conn, final SCPClient scp)
             throws IOException, InterruptedException {
         Slave slave = computer.getNode();
@@ -275,70 +330,34 @@ public class ScalewayComputerLauncher extends hudson.slaves.ComputerLauncher {
         return true;
     }
 
-    private Connection connectToSsh(Computer computer, PrintStream logger) throws ScalewayException {
+    /**
+     * Waits for the server to accept SSH connections, see
+     * {@link ServerReadiness}, then connects to it.
+     */
+    private Connection connectToSsh(Computer computer, PrintStream logger) throws Exception {
         ScalewayCloud scalewayCloud = computer.getCloud();
         Slave slave = computer.getNode();
         if (scalewayCloud == null || slave==null) {
             throw new ScalewayException(new NullPointerException());
         }
-        
-        
-        ScalewayClient scaleway = ScalewayFactory.getScalewayClient(scalewayCloud.getAuthToken(), scalewayCloud.getOrgToken(),scalewayCloud.getScalewayClient().getRegion());
-        final long timeout = TimeUnit2.MINUTES.toMillis(scalewayCloud.getTimeoutMinutes());
-        final long startTime = System.currentTimeMillis();
-        final int sleepTime = 10;
-
-        long waitTime;
-
-        while ((waitTime = System.currentTimeMillis() - startTime) < timeout) {
-
-            // Hack to fetch this each time through the loop to get the latest information.
-            ScalewayServer server = scaleway.getServer(slave.getServerId());
 
-            if (isServerStarting(server)) {
-                logger.println("Waiting for server to enter ACTIVE state. Sleeping " + sleepTime + " seconds.");
-            } else {
-                try {
-                    final String host = getIpAddress(computer);
-
-                    if (Strings.isNullOrEmpty(host) || "0.0.0.0".equals(host)) {
-                        logger.println("No ip address yet, your host is most likely waiting for an ip address.");
-                    } else {
-                        int port = computer.getSshPort();
-
-                        Connection conn = getServerConnection(host, port, logger);
-                        if (conn != null) {
-                            return conn;
-                        }
-                    }
-                } catch (IOException e) {
-                    // Ignore, we'll retry.
-                }
-                logger.println("Waiting for SSH to come up. Sleeping " + sleepTime + " seconds.");
-            }
-
-            sleep(sleepTime);
+        int port = computer.getSshPort();
+        logger.println("Waiting for server " + slave.getServerId() + " to accept SSH connections on port " + port);
+        SlaveTemplate template = slave.getTemplate();
+        boolean privateAddress = template != null && template.getNetworkingMode().isPrivate();
+        String host;
+        try {
+            host = ServerReadiness.watch(scalewayCloud.getRestClient(), slave.getServerId(), port, privateAddress,
+                    scalewayCloud.getTimeoutMinutes()).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
         }
 
-        throw new RuntimeException(format(
-                "Timed out after %d seconds of waiting for ssh to become available (max timeout configured is %s)",
-                waitTime / 1000,
-                timeout / 1000));
-    }
-
-    private static boolean isServerStarting(final ScalewayServer server) {
-
-        switch (server.getState()) {
-            case STARTING:
-            case STOPPED:
-                return true;
-
-            case RUNNING:
-                return false;
-
-            default:
-                throw new IllegalStateException("Server has unexpected status: " + server.getState());
+        Connection conn = getServerConnection(host, port, logger);
+        if (conn == null) {
+            throw new IOException("Timed out connecting to " + host + " on port " + port);
         }
+        return conn;
     }
 
     private Connection getServerConnection(String host, int port, PrintStream logger) throws IOException {
@@ -353,21 +372,11 @@ public class ScalewayComputerLauncher extends hudson.slaves.ComputerLauncher {
         return conn;
     }
 
-    private static String getIpAddress(Computer computer) throws ScalewayException {
-        ScalewayServer instance = computer.updateInstanceDescription();
-        return instance.getPublicIp().getAddress();
-    }
-
-    private int waitCompletion(Session session) throws InterruptedException {
+    private int waitCompletion(Session session) {
         // I noticed that the exit status delivery often gets delayed. Wait up to 1 sec.
-        for (int i = 0; i < 10; i++) {
-            Integer r = session.getExitStatus();
-            if (r != null) {
-                return r;
-            }
-            Thread.sleep(100);
-        }
-        return -1;
+        session.waitForCondition(ChannelCondition.EXIT_STATUS, 1000);
+        Integer r = session.getExitStatus();
+        return r != null ? r : -1;
     }
 
     protected String buildUpCommand(Computer computer, String command) {
@@ -377,14 +386,6 @@ public class ScalewayComputerLauncher extends hudson.slaves.ComputerLauncher {
         return command;
     }
 
-    private static void sleep(int seconds) {
-        try {
-            Thread.sleep(seconds * 1000);
-        } catch (InterruptedException e) {
-            // Ignore
-        }
-    }
-
     private String getUtcDate(Date date) {
         SimpleDateFormat utcFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
         utcFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
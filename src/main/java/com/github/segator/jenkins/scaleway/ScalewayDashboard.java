@@ -0,0 +1,356 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.ManagementLink;
+import hudson.model.Node;
+import hudson.slaves.Cloud;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * The {@link ScalewayDashboard} shows what the plugin is doing, under
+ * <em>Manage Jenkins</em>: the slaves and provisionings of each cloud, the
+ * instance cap usage of each template, the servers waiting to be destroyed
+ * and the last failed provisionings.
+ *
+ * <p>
+ * The page is rendered from the state the plugin already keeps in memory and
+ * never calls the Scaleway API. Remote server counts are the ones of the
+ * last provisioning round, with their age. The nodes are walked once per
+ * page, whatever the number of templates.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+@Extension
+public class ScalewayDashboard extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "computer.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Scaleway";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Slaves, provisionings and failures of the Scaleway clouds.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "scaleway";
+    }
+
+    /**
+     * @return how many servers are waiting to be destroyed
+     */
+    public int getPendingDestroyCount() {
+        return Scaleway.getPendingDestroyCount();
+    }
+
+    public List<CloudStatus> getClouds() {
+        Jenkins instance = Jenkins.getInstance();
+        if (instance == null) {
+            return Collections.emptyList();
+        }
+        Map<String, CloudStatus> byName = new HashMap<String, CloudStatus>();
+        List<CloudStatus> clouds = new ArrayList<CloudStatus>();
+        for (Cloud cloud : instance.clouds) {
+            if (cloud instanceof ScalewayCloud) {
+                CloudStatus status = new CloudStatus((ScalewayCloud) cloud);
+                byName.put(cloud.name, status);
+                clouds.add(status);
+            }
+        }
+        for (Node node : instance.getNodes()) {
+            if (node instanceof Slave) {
+                CloudStatus status = byName.get(((Slave) node).getCloudName());
+                if (status != null) {
+                    status.add((Slave) node);
+                }
+            }
+        }
+        for (ProvisioningPipeline pipeline : ProvisioningPipeline.getInFlight()) {
+            CloudStatus status = byName.get(pipeline.getCloudName());
+            if (status != null) {
+                status.add(pipeline);
+            }
+        }
+        return clouds;
+    }
+
+    public List<FailureStatus> getRecentFailures() {
+        List<FailureStatus> failures = new ArrayList<FailureStatus>();
+        for (ProvisioningPipeline.Failure failure : ProvisioningPipeline.getRecentFailures()) {
+            failures.add(new FailureStatus(failure));
+        }
+        return failures;
+    }
+
+    private static String ago(long timeMillis) {
+        return Util.getPastTimeString(Math.max(0, System.currentTimeMillis() - timeMillis));
+    }
+
+    public static final class CloudStatus {
+
+        private final ScalewayCloud cloud;
+        private final RemoteInstanceCount remote;
+        private final long remoteMillis;
+        private final List<TemplateStatus> templates = new ArrayList<TemplateStatus>();
+        private final Map<String, TemplateStatus> byName = new HashMap<String, TemplateStatus>();
+        private final List<SlaveStatus> slaves = new ArrayList<SlaveStatus>();
+        private final List<ProvisioningStatus> provisionings = new ArrayList<ProvisioningStatus>();
+
+        CloudStatus(ScalewayCloud cloud) {
+            this.cloud = cloud;
+            this.remote = cloud.getLastRemoteCount();
+            this.remoteMillis = cloud.getLastRemoteCountMillis();
+            for (SlaveTemplate template : cloud.getTemplates()) {
+                TemplateStatus status = new TemplateStatus(cloud, template, remote);
+                templates.add(status);
+                byName.put(template.getName(), status);
+            }
+        }
+
+        void add(Slave slave) {
+            slaves.add(new SlaveStatus(slave));
+            TemplateStatus template = byName.get(slave.getTemplateName());
+            if (template != null) {
+                template.local++;
+            }
+        }
+
+        void add(ProvisioningPipeline pipeline) {
+            provisionings.add(new ProvisioningStatus(pipeline));
+            TemplateStatus template = byName.get(pipeline.getTemplateName());
+            if (template != null) {
+                template.provisioning++;
+            }
+        }
+
+        public String getName() {
+            return cloud.getName();
+        }
+
+        public String getRegionId() {
+            return cloud.getRegionId();
+        }
+
+        public String getInstanceCap() {
+            return cloud.getInstanceCap() == 0 ? "unlimited" : String.valueOf(cloud.getInstanceCap());
+        }
+
+        public int getLocalCount() {
+            return slaves.size() + provisionings.size();
+        }
+
+        /**
+         * @return the running servers counted by the last provisioning round,
+         * or null if they were not counted yet
+         */
+        public String getRemoteCount() {
+            if (remote == null) {
+                return null;
+            }
+            return remote.isLimitReached() ? remote.getTotal() + "+" : String.valueOf(remote.getTotal());
+        }
+
+        public String getRemoteCountAge() {
+            return ago(remoteMillis);
+        }
+
+        public List<TemplateStatus> getTemplates() {
+            return templates;
+        }
+
+        public List<SlaveStatus> getSlaves() {
+            return slaves;
+        }
+
+        public List<ProvisioningStatus> getProvisionings() {
+            return provisionings;
+        }
+    }
+
+    public static final class TemplateStatus {
+
+        private final SlaveTemplate template;
+        private final RemoteInstanceCount remote;
+        private final String breakerState;
+        private int local;
+        private int provisioning;
+
+        TemplateStatus(ScalewayCloud cloud, SlaveTemplate template, RemoteInstanceCount remote) {
+            this.template = template;
+            this.remote = remote;
+            this.breakerState = cloud.getCircuitBreaker(template).getState().name();
+        }
+
+        public String getName() {
+            return template.getName();
+        }
+
+        public String getInstanceCap() {
+            return template.getInstanceCap() == 0 ? "unlimited" : String.valueOf(template.getInstanceCap());
+        }
+
+        public int getLocalCount() {
+            return local + provisioning;
+        }
+
+        public int getProvisioningCount() {
+            return provisioning;
+        }
+
+        public String getRemoteCount() {
+            return remote == null ? null : String.valueOf(remote.getCount(template.getName()));
+        }
+
+        public String getBreakerState() {
+            return breakerState;
+        }
+    }
+
+    public static final class SlaveStatus {
+
+        private final String name;
+        private final String serverId;
+        private final String templateName;
+        private final String state;
+        private final long startTimeMillis;
+
+        SlaveStatus(Slave slave) {
+            name = slave.getNodeName();
+            serverId = slave.getServerId();
+            templateName = slave.getTemplateName();
+            startTimeMillis = slave.getStartTimeMillis();
+            hudson.model.Computer computer = slave.toComputer();
+            if (slave.isSuspended()) {
+                state = slave.isResuming() ? "resuming" : "suspended";
+            } else if (computer == null) {
+                state = "no computer";
+            } else if (computer.isOnline()) {
+                state = computer.isIdle() ? "idle" : "busy";
+            } else {
+                state = computer.isConnecting() ? "connecting" : "offline";
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getServerId() {
+            return serverId;
+        }
+
+        public String getTemplateName() {
+            return templateName;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getUptime() {
+            return ago(startTimeMillis);
+        }
+    }
+
+    public static final class ProvisioningStatus {
+
+        private final String serverName;
+        private final String templateName;
+        private final String stage;
+        private final long startMillis;
+
+        ProvisioningStatus(ProvisioningPipeline pipeline) {
+            serverName = pipeline.getServerName();
+            templateName = pipeline.getTemplateName();
+            stage = pipeline.getStage().name();
+            startMillis = pipeline.getStartMillis();
+        }
+
+        public String getServerName() {
+            return serverName;
+        }
+
+        public String getTemplateName() {
+            return templateName;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public String getDuration() {
+            return ago(startMillis);
+        }
+    }
+
+    public static final class FailureStatus {
+
+        private final ProvisioningPipeline.Failure failure;
+
+        FailureStatus(ProvisioningPipeline.Failure failure) {
+            this.failure = failure;
+        }
+
+        public String getAge() {
+            return ago(failure.getTimeMillis());
+        }
+
+        public String getCloudName() {
+            return failure.getCloudName();
+        }
+
+        public String getTemplateName() {
+            return failure.getTemplateName();
+        }
+
+        public String getServerName() {
+            return failure.getServerName();
+        }
+
+        public String getStage() {
+            return failure.getStage().name();
+        }
+
+        public String getMessage() {
+            return failure.getMessage();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+import com.github.segator.scaleway.api.entity.ScalewayState;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * The {@link ScalewayInventory} lists the servers carrying a given tag,
+ * letting Scaleway do the filtering. The plugin tags every server with its
+ * cloud, so that inventory and cap checks cost as much as the servers Jenkins
+ * owns rather than the whole organization.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+public class ScalewayInventory {
+
+    /**
+     * The largest page the Scaleway API returns.
+     */
+    static final int PAGE_SIZE = 100;
+
+    private final ScalewayRestClient client;
+
+    ScalewayInventory(ScalewayRestClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Fetches a single page of tagged servers.
+     *
+     * @param tag the tag the servers must carry
+     * @param page the page number, starting at 1
+     * @param perPage the page size
+     * @return the servers of the page, less than perPage on the last one
+     * @throws ScalewayException if the API call fails
+     */
+    protected List<ScalewayServer> getServers(String tag, int page, int perPage) throws ScalewayException {
+        JSONArray array;
+        try {
+            array = client.get("/servers?tags=" + URLEncoder.encode(tag, "UTF-8") + "&page=" + page + "&per_page=" + perPage)
+                    .getJSONArray("servers");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        List<ScalewayServer> servers = new ArrayList<ScalewayServer>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            servers.add(toServer(array.getJSONObject(i)));
+        }
+        return servers;
+    }
+
+    /**
+     * Receives the servers as their page arrives, only a single page is held
+     * in memory at any time.
+     */
+    public interface Visitor {
+
+        /**
+         * @param server a server carrying the tag
+         * @return false to stop listing, e.g. once the answer is known
+         * @throws ScalewayException to abort the listing
+         */
+        boolean visit(ScalewayServer server) throws ScalewayException;
+    }
+
+    /**
+     * Lists the servers carrying the tag page by page, until the visitor
+     * stops or the last page is reached.
+     *
+     * @param tag the tag the servers must carry
+     * @param visitor receives the servers
+     * @throws ScalewayException if an API call fails
+     */
+    public void visitServers(String tag, Visitor visitor) throws ScalewayException {
+        for (int page = 1; ; page++) {
+            List<ScalewayServer> pageServers = getServers(tag, page, PAGE_SIZE);
+            for (ScalewayServer server : pageServers) {
+                if (!visitor.visit(server)) {
+                    return;
+                }
+            }
+            if (pageServers.size() < PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    static ScalewayServer toServer(JSONObject json) {
+        ScalewayServer server = new ScalewayServer();
+        server.setId(json.getString("id"));
+        server.setName(json.getString("name"));
+        server.setState(toState(json.optString("state")));
+        List<String> tags = new ArrayList<String>();
+        JSONArray array = json.optJSONArray("tags");
+        if (array != null) {
+            for (int i = 0; i < array.size(); i++) {
+                tags.add(array.getString(i));
+            }
+        }
+        server.setTags(tags);
+        return server;
+    }
+
+    /**
+     * @return the state matching the API one, e.g. "stopped in place", or
+     * null if the SDK doesn't know it
+     */
+    static ScalewayState toState(String state) {
+        String name = state.replace(' ', '_');
+        for (ScalewayState s : ScalewayState.values()) {
+            if (s.name().equalsIgnoreCase(name)) {
+                return s;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ *
+ * Calls the Scaleway compute API directly, for the features the Scaleway SDK
+ * doesn't cover. Paths are relative to the API endpoint of the region, e.g.
+ * {@code /servers?tags=jenkins-slave}, or absolute URLs for the other
+ * Scaleway APIs, e.g. the account API.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+interface ScalewayRestClient {
+
+    /**
+     * The cause of the {@link ScalewayException} thrown when the resource
+     * doesn't exist.
+     */
+    final class NotFoundException extends IOException {
+
+        NotFoundException(String message) {
+            super(message);
+        }
+
+        /**
+         * @return true if the failure was a 404
+         */
+        static boolean isNotFound(ScalewayException e) {
+            return e.getCause() instanceof NotFoundException;
+        }
+    }
+
+    /**
+     * @param path the path of the resource, including the query string
+     * @return the JSON response
+     * @throws ScalewayException if the request fails or doesn't return 200
+     */
+    JSONObject get(String path) throws ScalewayException;
+
+    /**
+     * @param path the path of the resource
+     * @param body the JSON request body
+     * @return the JSON response
+     * @throws ScalewayException if the request fails or doesn't return 200 or
+     * 201
+     */
+    JSONObject post(String path, JSONObject body) throws ScalewayException;
+
+    /**
+     * @param path the path of the resource
+     * @throws ScalewayException if the request fails or doesn't return 204
+     */
+    void delete(String path) throws ScalewayException;
+}
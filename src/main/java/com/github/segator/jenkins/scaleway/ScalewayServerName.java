@@ -22,50 +22,178 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  */
-
 package com.github.segator.jenkins.scaleway;
 
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * Names and tags of the servers created by the plugin.
+ *
+ * <p>
+ * Servers are named {@code jenkins-<cloud>-<template>-<uuid>} and tagged with
+ * the cloud and template they belong to. The tags are authoritative, names
+ * are only parsed for servers created before the tags existed. Names couldn't
+ * contain '-' back then, and a name containing it makes the parsing
+ * ambiguous, e.g. {@code jenkins-a-b-t-<uuid>} could be cloud {@code a} or
+ * {@code a-b}, so such names never match. All the checks run on every cap
+ * check, so they don't allocate.
+ */
 public class ScalewayServerName {
-    private static final String PREFIX = "jenkins";
-    private static final String CLOUD_REGEX = "([a-zA-Z0-9\\.]+)";
-    private static final String SLAVE_REGEX = "([a-zA-Z0-9\\.]+)";
-    private static final String UUID_REGEX = "\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}";
-
-    private static final String SCALE_REGEX = PREFIX + "-" + CLOUD_REGEX + "-" + SLAVE_REGEX + "-" + UUID_REGEX;
-
-    private static final Pattern CLOUD_PATTERN = Pattern.compile("^" + CLOUD_REGEX + "$");
-    private static final Pattern SLAVE_PATTERN = Pattern.compile("^" + SLAVE_REGEX + "$");
-    private static final Pattern SCALE_PATTERN = Pattern.compile("^" + SCALE_REGEX + "$");
+    private static final String PREFIX = "jenkins-";
+    private static final int UUID_LENGTH = 36;
 
+    public static final String SLAVE_TAG = "jenkins-slave";
+    private static final String CLOUD_TAG = "jenkins-cloud=";
+    private static final String TEMPLATE_TAG = "jenkins-template=";
 
     private ScalewayServerName() {
         throw new AssertionError();
     }
 
     public static boolean isValidCloudName(final String cloudName) {
-        return CLOUD_PATTERN.matcher(cloudName).matches();
+        return isValidName(cloudName, 0, cloudName.length());
     }
 
     public static boolean isValidSlaveName(final String slaveName) {
-        return SLAVE_PATTERN.matcher(slaveName).matches();
+        return isValidName(slaveName, 0, slaveName.length());
     }
 
     public static String generateServerName(final String cloudName, final String slaveName) {
-        return PREFIX + "-" + cloudName + "-" + slaveName + "-" + UUID.randomUUID().toString();
+        return PREFIX + cloudName + "-" + slaveName + "-" + UUID.randomUUID().toString();
+    }
+
+    /**
+     * @return the tags identifying a server of the given cloud and template
+     */
+    public static List<String> generateServerTags(final String cloudName, final String slaveName) {
+        return Arrays.asList(SLAVE_TAG, generateCloudTag(cloudName), TEMPLATE_TAG + slaveName);
+    }
+
+    /**
+     * @return the tag carried by all the servers of the given cloud
+     */
+    public static String generateCloudTag(final String cloudName) {
+        return CLOUD_TAG + cloudName;
+    }
+
+    public static boolean isServerInstanceOfCloud(final ScalewayServer server, final String cloudName) {
+        List<String> tags = server.getTags();
+        if (tags != null) {
+            for (String tag : tags) {
+                if (tag.startsWith(CLOUD_TAG)) {
+                    return isTag(tag, CLOUD_TAG, cloudName);
+                }
+            }
+        }
+        return isServerInstanceOfCloud(server.getName(), cloudName);
+    }
+
+    public static boolean isServerInstanceOfSlave(final ScalewayServer server, final String cloudName, final String slaveName) {
+        List<String> tags = server.getTags();
+        boolean tagged = false;
+        if (tags != null) {
+            for (String tag : tags) {
+                if (tag.startsWith(CLOUD_TAG)) {
+                    if (!isTag(tag, CLOUD_TAG, cloudName)) {
+                        return false;
+                    }
+                    tagged = true;
+                } else if (tag.startsWith(TEMPLATE_TAG)) {
+                    if (!isTag(tag, TEMPLATE_TAG, slaveName)) {
+                        return false;
+                    }
+                    tagged = true;
+                }
+            }
+        }
+        return tagged || isServerInstanceOfSlave(server.getName(), cloudName, slaveName);
     }
 
     public static boolean isServerInstanceOfCloud(final String serverName, final String cloudName) {
-        Matcher m = SCALE_PATTERN.matcher(serverName);
-        return m.matches() && m.group(1).equals(cloudName);
+        int slaveStart = PREFIX.length() + cloudName.length() + 1;
+        int slaveEnd = serverName.length() - UUID_LENGTH - 1;
+        return slaveEnd > slaveStart
+                && cloudName.indexOf('-') < 0
+                && hasPrefixAndSuffix(serverName, cloudName)
+                && isValidName(serverName, slaveStart, slaveEnd)
+                && serverName.lastIndexOf('-', slaveEnd - 1) < slaveStart;
     }
 
     public static boolean isServerInstanceOfSlave(final String serverName, final String cloudName, final String slaveName) {
-        Matcher m = SCALE_PATTERN.matcher(serverName);
-        return m.matches() && m.group(1).equals(cloudName) && m.group(2).equals(slaveName);
+        int slaveStart = PREFIX.length() + cloudName.length() + 1;
+        return serverName.length() == slaveStart + slaveName.length() + 1 + UUID_LENGTH
+                && cloudName.indexOf('-') < 0
+                && slaveName.indexOf('-') < 0
+                && hasPrefixAndSuffix(serverName, cloudName)
+                && serverName.regionMatches(slaveStart, slaveName, 0, slaveName.length());
+    }
+
+    /**
+     * Only meant to identify the slaves saved before their template was
+     * recorded.
+     *
+     * @return the template part of a server name of the given cloud, or null
+     */
+    static String getSlaveName(final String serverName, final String cloudName) {
+        if (!isServerInstanceOfCloud(serverName, cloudName)) {
+            return null;
+        }
+        return serverName.substring(PREFIX.length() + cloudName.length() + 1, serverName.length() - UUID_LENGTH - 1);
+    }
+
+    /**
+     * Checks {@code jenkins-<cloud>-} and {@code -<uuid>}, the caller checks
+     * the length and what is in between.
+     */
+    private static boolean hasPrefixAndSuffix(final String serverName, final String cloudName) {
+        int cloudEnd = PREFIX.length() + cloudName.length();
+        int uuidStart = serverName.length() - UUID_LENGTH;
+        return serverName.startsWith(PREFIX)
+                && serverName.regionMatches(PREFIX.length(), cloudName, 0, cloudName.length())
+                && serverName.charAt(cloudEnd) == '-'
+                && serverName.charAt(uuidStart - 1) == '-'
+                && isUuid(serverName, uuidStart);
+    }
+
+    private static boolean isTag(final String tag, final String prefix, final String value) {
+        return tag.length() == prefix.length() + value.length()
+                && tag.regionMatches(prefix.length(), value, 0, value.length());
+    }
+
+    private static boolean isUuid(final String s, final int start) {
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = s.charAt(start + i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Names end up in server names and Jenkins node names, so they are kept
+     * to letters, digits, '.', '_' and '-'.
+     */
+    private static boolean isValidName(final String s, final int start, final int end) {
+        if (start >= end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                    || c == '.' || c == '_' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
     }
 
 }
@@ -0,0 +1,213 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.ScalewayState;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.model.Computer;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link ServerReadiness} waits for a server to accept SSH connections.
+ *
+ * <p>
+ * It is a small state machine. Each step makes one API call, or one
+ * connection attempt once the server has an address, on
+ * {@link Computer#threadPoolForRemoting}, and the Jenkins {@link Timer} only
+ * schedules the next step. No thread is held while the server boots. The
+ * result is the address to connect to, either the public IP or the private
+ * one, which is known as soon as the server runs.
+ *
+ * <p>
+ * API errors are retried until the deadline, only a server that is gone or
+ * in an unexpected state fails right away.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+final class ServerReadiness implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ServerReadiness.class.getName());
+
+    static final long POLL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private static final int PROBE_TIMEOUT_MILLIS = 2000;
+
+    enum State {
+        BOOTING, WAITING_FOR_IP, WAITING_FOR_SSH, READY, FAILED
+    }
+
+    private final ScalewayRestClient rest;
+    private final String serverId;
+    private final int sshPort;
+    private final boolean privateAddress;
+    private final long deadline;
+
+    private final SettableFuture<String> address = SettableFuture.create();
+
+    private volatile State state = State.BOOTING;
+
+    private volatile ScalewayException lastError;
+
+    private ServerReadiness(ScalewayRestClient rest, String serverId, int sshPort, boolean privateAddress, int timeoutMinutes) {
+        this.rest = rest;
+        this.serverId = serverId;
+        this.sshPort = sshPort;
+        this.privateAddress = privateAddress;
+        this.deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(timeoutMinutes);
+    }
+
+    /**
+     * Starts watching a server.
+     *
+     * @param rest the REST client of the cloud of the server
+     * @param serverId the server to watch
+     * @param sshPort the port SSH listens on
+     * @param privateAddress whether to connect over the private IP
+     * @param timeoutMinutes how long the server has to become reachable
+     * @return the address of the server once SSH accepts connections
+     */
+    static ListenableFuture<String> watch(ScalewayRestClient rest, String serverId, int sshPort, boolean privateAddress,
+            int timeoutMinutes) {
+        ServerReadiness readiness = new ServerReadiness(rest, serverId, sshPort, privateAddress, timeoutMinutes);
+        Computer.threadPoolForRemoting.submit(readiness);
+        return readiness.address;
+    }
+
+    @Override
+    public void run() {
+        if (address.isCancelled()) {
+            return;
+        }
+        try {
+            State previous = state;
+            state = step();
+            if (state != previous) {
+                LOGGER.log(Level.FINE, "Server {0} is {1}", new Object[]{serverId, state});
+            }
+            if (state == State.READY) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                TimeoutException timeout = new TimeoutException("Server " + serverId + " was still " + state + " when the launch timed out");
+                timeout.initCause(lastError);
+                fail(timeout);
+                return;
+            }
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Computer.threadPoolForRemoting.submit(ServerReadiness.this);
+                }
+            }, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private State step() throws Exception {
+        JSONObject server;
+        try {
+            server = rest.get("/servers/" + serverId).getJSONObject("server");
+        } catch (ScalewayException e) {
+            if (ScalewayRestClient.NotFoundException.isNotFound(e)) {
+                throw e;
+            }
+            // the API failing once doesn't fail the server, try again on the next step
+            LOGGER.log(Level.FINE, "Failed to check server " + serverId + ", retrying", e);
+            lastError = e;
+            return state;
+        }
+        ScalewayState serverState = ScalewayInventory.toState(server.optString("state"));
+        if (serverState == null) {
+            throw new IllegalStateException("Server has unexpected status: " + server.optString("state"));
+        }
+        switch (serverState) {
+            case STARTING:
+            case STOPPED:
+                return State.BOOTING;
+            case RUNNING:
+                break;
+            default:
+                throw new IllegalStateException("Server has unexpected status: " + serverState);
+        }
+
+        String host = getAddress(server);
+        if (Strings.isNullOrEmpty(host) || "0.0.0.0".equals(host)) {
+            return State.WAITING_FOR_IP;
+        }
+        if (!isListening(host)) {
+            return State.WAITING_FOR_SSH;
+        }
+        address.set(host);
+        return State.READY;
+    }
+
+    private String getAddress(JSONObject server) {
+        // missing addresses are JSON nulls
+        if (privateAddress) {
+            Object privateIp = server.opt("private_ip");
+            return privateIp instanceof String ? (String) privateIp : null;
+        }
+        JSONObject publicIp = server.optJSONObject("public_ip");
+        if (publicIp == null || !(publicIp.opt("address") instanceof String)) {
+            return null;
+        }
+        return publicIp.getString("address");
+    }
+
+    private boolean isListening(String host) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, sshPort), PROBE_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void fail(Exception e) {
+        state = State.FAILED;
+        address.setException(e);
+    }
+}
@@ -56,6 +56,12 @@ public class Slave extends AbstractCloudSlave {
 
     private final String cloudName;
 
+    /**
+     * Name of the {@link SlaveTemplate} the slave was provisioned from, only
+     * set in {@link #readResolve()} for slaves saved before it was recorded.
+     */
+    private String templateName;
+
     private final int idleTerminationTime;
 
     private final String initScript;
@@ -68,19 +74,49 @@ public class Slave extends AbstractCloudSlave {
 
     private final String jvmOpts;
 
+    /**
+     * When the server was powered on, which is when Scaleway starts billing
+     * it.
+     */
     private final long startTimeMillis;
 
+    /**
+     * When the server was last powered back on after being suspended, 0 if it
+     * never was.
+     */
+    private volatile long resumedAtMillis;
+
     private final int sshPort;
 
-    public Slave(String cloudName, String name, String nodeDescription, String serverId, String privateKey,
+    private final BillingPolicy billingPolicy;
+
+    private final boolean singleUse;
+
+    /**
+     * True while the server is powered off by the retention strategy and
+     * waiting to be resumed.
+     */
+    private volatile boolean suspended;
+
+    private transient volatile boolean resuming;
+
+    /**
+     * True once the init script ran and Java was found on the server, so that
+     * reconnecting after a restart can skip these steps.
+     */
+    private volatile boolean bootstrapped;
+
+    public Slave(String cloudName, String templateName, String name, String nodeDescription, String serverId, String privateKey,
             String remoteAdmin, String remoteFS, int sshPort, int numExecutors, int idleTerminationTime,
             Mode mode, String labelString, ComputerLauncher launcher, RetentionStrategy retentionStrategy,
-            List<? extends NodeProperty<?>> nodeProperties, String initScript, String jvmOpts)
+            List<? extends NodeProperty<?>> nodeProperties, String initScript, String jvmOpts,
+            BillingPolicy billingPolicy, boolean singleUse, long startTimeMillis)
             throws Descriptor.FormException, IOException {
 
         super(name, nodeDescription, remoteFS, numExecutors, mode, labelString, launcher, retentionStrategy, nodeProperties);
 
         this.cloudName = cloudName;
+        this.templateName = templateName;
         this.serverId = serverId;
         this.privateKey = privateKey;
         this.remoteAdmin = remoteAdmin;
@@ -88,7 +124,17 @@ public class Slave extends AbstractCloudSlave {
         this.initScript = initScript;
         this.jvmOpts = jvmOpts;
         this.sshPort = sshPort;
-        startTimeMillis = System.currentTimeMillis();
+        this.billingPolicy = billingPolicy;
+        this.singleUse = singleUse;
+        this.startTimeMillis = startTimeMillis;
+    }
+
+    @Override
+    protected Object readResolve() {
+        if (templateName == null) {
+            templateName = ScalewayServerName.getSlaveName(getNodeName(), cloudName);
+        }
+        return super.readResolve();
     }
 
     @Extension
@@ -130,6 +176,119 @@ public class Slave extends AbstractCloudSlave {
         return null;
     }
 
+    /**
+     * Retrieve the {@link com.github.segator.jenkins.scaleway.SlaveTemplate}
+     * this slave was provisioned from
+     *
+     * @return the template, or null if it was removed from the cloud
+     */
+    public SlaveTemplate getTemplate() {
+        ScalewayCloud cloud = getCloud();
+        if (cloud != null) {
+            return cloud.getTemplate(templateName);
+        }
+        return null;
+    }
+
+    public String getCloudName() {
+        return cloudName;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    /**
+     * @return true if the slave was provisioned from the given template of
+     * the given cloud
+     */
+    public boolean isInstanceOf(String cloudName, String templateName) {
+        return this.cloudName.equals(cloudName) && templateName.equals(this.templateName);
+    }
+
+    /**
+     * Powers the server off while keeping its volume and this node, so that
+     * it can be resumed later, see
+     * {@link ProvisioningPipeline#resume(ScalewayCloud, SlaveTemplate, Slave)}.
+     *
+     * @throws IOException if the node could not be saved
+     */
+    public void suspend() throws IOException {
+        LOG.info("Powering off server " + serverId + " of idle slave " + getNodeName());
+        suspended = true;
+        save();
+        Scaleway.tryPowerOffServerAsync(getCloud().getScalewayClient(), serverId);
+    }
+
+    /**
+     * Records that the server was powered back on. The init script is not run
+     * again as the server still holds the ~/.hudson-run-init marker.
+     *
+     * @param resumedAtMillis when the server was powered on, which restarts
+     * its billing, or 0 if it was never powered off
+     * @throws IOException if the node could not be saved
+     */
+    public void resumed(long resumedAtMillis) throws IOException {
+        if (resumedAtMillis != 0) {
+            this.resumedAtMillis = resumedAtMillis;
+        }
+        suspended = false;
+        save();
+    }
+
+    /**
+     * Ends the resuming started by {@link #startResuming()}, whether it
+     * succeeded or not.
+     */
+    public synchronized void endResuming() {
+        resuming = false;
+    }
+
+    /**
+     * @return true if the slave runs a single build before being terminated
+     */
+    public boolean isSingleUse() {
+        return singleUse;
+    }
+
+    public boolean isBootstrapped() {
+        return bootstrapped;
+    }
+
+    /**
+     * Records that the server is ready to run the agent.
+     *
+     * @throws IOException if the node could not be saved
+     */
+    public void markBootstrapped() throws IOException {
+        if (!bootstrapped) {
+            bootstrapped = true;
+            save();
+        }
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    public boolean isResuming() {
+        return resuming;
+    }
+
+    /**
+     * Marks a suspended slave as being resumed, so that it is resumed only
+     * once.
+     *
+     * @return false if the slave is not suspended or already being resumed
+     */
+    public synchronized boolean startResuming() {
+        if (!suspended || resuming) {
+            return false;
+        }
+        resuming = true;
+        return true;
+    }
+
     /**
      * Get the name of the remote admin user
      *
@@ -143,21 +302,28 @@ public class Slave extends AbstractCloudSlave {
     }
 
     /**
-     * Deletes the Scaleway Server when not needed anymore.
+     * Does nothing: {@link #terminate()} removes the node next, and
+     * {@link Computer#onRemoved()} deletes the Scaleway Server once its build
+     * cache is written back.
      *
      * @param listener Unused
-     * @throws IOException Exception
-     * @throws InterruptedException Exception
      */
     @Override
-    protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
-        Scaleway.tryDestroyServerAsync(getCloud().getAuthToken(), getCloud().getOrgToken(),getCloud().getScalewayClient().getRegion(), serverId);
+    protected void _terminate(TaskListener listener) {
     }
 
     public long getStartTimeMillis() {
         return startTimeMillis;
     }
 
+    /**
+     * @return when the current billing of the server started, either when it
+     * was created or when it was last resumed
+     */
+    public long getBillingStartMillis() {
+        return Math.max(startTimeMillis, resumedAtMillis);
+    }
+
     public String getServerId() {
         return serverId;
     }
@@ -181,4 +347,15 @@ public class Slave extends AbstractCloudSlave {
     public int getSshPort() {
         return sshPort;
     }
+
+    /**
+     * @return the billing policy of the server, slaves created before it was
+     * recorded are assumed to be billed hourly
+     */
+    public BillingPolicy getBillingPolicy() {
+        if (billingPolicy == null) {
+            return BillingPolicy.DEFAULT;
+        }
+        return billingPolicy;
+    }
 }
@@ -0,0 +1,237 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+import com.github.segator.scaleway.api.entity.ScalewayState;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import hudson.init.InitMilestone;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link SlaveAdopter} reconnects the slaves saved before a restart.
+ *
+ * <p>
+ * Computers started while Jenkins is still initializing are not connected
+ * right away but handed over here. Once Jenkins is up, the servers of each
+ * cloud are listed once. Slaves whose server isn't listed are removed once
+ * the server itself is confirmed gone, see {@link #isServerGone}. The others
+ * are reconnected concurrently, running servers first, with at most
+ * {@link #PARALLELISM} launches at a time. Slaves that were bootstrapped
+ * before the restart skip the init script and Java check, see
+ * {@link Slave#isBootstrapped()}.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+public final class SlaveAdopter {
+
+    private static final Logger LOGGER = Logger.getLogger(SlaveAdopter.class.getName());
+
+    static final int PARALLELISM = Integer.getInteger(SlaveAdopter.class.getName() + ".parallelism", 10);
+
+    private static final long POLL_MILLIS = 1000;
+
+    private static final List<Computer> pending = new ArrayList<Computer>();
+
+    private static boolean scheduled;
+
+    private SlaveAdopter() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @param computer a computer being started
+     * @return true if the computer will be reconnected by the adopter, false
+     * if Jenkins is up already and the caller should connect it
+     */
+    static boolean adoptLater(Computer computer) {
+        Jenkins instance = Jenkins.getInstance();
+        if (instance == null || instance.getInitLevel() == InitMilestone.COMPLETED) {
+            return false;
+        }
+        synchronized (pending) {
+            pending.add(computer);
+            if (!scheduled) {
+                scheduled = true;
+                scheduleAdoption();
+            }
+        }
+        return true;
+    }
+
+    private static void scheduleAdoption() {
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                Jenkins instance = Jenkins.getInstance();
+                if (instance != null && instance.getInitLevel() != InitMilestone.COMPLETED) {
+                    scheduleAdoption();
+                    return;
+                }
+                List<Computer> computers;
+                synchronized (pending) {
+                    computers = new ArrayList<Computer>(pending);
+                    pending.clear();
+                    scheduled = false;
+                }
+                adopt(computers);
+            }
+        }, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    static void adopt(List<Computer> computers) {
+        LOGGER.log(Level.INFO, "Adopting {0} Scaleway slaves", computers.size());
+
+        Map<ScalewayCloud, List<Computer>> byCloud = new LinkedHashMap<ScalewayCloud, List<Computer>>();
+        List<Computer> toConnect = new ArrayList<Computer>();
+        for (Computer computer : computers) {
+            ScalewayCloud cloud = computer.getCloud();
+            if (cloud == null) {
+                // let the launcher report it
+                toConnect.add(computer);
+                continue;
+            }
+            if (!byCloud.containsKey(cloud)) {
+                byCloud.put(cloud, new ArrayList<Computer>());
+            }
+            byCloud.get(cloud).add(computer);
+        }
+
+        List<Computer> starting = new ArrayList<Computer>();
+        for (Map.Entry<ScalewayCloud, List<Computer>> entry : byCloud.entrySet()) {
+            Map<String, ScalewayState> states;
+            try {
+                states = listServerStates(entry.getKey());
+            } catch (ScalewayException e) {
+                LOGGER.log(Level.WARNING, "Failed to list the servers of cloud " + entry.getKey().getName()
+                        + ", reconnecting its slaves without checking them", e);
+                toConnect.addAll(entry.getValue());
+                continue;
+            }
+
+            for (Computer computer : entry.getValue()) {
+                ScalewayState state = states.get(computer.getServerId());
+                if (state == null && isServerGone(entry.getKey(), computer.getServerId())) {
+                    removeGone(computer);
+                } else if (state == ScalewayState.RUNNING) {
+                    toConnect.add(computer);
+                } else {
+                    starting.add(computer);
+                }
+            }
+        }
+        // running servers come back fastest, servers still booting wait in the launcher
+        toConnect.addAll(starting);
+
+        connect(toConnect);
+    }
+
+    /**
+     * Lists every server the plugin created with the credentials of the
+     * cloud, as slaves may predate the cloud tag.
+     */
+    static Map<String, ScalewayState> listServerStates(ScalewayCloud cloud) throws ScalewayException {
+        final Map<String, ScalewayState> states = new HashMap<String, ScalewayState>();
+        cloud.getInventory().visitServers(ScalewayServerName.SLAVE_TAG, new ScalewayInventory.Visitor() {
+            @Override
+            public boolean visit(ScalewayServer server) {
+                states.put(server.getId(), server.getState());
+                return true;
+            }
+        });
+        return states;
+    }
+
+    /**
+     * A listing may miss servers, e.g. while paging or for servers created
+     * before they were tagged, so a server is only gone once the API says it
+     * doesn't exist.
+     *
+     * @return true if the server doesn't exist, false if it does or if that
+     * can't be told
+     */
+    static boolean isServerGone(ScalewayCloud cloud, String serverId) {
+        try {
+            cloud.getRestClient().get("/servers/" + serverId);
+            return false;
+        } catch (ScalewayException e) {
+            if (ScalewayRestClient.NotFoundException.isNotFound(e)) {
+                return true;
+            }
+            LOGGER.log(Level.WARNING, "Failed to check server " + serverId + ", keeping its slave", e);
+            return false;
+        }
+    }
+
+    private static void removeGone(Computer computer) {
+        Slave slave = computer.getNode();
+        Jenkins instance = Jenkins.getInstance();
+        if (slave == null || instance == null) {
+            return;
+        }
+        LOGGER.info("Server " + computer.getServerId() + " of slave " + slave.getNodeName() + " is gone, removing the slave");
+        try {
+            instance.removeNode(slave);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to remove slave " + slave.getNodeName(), e);
+        }
+    }
+
+    private static void connect(List<Computer> computers) {
+        if (computers.isEmpty()) {
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(PARALLELISM, computers.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SlaveAdopter"));
+        for (final Computer computer : computers) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        computer.connect(false).get();
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to reconnect " + computer.getName(), e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+}
@@ -27,6 +27,7 @@ package com.github.segator.jenkins.scaleway;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +35,7 @@ import java.util.SortedMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import hudson.Extension;
 import hudson.RelativePath;
@@ -47,20 +49,19 @@ import hudson.slaves.NodeProperty;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import com.github.segator.scaleway.api.entity.ScalewayServer;
 import com.github.segator.scaleway.api.ScalewayClient;
-import com.github.segator.scaleway.api.ScalewayFactory;
 import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
 import com.github.segator.scaleway.api.entity.ScalewayCommercialType;
 import com.github.segator.scaleway.api.entity.ScalewayImage;
-import com.github.segator.scaleway.api.entity.ScalewayServerAction;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
 import com.github.segator.scaleway.api.entity.ScalewayServerDefinition;
-import com.github.segator.scaleway.api.entity.ScalewayState;
 import java.util.ArrayList;
-import java.util.Arrays;
 
 /**
  * A {@link SlaveTemplate} represents the configuration values for creating a
@@ -79,6 +80,68 @@ import java.util.Arrays;
 @SuppressWarnings("unused")
 public class SlaveTemplate implements Describable<SlaveTemplate> {
 
+    /**
+     * What happens to the server of a slave that has been idle for too long.
+     */
+    public enum IdleAction {
+
+        /**
+         * Destroy the server and remove the node.
+         */
+        TERMINATE,
+        /**
+         * Power the server off and keep the node, so that it can be powered
+         * back on when its label is needed again.
+         */
+        POWER_OFF;
+
+        public static IdleAction fromString(String value) {
+            for (IdleAction action : values()) {
+                if (action.name().equalsIgnoreCase(value)) {
+                    return action;
+                }
+            }
+            return TERMINATE;
+        }
+    }
+
+    /**
+     * How Jenkins reaches the servers.
+     */
+    public enum Networking {
+
+        /**
+         * Connect over a dynamic public IP.
+         */
+        PUBLIC,
+        /**
+         * Connect over the private IP, the server still gets a public IP for
+         * its outbound traffic.
+         */
+        PRIVATE,
+        /**
+         * Connect over the private IP, the server gets no public IP.
+         */
+        PRIVATE_ONLY;
+
+        public static Networking fromString(String value) {
+            for (Networking networking : values()) {
+                if (networking.name().equalsIgnoreCase(value)) {
+                    return networking;
+                }
+            }
+            return PUBLIC;
+        }
+
+        public boolean isPrivate() {
+            return this != PUBLIC;
+        }
+
+        public boolean isPublicIpRequired() {
+            return this != PRIVATE_ONLY;
+        }
+    }
+
     private final String name;
 
     private final String labelString;
@@ -117,6 +180,101 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
      */
     private final String initScript;
 
+    /**
+     * How the servers of this template are billed, one of
+     * {@link BillingPolicy.Granularity}.
+     */
+    private String billingPeriod = BillingPolicy.Granularity.HOURLY.name();
+
+    /**
+     * How many minutes before the next billing boundary an idle server may be
+     * released.
+     */
+    private Integer terminationLeadMinutes = BillingPolicy.DEFAULT_LEAD_MINUTES;
+
+    /**
+     * Servers are never released before having been up for this long.
+     */
+    private Integer minimumUptimeMinutes = 0;
+
+    /**
+     * One of {@link IdleAction}.
+     */
+    private String idleAction = IdleAction.TERMINATE.name();
+
+    /**
+     * The maximum number of powered off servers kept for this template when
+     * {@link #idleAction} is {@link IdleAction#POWER_OFF}.
+     */
+    private Integer stoppedInstanceCap = 0;
+
+    /**
+     * Single use slaves run exactly one build and are terminated right after.
+     */
+    private boolean singleUse;
+
+    /**
+     * Sizes in GB of the extra local volumes attached to the servers,
+     * separated by spaces, see {@link WorkspaceStorage}.
+     */
+    private String volumes;
+
+    /**
+     * When positive, the workspace is a tmpfs taking this percentage of the
+     * server memory.
+     */
+    private Integer tmpfsWorkspacePercent = 0;
+
+    /**
+     * Size in GB of the build cache volume, 0 for none, see
+     * {@link BuildCache}.
+     */
+    private Integer cacheVolumeSize = 0;
+
+    /**
+     * The directories kept on the build cache volume, separated by spaces.
+     */
+    private String cachePaths;
+
+    /**
+     * Whether long lived slaves refresh the build cache master.
+     */
+    private boolean cacheWriteBack;
+
+    /**
+     * One of {@link Networking}.
+     */
+    private String networking = Networking.PUBLIC.name();
+
+    /**
+     * Options of the slave agent JVM, added after the automatic ones.
+     */
+    private String jvmOptions;
+
+    /**
+     * Whether the heap and the garbage collector of the slave agent JVM are
+     * sized from the server type, see {@link JvmSizing}.
+     */
+    private boolean autoJvmSizing;
+
+    /**
+     * Whether the number of executors is derived from the server type, see
+     * {@link ExecutorSizing}. {@link #numExecutors} is used when the server
+     * type can't be looked up.
+     */
+    private boolean autoExecutors;
+
+    /**
+     * Cores needed by each executor when {@link #autoExecutors} is set.
+     */
+    private Integer executorCores = 1;
+
+    /**
+     * Memory in GB needed by each executor when {@link #autoExecutors} is
+     * set.
+     */
+    private Integer executorMemory = 2;
+
     private transient Set<LabelAtom> labelSet;
 
     private static final Logger LOGGER = Logger.getLogger(SlaveTemplate.class.getName());
@@ -159,70 +317,202 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     }
 
     public boolean isInstanceCapReachedLocal(String cloudName) {
-          Jenkins instance = Jenkins.getInstance();
-        
         if (instanceCap == 0) {
             return false;
         }
         LOGGER.log(Level.INFO, "slave limit check");
 
-        int count = 0;
+        return countLocalInstances(cloudName) >= instanceCap;
+    }
+
+    private int countLocalInstances(String cloudName) {
+        Jenkins instance = Jenkins.getInstance();
+
+        // servers being provisioned count before their slave is added
+        int count = ProvisioningPipeline.countReserved(cloudName, name);
         List<Node> nodes = new ArrayList();
         if (instance != null){
             nodes = instance.getNodes();
         }
         for (Node n : nodes) {
-            if (ScalewayServerName.isServerInstanceOfSlave(n.getDisplayName(), cloudName, name)) {
+            if (n instanceof Slave && ((Slave) n).isInstanceOf(cloudName, name)) {
                 count++;
             }
         }
 
-        return count >= instanceCap;
+        return count;
     }
 
-    public boolean isInstanceCapReachedRemote(List<ScalewayServer> servers, String cloudName) {
-        LOGGER.log(Level.INFO, "slave limit check");
+    /**
+     * @param remote the running servers of the cloud known to Scaleway
+     * @param cloudName the cloud the slaves belong to
+     * @return how many more servers this template may boot, or
+     * {@link ProvisioningPlanner#UNLIMITED}
+     */
+    public int getAvailableInstances(RemoteInstanceCount remote, String cloudName) {
+        if (instanceCap == 0) {
+            return ProvisioningPlanner.UNLIMITED;
+        }
+        int count = Math.max(countLocalInstances(cloudName), remote.getCount(name));
+        return Math.max(0, instanceCap - count);
+    }
+
+    /**
+     * @param cloudName the cloud the slaves belong to
+     * @return true if no more idle slaves of this template can be powered off
+     * instead of being terminated
+     */
+    public boolean isStoppedInstanceCapReached(String cloudName) {
+        if (IdleAction.fromString(idleAction) != IdleAction.POWER_OFF) {
+            return true;
+        }
+        Jenkins instance = Jenkins.getInstance();
+        if (instance == null) {
+            return true;
+        }
+
         int count = 0;
-        for (ScalewayServer server : servers) {
-            if ((server.getState() == ScalewayState.RUNNING)) {
-                if (ScalewayServerName.isServerInstanceOfSlave(server.getName(), cloudName, name)) {
-                    count++;
-                }
+        for (Node n : instance.getNodes()) {
+            if (n instanceof Slave && ((Slave) n).isSuspended() && ((Slave) n).isInstanceOf(cloudName, name)) {
+                count++;
             }
         }
 
-        return count >= instanceCap;
+        return count >= stoppedInstanceCap;
+    }
+
+    public boolean isInstanceCapReachedRemote(RemoteInstanceCount remote) {
+        if (instanceCap == 0) {
+            return false;
+        }
+        LOGGER.log(Level.INFO, "slave limit check");
+        return remote.getCount(name) >= instanceCap;
+    }
+
+    /**
+     * Creates a new server from this template, tagged with the cloud and
+     * template it belongs to. The server is left powered off.
+     *
+     * @param serverName the name of the server
+     * @param cloudName the cloud the server belongs to
+     * @param orgToken the organization owning the server
+     * @param scaleway the client of the cloud
+     * @param rest the REST client of the cloud, used when the server gets
+     * extra volumes
+     * @return the created server
+     * @throws ScalewayException if the API call fails
+     */
+    public ScalewayServer createServer(String serverName, String cloudName, String orgToken, ScalewayClient scaleway,
+            ScalewayRestClient rest) throws ScalewayException {
+        LOGGER.log(Level.INFO, "Starting to provision Scaleway Server using image: " + imageId + ", sizeId: " + sizeId);
+
+        List<Integer> volumeSizes = getVolumeSizes();
+        if (!volumeSizes.isEmpty() || cacheVolumeSize > 0) {
+            // the SDK can't attach volumes at creation
+            return createServerWithVolumes(serverName, cloudName, orgToken, rest, volumeSizes);
+        }
+
+        ScalewayServerDefinition serverDefinition = new ScalewayServerDefinition();
+        serverDefinition.setName(serverName);
+        serverDefinition.setImage(imageId);
+        serverDefinition.setOrganization(orgToken);
+        serverDefinition.setDynamicIpRequired(getNetworkingMode().isPublicIpRequired());
+        serverDefinition.setTags(ScalewayServerName.generateServerTags(cloudName, name));
+        serverDefinition.setCommercialType(getCommercialType());
+
+        LOGGER.log(Level.INFO, "Creating slave with new server " + serverName);
+
+        return scaleway.createServer(serverDefinition);
     }
 
-    public Slave provision(String serverName, String cloudName,String orgToken,ScalewayClient scaleway, String privateKey, List<ScalewayServer> servers)
-            throws IOException, Descriptor.FormException {
+    private ScalewayServer createServerWithVolumes(String serverName, String cloudName, String orgToken,
+            ScalewayRestClient rest, List<Integer> volumeSizes) throws ScalewayException {
+        JSONObject volumeDefinitions = new JSONObject();
+        for (int i = 0; i < volumeSizes.size(); i++) {
+            JSONObject volume = new JSONObject();
+            volume.put("name", serverName + "-" + (i + 1));
+            volume.put("organization", orgToken);
+            volume.put("size", volumeSizes.get(i) * WorkspaceStorage.BYTES_PER_GB);
+            volume.put("volume_type", WorkspaceStorage.VOLUME_TYPE);
+            // the root volume of the image is volume 0
+            volumeDefinitions.put(String.valueOf(i + 1), volume);
+        }
+        if (cacheVolumeSize > 0) {
+            // the cache comes last, see WorkspaceStorage
+            volumeDefinitions.put(String.valueOf(volumeSizes.size() + 1),
+                    BuildCache.getVolumeDefinition(rest, cloudName, name, serverName, orgToken, cacheVolumeSize));
+        }
 
-        LOGGER.log(Level.INFO, "Provisioning slave...");
+        JSONObject serverDefinition = new JSONObject();
+        serverDefinition.put("name", serverName);
+        serverDefinition.put("organization", orgToken);
+        serverDefinition.put("image", imageId);
+        serverDefinition.put("commercial_type", getCommercialType().toString());
+        serverDefinition.put("dynamic_ip_required", getNetworkingMode().isPublicIpRequired());
+        serverDefinition.put("tags", ScalewayServerName.generateServerTags(cloudName, name));
+        serverDefinition.put("volumes", volumeDefinitions);
 
-        try {
-            LOGGER.log(Level.INFO, "Starting to provision Scaleway Server using image: " + imageId + ", sizeId: " + sizeId);
+        LOGGER.log(Level.INFO, "Creating slave with new server " + serverName + ", volumes of " + volumeSizes
+                + " GB and a build cache of " + cacheVolumeSize + " GB");
+
+        return ScalewayInventory.toServer(rest.post("/servers", serverDefinition).getJSONObject("server"));
+    }
 
-            if (isInstanceCapReachedLocal(cloudName) || isInstanceCapReachedRemote(servers, cloudName)) {
-                throw new AssertionError();
+    /**
+     * @param serverType the commercial type of the servers, as listed by the
+     * {@link ScalewayCatalog}, or null if unknown
+     * @return the storage of the servers of this template
+     */
+    public WorkspaceStorage getWorkspaceStorage(ScalewayCatalog.ServerType serverType) {
+        long tmpfsBytes = getTmpfsBytes(serverType);
+        List<String> paths = Collections.emptyList();
+        if (cacheVolumeSize > 0) {
+            try {
+                paths = WorkspaceStorage.parseCachePaths(cachePaths);
+            } catch (IllegalArgumentException e) {
+                LOGGER.log(Level.WARNING, "Invalid cache paths {0} of template {1}, ignoring them", new Object[]{cachePaths, name});
             }
+        }
+        return new WorkspaceStorage(getVolumeSizes(), tmpfsBytes, cacheVolumeSize > 0, paths);
+    }
 
-            // create a new server
-            ScalewayServerDefinition serverDefinition = new ScalewayServerDefinition();
-            serverDefinition.setName(serverName);
-            serverDefinition.setImage(imageId);
-            serverDefinition.setOrganization(orgToken);
-            serverDefinition.setDynamicIpRequired(true);
-            serverDefinition.setTags(Arrays.asList("jenkins-slave"));
-            serverDefinition.setCommercialType(ScalewayCommercialType.C2S);
+    private long getTmpfsBytes(ScalewayCatalog.ServerType serverType) {
+        if (tmpfsWorkspacePercent > 0 && serverType != null) {
+            return serverType.getRamBytes() / 100 * tmpfsWorkspacePercent;
+        }
+        return 0;
+    }
 
-            LOGGER.log(Level.INFO, "Creating slave with new server " + serverName);
+    /**
+     * @param serverType the server type of the slave, null if unknown
+     * @return the options of the slave agent JVM, the automatic ones are left
+     * out when the server type is unknown
+     */
+    public String getEffectiveJvmOptions(ScalewayCatalog.ServerType serverType) {
+        List<String> options = new ArrayList<String>();
+        if (autoJvmSizing && serverType != null) {
+            options.add(JvmSizing.getOptions(serverType, getTmpfsBytes(serverType)));
+        }
+        if (jvmOptions != null) {
+            // later options win, so the template can override the automatic ones
+            options.add(jvmOptions);
+        }
+        return Joiner.on(' ').join(options);
+    }
 
-            ScalewayServer createdServer = scaleway.createServer(serverDefinition);
-            scaleway.executeServerAction(createdServer, ScalewayServerAction.POWER_ON);
-            return newSlave(cloudName, createdServer, privateKey);
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, e.getMessage(), e);
-            throw new AssertionError();
+    /**
+     * @return how many volumes the servers have, the root volume included
+     */
+    int getVolumeCount() {
+        return 1 + getVolumeSizes().size() + (cacheVolumeSize > 0 ? 1 : 0);
+    }
+
+    private List<Integer> getVolumeSizes() {
+        try {
+            return WorkspaceStorage.parseVolumeSizes(volumes);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid volume sizes {0} of template {1}, ignoring them", new Object[]{volumes, name});
+            return Collections.emptyList();
         }
     }
 
@@ -231,14 +521,18 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
      *
      * @param server the server being created
      * @param privateKey the RSA private key being used
+     * @param serverType the server type of the server, null if unknown
+     * @param startTimeMillis when the server was powered on
      * @return the provisioned {@link Slave}
      * @throws IOException
      * @throws Descriptor.FormException
      */
-    private Slave newSlave(String cloudName, ScalewayServer server, String privateKey) throws IOException, Descriptor.FormException {
+    Slave newSlave(String cloudName, ScalewayServer server, String privateKey, ScalewayCatalog.ServerType serverType,
+            long startTimeMillis) throws IOException, Descriptor.FormException {
         LOGGER.log(Level.INFO, "Creating new slave...");
         return new Slave(
                 cloudName,
+                name,
                 server.getName(),
                 "Computer running on Scaleway with name: " + server.getName(),
                 server.getId(),
@@ -246,7 +540,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 username,
                 workspacePath,
                 sshPort,
-                numExecutors,
+                getEffectiveNumExecutors(serverType),
                 idleTerminationInMinutes,
                 Node.Mode.NORMAL,
                 labels,
@@ -254,10 +548,31 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 new RetentionStrategy(),
                 Collections.<NodeProperty<?>>emptyList(),
                 Util.fixNull(initScript),
-                ""
+                getEffectiveJvmOptions(serverType),
+                getBillingPolicy(),
+                singleUse,
+                startTimeMillis
         );
     }
 
+    /**
+     * @return the {@link ScalewayCommercialType} matching {@link #sizeId},
+     * defaulting to C2S for templates saved before the size was honoured
+     */
+    public ScalewayCommercialType getCommercialType() {
+        for (ScalewayCommercialType type : ScalewayCommercialType.values()) {
+            if (type.toString().equals(sizeId)) {
+                return type;
+            }
+        }
+        return ScalewayCommercialType.C2S;
+    }
+
+    public BillingPolicy getBillingPolicy() {
+        BillingPolicy.Granularity granularity = BillingPolicy.Granularity.fromString(billingPeriod);
+        return new BillingPolicy(granularity, terminationLeadMinutes, minimumUptimeMinutes);
+    }
+
     @Extension
     public static final class DescriptorImpl extends Descriptor<SlaveTemplate> {
 
@@ -270,7 +585,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             if (Strings.isNullOrEmpty(name)) {
                 return FormValidation.error("Must be set");
             } else if (!ScalewayServerName.isValidSlaveName(name)) {
-                return FormValidation.error("Must consist of A-Z, a-z, 0-9 and . symbols");
+                return FormValidation.error("Must consist of A-Z, a-z, 0-9 and . _ - symbols");
             } else {
                 return FormValidation.ok();
             }
@@ -317,13 +632,25 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
 
         public FormValidation doCheckNumExecutors(@QueryParameter String numExecutors) {
-            if (Strings.isNullOrEmpty(numExecutors)) {
+            return doCheckPositiveNumber(numExecutors);
+        }
+
+        public FormValidation doCheckExecutorCores(@QueryParameter String executorCores) {
+            return doCheckPositiveNumber(executorCores);
+        }
+
+        public FormValidation doCheckExecutorMemory(@QueryParameter String executorMemory) {
+            return doCheckPositiveNumber(executorMemory);
+        }
+
+        private static FormValidation doCheckPositiveNumber(String stringNumber) {
+            if (Strings.isNullOrEmpty(stringNumber)) {
                 return FormValidation.error("Must be set");
             } else {
                 int number;
 
                 try {
-                    number = Integer.parseInt(numExecutors);
+                    number = Integer.parseInt(stringNumber);
                 } catch (Exception e) {
                     return FormValidation.error("Must be a number");
                 }
@@ -355,6 +682,74 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             return doCheckNonNegativeNumber(instanceCap);
         }
 
+        public FormValidation doCheckTerminationLeadMinutes(@QueryParameter String terminationLeadMinutes) {
+            FormValidation validation = doCheckNonNegativeNumber(terminationLeadMinutes);
+            if (validation.kind == FormValidation.Kind.OK && Integer.parseInt(terminationLeadMinutes) < 1) {
+                return FormValidation.warning("With no lead time the server may be destroyed after the next billing period started");
+            }
+            return validation;
+        }
+
+        public FormValidation doCheckStoppedInstanceCap(@QueryParameter String stoppedInstanceCap) {
+            return doCheckNonNegativeNumber(stoppedInstanceCap);
+        }
+
+        public FormValidation doCheckVolumes(@QueryParameter String volumes) {
+            try {
+                WorkspaceStorage.parseVolumeSizes(volumes);
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Must be sizes in GB separated by spaces, e.g. 50 100");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckCacheVolumeSize(@QueryParameter String cacheVolumeSize) {
+            return doCheckNonNegativeNumber(cacheVolumeSize);
+        }
+
+        public FormValidation doCheckCachePaths(@QueryParameter String cachePaths) {
+            try {
+                WorkspaceStorage.parseCachePaths(cachePaths);
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckTmpfsWorkspacePercent(@QueryParameter String tmpfsWorkspacePercent) {
+            FormValidation validation = doCheckNonNegativeNumber(tmpfsWorkspacePercent);
+            if (validation.kind == FormValidation.Kind.OK && Integer.parseInt(tmpfsWorkspacePercent) > 90) {
+                return FormValidation.error("Must leave some memory to the builds, at most 90");
+            }
+            return validation;
+        }
+
+        public ListBoxModel doFillNetworkingItems() {
+            ListBoxModel model = new ListBoxModel();
+            model.add("Public IP", Networking.PUBLIC.name());
+            model.add("Private IP", Networking.PRIVATE.name());
+            model.add("Private IP, without public IP", Networking.PRIVATE_ONLY.name());
+            return model;
+        }
+
+        public ListBoxModel doFillIdleActionItems() {
+            ListBoxModel model = new ListBoxModel();
+            model.add("Terminate the server", IdleAction.TERMINATE.name());
+            model.add("Power the server off", IdleAction.POWER_OFF.name());
+            return model;
+        }
+
+        public FormValidation doCheckMinimumUptimeMinutes(@QueryParameter String minimumUptimeMinutes) {
+            return doCheckNonNegativeNumber(minimumUptimeMinutes);
+        }
+
+        public ListBoxModel doFillBillingPeriodItems() {
+            ListBoxModel model = new ListBoxModel();
+            model.add("Hourly", BillingPolicy.Granularity.HOURLY.name());
+            model.add("Per minute", BillingPolicy.Granularity.PER_MINUTE.name());
+            return model;
+        }
+
         public FormValidation doCheckSizeId(@RelativePath("..") @QueryParameter String authToken) {
             return ScalewayCloud.DescriptorImpl.doCheckAuthToken(authToken);
         }
@@ -367,24 +762,52 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             return ScalewayCloud.DescriptorImpl.doCheckAuthToken(authToken);
         }
 
-        public ListBoxModel doFillSizeIdItems() throws Exception {
+        public ListBoxModel doFillSizeIdItems(@RelativePath("..") @QueryParameter String authToken, @RelativePath("..") @QueryParameter String orgToken, @RelativePath("..") @QueryParameter String regionId,
+                @QueryParameter String sizeId) {
 
             ListBoxModel model = new ListBoxModel();
 
+            // sizes that aren't offered in the region are left out, unless they are unknown
+            Map<String, ScalewayCatalog.ServerType> offered = new HashMap<String, ScalewayCatalog.ServerType>();
+            if (!Strings.isNullOrEmpty(authToken) && !Strings.isNullOrEmpty(regionId)) {
+                for (ScalewayCatalog.ServerType type : ScalewayCatalog.get(authToken, orgToken, ScalewayComputeRegion.valueOf(regionId)).getServerTypes()) {
+                    offered.put(type.getName(), type);
+                }
+            }
+
+            boolean current = false;
             for (ScalewayCommercialType size : ScalewayCommercialType.values()) {
-                model.add(size.toString(), size.toString());
+                ScalewayCatalog.ServerType type = offered.get(size.toString());
+                if (type != null) {
+                    model.add(size + " (" + type.getCores() + " cores, " + (type.getRamBytes() >> 30) + " GB)", size.toString());
+                } else if (offered.isEmpty()) {
+                    model.add(size.toString(), size.toString());
+                } else {
+                    continue;
+                }
+                current |= size.toString().equals(sizeId);
+            }
+            // the saved size is kept, so that saving the form doesn't change it
+            if (!current && !Strings.isNullOrEmpty(sizeId)) {
+                model.add(sizeId + " (not offered in the region)", sizeId);
             }
 
             return model;
         }
 
-        public ListBoxModel doFillImageIdItems(@RelativePath("..") @QueryParameter String authToken, @RelativePath("..") @QueryParameter String orgToken,@RelativePath("..") @QueryParameter String regionId) throws Exception {
+        public ListBoxModel doFillImageIdItems(@RelativePath("..") @QueryParameter String authToken, @RelativePath("..") @QueryParameter String orgToken,@RelativePath("..") @QueryParameter String regionId,
+                @QueryParameter String imageId) throws Exception {
 
-            ScalewayClient scaleway = ScalewayFactory.getScalewayClient(authToken, orgToken,ScalewayComputeRegion.valueOf(regionId));
             ListBoxModel model = new ListBoxModel();
-            List<ScalewayImage> images = scaleway.getAllImages();
+            List<ScalewayImage> images = ScalewayCatalog.get(authToken, orgToken, ScalewayComputeRegion.valueOf(regionId)).getImages();
+            boolean current = false;
             for (ScalewayImage image : images) {
                 model.add(image.getName() + "(" + image.getArch() + ")", image.getId());
+                current |= image.getId().equals(imageId);
+            }
+            // the saved image is kept while the catalog loads, so that saving the form doesn't drop it
+            if (!current && !Strings.isNullOrEmpty(imageId)) {
+                model.add(imageId, imageId);
             }
 
             return model;
@@ -437,6 +860,62 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return numExecutors;
     }
 
+    public boolean isAutoExecutors() {
+        return autoExecutors;
+    }
+
+    /**
+     * @param autoExecutors whether the number of executors is derived from the
+     * server type
+     */
+    @DataBoundSetter
+    public void setAutoExecutors(boolean autoExecutors) {
+        this.autoExecutors = autoExecutors;
+    }
+
+    public int getExecutorCores() {
+        return executorCores;
+    }
+
+    /**
+     * @param executorCores cores needed by each executor
+     */
+    @DataBoundSetter
+    public void setExecutorCores(String executorCores) {
+        this.executorCores = tryParseInteger(executorCores, 1);
+    }
+
+    public int getExecutorMemory() {
+        return executorMemory;
+    }
+
+    /**
+     * @param executorMemory memory in GB needed by each executor
+     */
+    @DataBoundSetter
+    public void setExecutorMemory(String executorMemory) {
+        this.executorMemory = tryParseInteger(executorMemory, 2);
+    }
+
+    /**
+     * @param serverType the server type of the slaves, null if unknown
+     * @return the number of executors the slaves really get, always 1 for
+     * single use slaves
+     */
+    public int getEffectiveNumExecutors(ScalewayCatalog.ServerType serverType) {
+        if (singleUse) {
+            return 1;
+        }
+        if (autoExecutors && serverType != null) {
+            long reservedBytes = getTmpfsBytes(serverType);
+            if (autoJvmSizing) {
+                reservedBytes += JvmSizing.getHeapMb(serverType, reservedBytes) * JvmSizing.BYTES_PER_MB;
+            }
+            return ExecutorSizing.getExecutors(serverType, reservedBytes, executorCores, executorMemory);
+        }
+        return numExecutors;
+    }
+
     public int getIdleTerminationInMinutes() {
         return idleTerminationInMinutes;
     }
@@ -453,6 +932,184 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return sshPort;
     }
 
+    public String getBillingPeriod() {
+        return billingPeriod;
+    }
+
+    /**
+     * @param billingPeriod billing granularity of the servers, see
+     * {@link BillingPolicy.Granularity}
+     */
+    @DataBoundSetter
+    public void setBillingPeriod(String billingPeriod) {
+        this.billingPeriod = BillingPolicy.Granularity.fromString(billingPeriod).name();
+    }
+
+    public int getTerminationLeadMinutes() {
+        return terminationLeadMinutes;
+    }
+
+    /**
+     * @param terminationLeadMinutes how long before the next billing boundary
+     * an idle slave may be terminated
+     */
+    @DataBoundSetter
+    public void setTerminationLeadMinutes(String terminationLeadMinutes) {
+        this.terminationLeadMinutes = tryParseInteger(terminationLeadMinutes, BillingPolicy.DEFAULT_LEAD_MINUTES);
+    }
+
+    public int getMinimumUptimeMinutes() {
+        return minimumUptimeMinutes;
+    }
+
+    /**
+     * @param minimumUptimeMinutes minimum time a slave is kept before being
+     * terminated
+     */
+    @DataBoundSetter
+    public void setMinimumUptimeMinutes(String minimumUptimeMinutes) {
+        this.minimumUptimeMinutes = tryParseInteger(minimumUptimeMinutes, 0);
+    }
+
+    public String getIdleAction() {
+        return idleAction;
+    }
+
+    /**
+     * @param idleAction what to do with idle slaves, see {@link IdleAction}
+     */
+    @DataBoundSetter
+    public void setIdleAction(String idleAction) {
+        this.idleAction = IdleAction.fromString(idleAction).name();
+    }
+
+    public int getStoppedInstanceCap() {
+        return stoppedInstanceCap;
+    }
+
+    /**
+     * @param stoppedInstanceCap how many powered off servers can be kept
+     */
+    @DataBoundSetter
+    public void setStoppedInstanceCap(String stoppedInstanceCap) {
+        this.stoppedInstanceCap = tryParseInteger(stoppedInstanceCap, 0);
+    }
+
+    public boolean isSingleUse() {
+        return singleUse;
+    }
+
+    /**
+     * @param singleUse whether slaves are terminated after their first build
+     */
+    @DataBoundSetter
+    public void setSingleUse(boolean singleUse) {
+        this.singleUse = singleUse;
+    }
+
+    public String getVolumes() {
+        return volumes;
+    }
+
+    /**
+     * @param volumes sizes in GB of the extra volumes of the servers
+     */
+    @DataBoundSetter
+    public void setVolumes(String volumes) {
+        this.volumes = Util.fixEmptyAndTrim(volumes);
+    }
+
+    public int getTmpfsWorkspacePercent() {
+        return tmpfsWorkspacePercent;
+    }
+
+    /**
+     * @param tmpfsWorkspacePercent percentage of the server memory given to a
+     * tmpfs workspace, 0 to keep the workspace on disk
+     */
+    @DataBoundSetter
+    public void setTmpfsWorkspacePercent(String tmpfsWorkspacePercent) {
+        this.tmpfsWorkspacePercent = tryParseInteger(tmpfsWorkspacePercent, 0);
+    }
+
+    public int getCacheVolumeSize() {
+        return cacheVolumeSize;
+    }
+
+    /**
+     * @param cacheVolumeSize size in GB of the build cache volume, 0 for none
+     */
+    @DataBoundSetter
+    public void setCacheVolumeSize(String cacheVolumeSize) {
+        this.cacheVolumeSize = tryParseInteger(cacheVolumeSize, 0);
+    }
+
+    public String getCachePaths() {
+        return cachePaths;
+    }
+
+    /**
+     * @param cachePaths directories kept on the build cache volume
+     */
+    @DataBoundSetter
+    public void setCachePaths(String cachePaths) {
+        this.cachePaths = Util.fixEmptyAndTrim(cachePaths);
+    }
+
+    public boolean isCacheWriteBack() {
+        return cacheWriteBack;
+    }
+
+    /**
+     * @param cacheWriteBack whether long lived slaves refresh the build cache
+     */
+    @DataBoundSetter
+    public void setCacheWriteBack(boolean cacheWriteBack) {
+        this.cacheWriteBack = cacheWriteBack;
+    }
+
+    public String getNetworking() {
+        return networking;
+    }
+
+    /**
+     * @param networking how Jenkins reaches the servers, see
+     * {@link Networking}
+     */
+    @DataBoundSetter
+    public void setNetworking(String networking) {
+        this.networking = Networking.fromString(networking).name();
+    }
+
+    public String getJvmOptions() {
+        return jvmOptions;
+    }
+
+    /**
+     * @param jvmOptions options of the slave agent JVM
+     */
+    @DataBoundSetter
+    public void setJvmOptions(String jvmOptions) {
+        this.jvmOptions = Util.fixEmptyAndTrim(jvmOptions);
+    }
+
+    public boolean isAutoJvmSizing() {
+        return autoJvmSizing;
+    }
+
+    /**
+     * @param autoJvmSizing whether the slave agent JVM is sized from the
+     * server type
+     */
+    @DataBoundSetter
+    public void setAutoJvmSizing(boolean autoJvmSizing) {
+        this.autoJvmSizing = autoJvmSizing;
+    }
+
+    public Networking getNetworkingMode() {
+        return Networking.fromString(networking);
+    }
+
     private static int tryParseInteger(final String integerString, final int defaultValue) {
         try {
             return Integer.parseInt(integerString);
@@ -464,6 +1121,37 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     protected Object readResolve() {
         labelSet = Label.parse(labels);
+        // XStream skips the field initializers of templates saved before a setting existed
+        if (billingPeriod == null) {
+            billingPeriod = BillingPolicy.Granularity.HOURLY.name();
+        }
+        if (terminationLeadMinutes == null) {
+            terminationLeadMinutes = BillingPolicy.DEFAULT_LEAD_MINUTES;
+        }
+        if (minimumUptimeMinutes == null) {
+            minimumUptimeMinutes = 0;
+        }
+        if (idleAction == null) {
+            idleAction = IdleAction.TERMINATE.name();
+        }
+        if (stoppedInstanceCap == null) {
+            stoppedInstanceCap = 0;
+        }
+        if (tmpfsWorkspacePercent == null) {
+            tmpfsWorkspacePercent = 0;
+        }
+        if (cacheVolumeSize == null) {
+            cacheVolumeSize = 0;
+        }
+        if (networking == null) {
+            networking = Networking.PUBLIC.name();
+        }
+        if (executorCores == null) {
+            executorCores = 1;
+        }
+        if (executorMemory == null) {
+            executorMemory = 2;
+        }
         return this;
     }
 }
@@ -0,0 +1,440 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The {@link Tracing} records one trace per slave, from the provisioning
+ * decision to the termination of its server, so that a slow or failed slave
+ * can be reconstructed afterwards.
+ *
+ * <p>
+ * The root span of a slave is started when its node is planned and ended
+ * when its server is destroyed. Provisioning stages, launch phases, idle
+ * periods and retention decisions are child spans, API calls are children
+ * of the stage making them. Traces are looked up by server name, which is
+ * also the node name, see {@link #getAgent(String)}.
+ *
+ * <p>
+ * Whether a slave is traced is decided once, for its root span, with
+ * probability {@link #SAMPLE_RATE}. Spans of slaves that are not traced are
+ * a shared no-op. Ended spans are queued in a buffer of
+ * {@link #BUFFER_SIZE} spans, spans are dropped when it is full, and
+ * written every {@link #FLUSH_MILLIS} on the Jenkins {@link Timer}, so the
+ * traced code never does I/O. They are written in the OTLP JSON format, one
+ * export request per line, to {@code logs/scaleway-traces.json} under the
+ * Jenkins home, rotated once it reaches {@link #MAX_FILE_BYTES}.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+final class Tracing {
+
+    private static final Logger LOGGER = Logger.getLogger(Tracing.class.getName());
+
+    static final double SAMPLE_RATE = Double.parseDouble(System.getProperty(Tracing.class.getName() + ".sampleRate", "1.0"));
+
+    static final int BUFFER_SIZE = Integer.getInteger(Tracing.class.getName() + ".bufferSize", 10000);
+
+    static final long FLUSH_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    static final long MAX_FILE_BYTES = Long.getLong(Tracing.class.getName() + ".maxFileBytes", 10L * 1024L * 1024L);
+
+    /**
+     * How many rotated files are kept besides the current one.
+     */
+    static final int MAX_FILES = 5;
+
+    static final String FILE_NAME = "scaleway-traces.json";
+
+    private static final String SCOPE = "com.github.segator.jenkins.scaleway";
+
+    /**
+     * Root spans of the slaves, by server name.
+     */
+    private static final Map<String, Span> agents = new ConcurrentHashMap<String, Span>();
+
+    /**
+     * Idle spans of the slaves, by server name.
+     */
+    private static final Map<String, Span> idle = new ConcurrentHashMap<String, Span>();
+
+    private static final BlockingQueue<Span> ended = new ArrayBlockingQueue<Span>(BUFFER_SIZE);
+
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static final AtomicBoolean flushing = new AtomicBoolean();
+
+    private static volatile File file;
+
+    private Tracing() {
+        throw new AssertionError();
+    }
+
+    /**
+     * A timed operation of a trace. Spans are not thread safe, each is ended
+     * by the code that started it.
+     */
+    static class Span {
+
+        private final String traceId;
+        private final String spanId;
+        private final String parentSpanId;
+        private final String name;
+        private final boolean client;
+        private final long startMillis;
+        private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        private volatile long endMillis;
+        private volatile String error;
+
+        private Span(String traceId, String parentSpanId, String name, boolean client) {
+            this.traceId = traceId;
+            this.spanId = randomId(1);
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+            this.client = client;
+            this.startMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * @param name the operation
+         * @return a span of the same trace, under this one
+         */
+        Span startChild(String name) {
+            return new Span(traceId, spanId, name, false);
+        }
+
+        /**
+         * @param name the API call, e.g. "POST /servers"
+         * @return a span of the same trace, under this one
+         */
+        Span startApiCall(String name) {
+            return new Span(traceId, spanId, name, true);
+        }
+
+        Span setAttribute(String key, Object value) {
+            synchronized (attributes) {
+                attributes.put(key, value);
+            }
+            return this;
+        }
+
+        void end() {
+            if (endMillis != 0) {
+                return;
+            }
+            endMillis = System.currentTimeMillis();
+            export(this);
+        }
+
+        void end(Throwable cause) {
+            if (endMillis == 0) {
+                error = String.valueOf(cause);
+                end();
+            }
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("traceId", traceId);
+            json.put("spanId", spanId);
+            if (parentSpanId != null) {
+                json.put("parentSpanId", parentSpanId);
+            }
+            json.put("name", name);
+            // SPAN_KIND_CLIENT for API calls, SPAN_KIND_INTERNAL otherwise
+            json.put("kind", client ? 3 : 1);
+            json.put("startTimeUnixNano", String.valueOf(TimeUnit.MILLISECONDS.toNanos(startMillis)));
+            json.put("endTimeUnixNano", String.valueOf(TimeUnit.MILLISECONDS.toNanos(endMillis)));
+            JSONArray jsonAttributes = new JSONArray();
+            synchronized (attributes) {
+                for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                    jsonAttributes.add(toAttribute(attribute.getKey(), attribute.getValue()));
+                }
+            }
+            json.put("attributes", jsonAttributes);
+            JSONObject status = new JSONObject();
+            if (error != null) {
+                status.put("code", 2);
+                status.put("message", error);
+            } else {
+                status.put("code", 1);
+            }
+            json.put("status", status);
+            return json;
+        }
+    }
+
+    /**
+     * The span of slaves that are not traced, it records nothing.
+     */
+    private static final Span NOOP = new Span("", null, "", false) {
+        @Override
+        Span startChild(String name) {
+            return this;
+        }
+
+        @Override
+        Span startApiCall(String name) {
+            return this;
+        }
+
+        @Override
+        Span setAttribute(String key, Object value) {
+            return this;
+        }
+
+        @Override
+        void end() {
+        }
+
+        @Override
+        void end(Throwable cause) {
+        }
+    };
+
+    /**
+     * Starts the trace of a slave, unless it isn't sampled.
+     *
+     * @param serverName the name of the server and of its node
+     * @param cloudName the cloud of the slave
+     * @param templateName the template of the slave
+     * @return the root span of the slave
+     */
+    static Span startAgent(String serverName, String cloudName, String templateName) {
+        if (SAMPLE_RATE <= 0 || ThreadLocalRandom.current().nextDouble() >= SAMPLE_RATE) {
+            return NOOP;
+        }
+        Span root = new Span(randomId(2), null, "agent", false)
+                .setAttribute("scaleway.server.name", serverName)
+                .setAttribute("scaleway.cloud", cloudName)
+                .setAttribute("scaleway.template", templateName);
+        agents.put(serverName, root);
+        return root;
+    }
+
+    /**
+     * @param serverName the name of the server and of its node
+     * @return the root span of the slave, a no-op span if it isn't traced
+     */
+    static Span getAgent(String serverName) {
+        Span root = serverName == null ? null : agents.get(serverName);
+        return root == null ? NOOP : root;
+    }
+
+    /**
+     * Ends the trace of a slave, once its server is destroyed or failed to
+     * come up.
+     *
+     * @param serverName the name of the server and of its node
+     * @param cause why the slave failed, or null
+     */
+    static void endAgent(String serverName, Throwable cause) {
+        idleEnded(serverName);
+        Span root = agents.remove(serverName);
+        if (root == null) {
+            return;
+        }
+        if (cause != null) {
+            root.end(cause);
+        } else {
+            root.end();
+        }
+    }
+
+    /**
+     * Starts the idle span of a slave, unless it is idle already.
+     */
+    static void idleStarted(String serverName) {
+        Span root = getAgent(serverName);
+        if (root != NOOP && !idle.containsKey(serverName)) {
+            idle.put(serverName, root.startChild("idle"));
+        }
+    }
+
+    static void idleEnded(String serverName) {
+        Span span = idle.remove(serverName);
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    private static void export(Span span) {
+        if (!ended.offer(span)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (flushing.compareAndSet(false, true)) {
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushing.set(false);
+                    flush();
+                }
+            }, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the ended spans to the trace file.
+     */
+    static synchronized void flush() {
+        List<Span> spans = new ArrayList<Span>();
+        ended.drainTo(spans);
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            LOGGER.log(Level.WARNING, "Dropped {0} spans, the trace buffer was full", lost);
+        }
+        if (spans.isEmpty()) {
+            return;
+        }
+        File target = getFile();
+        if (target == null) {
+            return;
+        }
+
+        JSONArray jsonSpans = new JSONArray();
+        for (Span span : spans) {
+            jsonSpans.add(span.toJson());
+        }
+        JSONObject scope = new JSONObject();
+        scope.put("name", SCOPE);
+        JSONObject scopeSpans = new JSONObject();
+        scopeSpans.put("scope", scope);
+        scopeSpans.put("spans", jsonSpans);
+        JSONArray resourceAttributes = new JSONArray();
+        resourceAttributes.add(toAttribute("service.name", "jenkins-scaleway"));
+        JSONObject resource = new JSONObject();
+        resource.put("attributes", resourceAttributes);
+        JSONObject resourceSpans = new JSONObject();
+        resourceSpans.put("resource", resource);
+        resourceSpans.put("scopeSpans", JSONArray.fromObject(scopeSpans));
+        JSONObject request = new JSONObject();
+        request.put("resourceSpans", JSONArray.fromObject(resourceSpans));
+
+        try {
+            rotate(target);
+            Writer writer = new OutputStreamWriter(new FileOutputStream(target, true), "UTF-8");
+            try {
+                writer.write(request.toString());
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + spans.size() + " spans to " + target, e);
+        }
+    }
+
+    private static void rotate(File target) throws IOException {
+        if (target.length() < MAX_FILE_BYTES) {
+            return;
+        }
+        File oldest = new File(target.getPath() + "." + MAX_FILES);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Failed to delete " + oldest);
+        }
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            File rotated = new File(target.getPath() + "." + i);
+            if (rotated.exists() && !rotated.renameTo(new File(target.getPath() + "." + (i + 1)))) {
+                throw new IOException("Failed to rotate " + rotated);
+            }
+        }
+        if (!target.renameTo(new File(target.getPath() + ".1"))) {
+            throw new IOException("Failed to rotate " + target);
+        }
+    }
+
+    private static File getFile() {
+        File current = file;
+        if (current != null) {
+            return current;
+        }
+        Jenkins instance = Jenkins.getInstance();
+        if (instance == null) {
+            return null;
+        }
+        File logs = new File(instance.getRootDir(), "logs");
+        if (!logs.isDirectory() && !logs.mkdirs()) {
+            LOGGER.warning("Failed to create " + logs);
+            return null;
+        }
+        return new File(logs, FILE_NAME);
+    }
+
+    /**
+     * @param traceFile where the spans are written, null for the default
+     * file under the Jenkins home
+     */
+    static void setFile(File traceFile) {
+        file = traceFile;
+    }
+
+    private static JSONObject toAttribute(String key, Object value) {
+        JSONObject jsonValue = new JSONObject();
+        if (value instanceof Boolean) {
+            jsonValue.put("boolValue", value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            // 64 bit integers are strings in OTLP JSON
+            jsonValue.put("intValue", String.valueOf(value));
+        } else {
+            jsonValue.put("stringValue", String.valueOf(value));
+        }
+        JSONObject attribute = new JSONObject();
+        attribute.put("key", key);
+        attribute.put("value", jsonValue);
+        return attribute;
+    }
+
+    private static String randomId(int longs) {
+        StringBuilder id = new StringBuilder();
+        for (int i = 0; i < longs; i++) {
+            id.append(String.format("%016x", ThreadLocalRandom.current().nextLong()));
+        }
+        return id.toString();
+    }
+}
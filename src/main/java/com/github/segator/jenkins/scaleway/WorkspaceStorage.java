@@ -0,0 +1,244 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * The {@link WorkspaceStorage} describes the local storage a
+ * {@link SlaveTemplate} adds to its servers: extra volumes attached when the
+ * server is created, and where the workspace lives.
+ *
+ * <p>
+ * The launcher prepares the storage once, before the init script, with the
+ * script returned by {@link #getSetupScript(String, String)}. The extra volumes
+ * are formatted and mounted on {@code /mnt/volume1}, {@code /mnt/volume2}
+ * and so on. The workspace is either a tmpfs sized from the memory of the
+ * server, or bind mounted from the first volume. The build cache volume of
+ * the {@link BuildCache}, attached last, is mounted on {@code /mnt/cache} and
+ * its directories are bind mounted on the cache paths. Mounts are added to
+ * {@code /etc/fstab}, so they come back when a powered off server is resumed.
+ * A tmpfs workspace starts empty again then.
+ *
+ * <p>
+ * The volumes are local volumes of the server, terminating the server deletes
+ * them along with it.
+ *
+ * @author isaac.aymerich@gmail.com
+ */
+final class WorkspaceStorage {
+
+    static final String VOLUME_TYPE = "l_ssd";
+
+    static final long BYTES_PER_GB = 1000L * 1000L * 1000L;
+
+    static final String CACHE_LABEL = "jenkins-cache";
+
+    private final List<Integer> volumeSizes;
+
+    private final long tmpfsBytes;
+
+    private final boolean cache;
+
+    private final List<String> cachePaths;
+
+    /**
+     * @param volumeSizes the sizes in GB of the extra volumes
+     * @param tmpfsBytes the size of the tmpfs workspace, or 0 to keep the
+     * workspace on disk
+     * @param cache whether the servers have a build cache volume
+     * @param cachePaths the directories kept on the build cache volume
+     */
+    WorkspaceStorage(List<Integer> volumeSizes, long tmpfsBytes, boolean cache, List<String> cachePaths) {
+        this.volumeSizes = Collections.unmodifiableList(new ArrayList<Integer>(volumeSizes));
+        this.tmpfsBytes = tmpfsBytes;
+        this.cache = cache;
+        this.cachePaths = Collections.unmodifiableList(new ArrayList<String>(cachePaths));
+    }
+
+    /**
+     * @param volumes sizes in GB separated by spaces or commas, e.g.
+     * {@code "50 100"}
+     * @return the sizes
+     * @throws NumberFormatException if a size is not a positive number
+     */
+    static List<Integer> parseVolumeSizes(String volumes) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        if (volumes == null) {
+            return sizes;
+        }
+        for (String size : volumes.trim().split("[\\s,]+")) {
+            if (size.isEmpty()) {
+                continue;
+            }
+            int gb = Integer.parseInt(size);
+            if (gb <= 0) {
+                throw new NumberFormatException("Volume size must be positive: " + size);
+            }
+            sizes.add(gb);
+        }
+        return sizes;
+    }
+
+    /**
+     * @param paths absolute directories, or relative to the home of the user
+     * when starting with {@code ~/}, separated by spaces
+     * @return the directories
+     * @throws IllegalArgumentException if a directory is not valid
+     */
+    static List<String> parseCachePaths(String paths) {
+        List<String> parsed = new ArrayList<String>();
+        if (paths == null) {
+            return parsed;
+        }
+        for (String path : paths.trim().split("\\s+")) {
+            if (path.isEmpty()) {
+                continue;
+            }
+            if (!path.matches("(/|~/)[A-Za-z0-9._/-]+")) {
+                throw new IllegalArgumentException("Must be absolute or start with ~/, and consist of A-Z, a-z, 0-9 and . _ - / symbols: " + path);
+            }
+            parsed.add(path);
+        }
+        return parsed;
+    }
+
+    List<Integer> getVolumeSizes() {
+        return volumeSizes;
+    }
+
+    long getTmpfsBytes() {
+        return tmpfsBytes;
+    }
+
+    /**
+     * @return true if the servers don't need any storage setup
+     */
+    boolean isDefault() {
+        return volumeSizes.isEmpty() && tmpfsBytes <= 0 && !cache;
+    }
+
+    /**
+     * @param workspacePath the workspace of the slave
+     * @param owner the user running the agent
+     * @return the shell script preparing the storage, to be run as root
+     */
+    String getSetupScript(String workspacePath, String owner) {
+        StringBuilder script = new StringBuilder();
+        script.append("#!/bin/sh\n");
+        script.append("set -e\n");
+
+        if (!volumeSizes.isEmpty() || cache) {
+            // the new volumes are the disks without partitions nor file system, in attachment order,
+            // an empty build cache volume comes after the extra volumes
+            script.append("n=0\n");
+            script.append("cache_disk=\n");
+            script.append("for disk in $(lsblk -dno NAME,TYPE | awk '$2 == \"disk\" {print $1}'); do\n");
+            script.append("  if [ -n \"$(lsblk -no FSTYPE /dev/$disk | tr -d '[:space:]')\" ] || [ \"$(lsblk -no NAME /dev/$disk | wc -l)\" -gt 1 ]; then\n");
+            script.append("    continue\n");
+            script.append("  fi\n");
+            script.append("  if [ $n -ge ").append(volumeSizes.size()).append(" ]; then\n");
+            script.append("    [ -z \"$cache_disk\" ] && cache_disk=$disk\n");
+            script.append("    continue\n");
+            script.append("  fi\n");
+            script.append("  n=$((n + 1))\n");
+            script.append("  mkfs.ext4 -q /dev/$disk\n");
+            script.append("  mkdir -p /mnt/volume$n\n");
+            // device names follow the attachment order, which may change across power cycles
+            script.append("  uuid=$(blkid -s UUID -o value /dev/$disk)\n");
+            script.append("  echo \"UUID=$uuid /mnt/volume$n ext4 defaults,nofail 0 2\" >> /etc/fstab\n");
+            script.append("  mount /mnt/volume$n\n");
+            script.append("done\n");
+            script.append("if [ $n -lt ").append(volumeSizes.size()).append(" ]; then\n");
+            script.append("  echo \"Found $n of ").append(volumeSizes.size()).append(" volumes\" >&2\n");
+            script.append("  exit 1\n");
+            script.append("fi\n");
+        }
+
+        if (cache) {
+            // a volume cloned from the master already carries the label
+            script.append("if ! blkid -L ").append(CACHE_LABEL).append(" > /dev/null; then\n");
+            script.append("  if [ -z \"$cache_disk\" ]; then\n");
+            script.append("    echo \"Found no build cache volume\" >&2\n");
+            script.append("    exit 1\n");
+            script.append("  fi\n");
+            script.append("  mkfs.ext4 -q -L ").append(CACHE_LABEL).append(" /dev/$cache_disk\n");
+            script.append("fi\n");
+            script.append("mkdir -p /mnt/cache\n");
+            script.append("echo \"LABEL=").append(CACHE_LABEL).append(" /mnt/cache ext4 defaults,nofail 0 2\" >> /etc/fstab\n");
+            script.append("mount /mnt/cache\n");
+            script.append("home=$(getent passwd ").append(quote(owner)).append(" | cut -d: -f6)\n");
+            for (String path : cachePaths) {
+                // the paths are validated, they need no quoting
+                String target = path.startsWith("~/") ? "$home/" + path.substring(2) : path;
+                String source = "/mnt/cache/" + path.replaceAll("[^A-Za-z0-9._-]", "_");
+                script.append("mkdir -p ").append(source).append(" \"").append(target).append("\"\n");
+                script.append("chown ").append(quote(owner)).append(' ').append(source).append(" \"").append(target).append("\"\n");
+                script.append("echo \"").append(source).append(' ').append(target).append(" none bind 0 0\" >> /etc/fstab\n");
+                script.append("mount \"").append(target).append("\"\n");
+            }
+        }
+
+        String workspace = quote(workspacePath);
+        if (tmpfsBytes > 0) {
+            script.append("mkdir -p ").append(workspace).append('\n');
+            appendFstabEntry(script, "tmpfs", workspacePath, "tmpfs",
+                    "size=" + tmpfsBytes / (1024 * 1024) + "m,mode=0755", "0", "0");
+            script.append("mount ").append(workspace).append('\n');
+        } else if (!volumeSizes.isEmpty()) {
+            script.append("mkdir -p /mnt/volume1/workspace ").append(workspace).append('\n');
+            appendFstabEntry(script, "/mnt/volume1/workspace", workspacePath, "none", "bind", "0", "0");
+            script.append("mount ").append(workspace).append('\n');
+        } else {
+            return script.toString();
+        }
+        script.append("chown ").append(quote(owner)).append(' ').append(workspace).append('\n');
+        return script.toString();
+    }
+
+    /**
+     * Appends a line to {@code /etc/fstab}. The fields are written as is, the
+     * shell doesn't expand them and the characters separating the fields are
+     * escaped the way fstab expects.
+     */
+    private static void appendFstabEntry(StringBuilder script, String... fields) {
+        StringBuilder entry = new StringBuilder();
+        for (String field : fields) {
+            if (entry.length() > 0) {
+                entry.append(' ');
+            }
+            entry.append(field.replace("\\", "\\134").replace(" ", "\\040").replace("\t", "\\011")
+                    .replace("\n", "\\012"));
+        }
+        // unlike echo, printf leaves the backslashes of the escaped fields alone
+        script.append("printf '%s\\n' ").append(quote(entry.toString())).append(" >> /etc/fstab\n");
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+}
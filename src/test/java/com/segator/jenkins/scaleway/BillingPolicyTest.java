@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.github.segator.jenkins.scaleway;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class BillingPolicyTest {
+
+    @Test
+    public void waitsForTheEndOfTheHour() {
+        BillingPolicy policy = new BillingPolicy(BillingPolicy.Granularity.HOURLY, 5, 0);
+
+        Assert.assertEquals(minutes(55), policy.millisUntilTerminationWindow(0));
+        Assert.assertEquals(minutes(45), policy.millisUntilTerminationWindow(minutes(10)));
+        Assert.assertEquals(minutes(54), policy.millisUntilTerminationWindow(minutes(61)));
+    }
+
+    @Test
+    public void terminatesInsideTheWindow() {
+        BillingPolicy policy = new BillingPolicy(BillingPolicy.Granularity.HOURLY, 5, 0);
+
+        Assert.assertEquals(0, policy.millisUntilTerminationWindow(minutes(55)));
+        Assert.assertEquals(0, policy.millisUntilTerminationWindow(minutes(59)));
+        Assert.assertEquals(0, policy.millisUntilTerminationWindow(minutes(119)));
+    }
+
+    @Test
+    public void keepsTheMinimumUptime() {
+        BillingPolicy policy = new BillingPolicy(BillingPolicy.Granularity.HOURLY, 5, 90);
+
+        // the first window after 90 minutes starts at 115 minutes
+        Assert.assertEquals(minutes(105), policy.millisUntilTerminationWindow(minutes(10)));
+        Assert.assertEquals(0, policy.millisUntilTerminationWindow(minutes(116)));
+    }
+
+    @Test
+    public void terminatesRightAwayWhenTheLeadCoversThePeriod() {
+        BillingPolicy policy = new BillingPolicy(BillingPolicy.Granularity.PER_MINUTE, 5, 0);
+
+        Assert.assertEquals(0, policy.millisUntilTerminationWindow(TimeUnit.SECONDS.toMillis(30)));
+        Assert.assertEquals(minutes(2), new BillingPolicy(BillingPolicy.Granularity.PER_MINUTE, 5, 3)
+                .millisUntilTerminationWindow(minutes(1)));
+    }
+
+    @Test
+    public void waitsForTheBoundaryWithoutLead() {
+        BillingPolicy policy = new BillingPolicy(BillingPolicy.Granularity.HOURLY, 0, 0);
+
+        Assert.assertEquals(minutes(50), policy.millisUntilTerminationWindow(minutes(10)));
+        Assert.assertEquals(minutes(1), policy.millisUntilTerminationWindow(minutes(119)));
+    }
+
+    @Test
+    public void readsFormerAutoGranularityAsHourly() {
+        Assert.assertEquals(BillingPolicy.Granularity.HOURLY, BillingPolicy.Granularity.fromString("AUTO"));
+        Assert.assertEquals(BillingPolicy.Granularity.HOURLY, BillingPolicy.Granularity.fromString(null));
+        Assert.assertEquals(BillingPolicy.Granularity.PER_MINUTE, BillingPolicy.Granularity.fromString("per_minute"));
+    }
+
+    private static long minutes(long minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+}
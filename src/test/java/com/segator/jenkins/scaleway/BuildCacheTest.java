@@ -0,0 +1,139 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+import net.sf.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class BuildCacheTest {
+
+    private static final long SIZE = 10 * WorkspaceStorage.BYTES_PER_GB;
+
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @Rule
+    public ScalewayTestHarness scaleway = new ScalewayTestHarness();
+
+    @Before
+    public void setUp() {
+        BuildCache.invalidateAll();
+    }
+
+    @Test
+    public void newServersGetAnEmptyCacheUntilThereIsAMaster() throws Exception {
+        SlaveTemplate template = scaleway.createCacheTemplate("cached", 10, false);
+        ScalewayCloud cloud = scaleway.createCloud("fake", 5, template);
+
+        createServer(cloud, template);
+
+        FakeScalewayApi.Server server = scaleway.getApi().getServers().get(0);
+        Assert.assertEquals(Collections.singletonList(SIZE), server.getVolumeSizes());
+        Assert.assertEquals(Collections.singletonList((String) null), server.getVolumeSnapshots());
+    }
+
+    @Test
+    public void newServersCloneTheLatestMaster() throws Exception {
+        String name = BuildCache.getSnapshotName("fake", "cached");
+        long now = System.currentTimeMillis();
+        scaleway.getApi().addSnapshot(name, SIZE, now - TimeUnit.HOURS.toMillis(2));
+        FakeScalewayApi.Snapshot latest = scaleway.getApi().addSnapshot(name, SIZE, now - TimeUnit.HOURS.toMillis(1));
+        scaleway.getApi().addSnapshot(name + "-other", SIZE, now);
+
+        SlaveTemplate template = scaleway.createCacheTemplate("cached", 10, false);
+        ScalewayCloud cloud = scaleway.createCloud("fake", 5, template);
+        createServer(cloud, template);
+
+        Assert.assertEquals(Collections.singletonList(latest.getId()), scaleway.getApi().getServers().get(0).getVolumeSnapshots());
+    }
+
+    @Test
+    public void maintenanceDeletesOutdatedMasters() throws Exception {
+        String name = BuildCache.getSnapshotName("fake", "cached");
+        long now = System.currentTimeMillis();
+        scaleway.getApi().addSnapshot(name, SIZE, now - TimeUnit.HOURS.toMillis(2));
+        FakeScalewayApi.Snapshot latest = scaleway.getApi().addSnapshot(name, SIZE, now - TimeUnit.HOURS.toMillis(1));
+
+        SlaveTemplate template = scaleway.createCacheTemplate("cached", 10, false);
+        ScalewayCloud cloud = scaleway.createCloud("fake", 5, template);
+        BuildCache.maintain(cloud, template);
+
+        Assert.assertEquals(1, scaleway.getApi().getSnapshots().size());
+        Assert.assertEquals(latest.getId(), scaleway.getApi().getSnapshots().get(0).getId());
+    }
+
+    @Test
+    public void longLivedSlavesWriteTheirCacheBack() throws Exception {
+        SlaveTemplate template = scaleway.createCacheTemplate("cached", 10, true);
+        ScalewayCloud cloud = scaleway.createCloud("fake", 5, template);
+        ScalewayServer server = createServer(cloud, template);
+
+        long now = System.currentTimeMillis();
+        Assert.assertFalse(BuildCache.writeBack(cloud, "cached", server.getId(), now));
+        Assert.assertTrue(BuildCache.writeBack(cloud, "cached", server.getId(), now - TimeUnit.HOURS.toMillis(1)));
+        Assert.assertEquals(Arrays.asList(BuildCache.getSnapshotName("fake", "cached")), snapshotNames());
+
+        // the new master is not due for a refresh yet
+        Assert.assertFalse(BuildCache.writeBack(cloud, "cached", server.getId(), now - TimeUnit.HOURS.toMillis(1)));
+        Assert.assertEquals(1, scaleway.getApi().getSnapshots().size());
+    }
+
+    @Test
+    public void writeBackWaitsForTheSnapshot() throws Exception {
+        SlaveTemplate template = scaleway.createCacheTemplate("cached", 10, true);
+        ScalewayCloud cloud = scaleway.createCloud("fake", 5, template);
+        ScalewayServer server = createServer(cloud, template);
+        scaleway.getApi().setSnapshotDelayMillis(1000);
+
+        Assert.assertTrue(BuildCache.writeBack(cloud, "cached", server.getId(), 0));
+        Assert.assertTrue(scaleway.getApi().getCallCount("getSnapshot") > 1);
+        JSONObject snapshot = cloud.getRestClient().get("/snapshots/" + scaleway.getApi().getSnapshots().get(0).getId());
+        Assert.assertEquals("available", snapshot.getJSONObject("snapshot").getString("state"));
+    }
+
+    private ScalewayServer createServer(ScalewayCloud cloud, SlaveTemplate template) throws Exception {
+        return template.createServer(ScalewayServerName.generateServerName(cloud.name, template.getName()), cloud.name,
+                cloud.getOrgToken(), cloud.getScalewayClient(), cloud.getRestClient());
+    }
+
+    private List<String> snapshotNames() {
+        List<String> names = new ArrayList<String>();
+        for (FakeScalewayApi.Snapshot snapshot : scaleway.getApi().getSnapshots()) {
+            names.add(snapshot.getName());
+        }
+        return names;
+    }
+}
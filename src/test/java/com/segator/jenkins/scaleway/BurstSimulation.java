@@ -0,0 +1,272 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.queue.QueueTaskFuture;
+import jenkins.model.Jenkins;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a burst of builds against a {@link ScalewayCloud} backed by the
+ * {@link FakeScalewayApi} and reports how provisioning coped with it:
+ * queue-to-executor latency, API calls per provisioned agent, peak in-flight
+ * provisions and instance cap violations.
+ *
+ * <p>
+ * It isn't part of the regular test run, start it explicitly and tune the
+ * scenario with system properties:
+ *
+ * <pre>
+ * mvn test -Dtest=BurstSimulation -Dsimulation.jobs=40 -Dsimulation.arrivalRate=2
+ * </pre>
+ *
+ * <ul>
+ * <li>{@code simulation.jobs} number of builds (20)</li>
+ * <li>{@code simulation.labels} comma separated labels, one template each,
+ * builds are spread over them round robin (scaleway)</li>
+ * <li>{@code simulation.arrivalRate} builds per second, 0 enqueues all of
+ * them at once (0)</li>
+ * <li>{@code simulation.buildSeconds} duration of every build (5)</li>
+ * <li>{@code simulation.executors} executors per agent (1)</li>
+ * <li>{@code simulation.templateCap} instance cap of every template (10)</li>
+ * <li>{@code simulation.cloudCap} instance cap of the cloud (20)</li>
+ * <li>{@code simulation.idleMinutes} idle termination of every template (1)</li>
+ * <li>{@code simulation.bootMillis} simulated server boot time (20000)</li>
+ * <li>{@code simulation.latencyMillis} simulated latency of every API call (100)</li>
+ * <li>{@code simulation.errorRate}, {@code simulation.throttleRate} share of
+ * API calls failing with a server error or a 429 (0)</li>
+ * <li>{@code simulation.report} file the report is also written to</li>
+ * </ul>
+ */
+public class BurstSimulation {
+
+    private static final String CLOUD_NAME = "simulation";
+
+    private static final long SAMPLE_PERIOD_MILLIS = 100;
+
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule() {
+        {
+            // a burst can easily outlive the default test timeout
+            timeout = 0;
+        }
+    };
+
+    @Rule
+    public ScalewayTestHarness scaleway = new ScalewayTestHarness();
+
+    @Test
+    public void simulate() throws Exception {
+        int jobs = Integer.getInteger("simulation.jobs", 20);
+        List<String> labels = Arrays.asList(System.getProperty("simulation.labels", "scaleway").split(","));
+        double arrivalRate = Double.parseDouble(System.getProperty("simulation.arrivalRate", "0"));
+        int buildSeconds = Integer.getInteger("simulation.buildSeconds", 5);
+        int executors = Integer.getInteger("simulation.executors", 1);
+        int templateCap = Integer.getInteger("simulation.templateCap", 10);
+        int cloudCap = Integer.getInteger("simulation.cloudCap", 20);
+        int idleMinutes = Integer.getInteger("simulation.idleMinutes", 1);
+
+        FakeScalewayApi api = scaleway.getApi();
+        api.setBootDelayMillis(Long.getLong("simulation.bootMillis", 20000));
+        api.setLatencyMillis(Long.getLong("simulation.latencyMillis", 100));
+        api.setErrorRate(Double.parseDouble(System.getProperty("simulation.errorRate", "0")));
+        api.setThrottleRate(Double.parseDouble(System.getProperty("simulation.throttleRate", "0")));
+
+        List<SlaveTemplate> templates = new ArrayList<SlaveTemplate>();
+        for (String label : labels) {
+            templates.add(scaleway.createTemplate("burst." + label, label, executors, templateCap, idleMinutes));
+        }
+        jenkinsRule.getInstance().clouds.add(scaleway.createCloud(CLOUD_NAME, cloudCap,
+                templates.toArray(new SlaveTemplate[templates.size()])));
+
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < jobs; i++) {
+            FreeStyleProject project = jenkinsRule.createFreeStyleProject("burst-" + i);
+            project.setAssignedLabel(Label.get(labels.get(i % labels.size())));
+            project.setConcurrentBuild(true);
+            project.getBuildersList().add(new SleepBuilder(TimeUnit.SECONDS.toMillis(buildSeconds)));
+            projects.add(project);
+        }
+
+        Sampler sampler = new Sampler(api, templates, cloudCap);
+        ScheduledExecutorService sampling = Executors.newSingleThreadScheduledExecutor();
+        sampling.scheduleAtFixedRate(sampler, 0, SAMPLE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+        long start = System.currentTimeMillis();
+        long[] enqueuedAt = new long[jobs];
+        List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        for (int i = 0; i < jobs; i++) {
+            if (arrivalRate > 0) {
+                long due = start + (long) (i * 1000 / arrivalRate);
+                long wait = due - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+            enqueuedAt[i] = System.currentTimeMillis();
+            futures.add(projects.get(i).scheduleBuild2(0));
+        }
+
+        List<Long> latencies = new ArrayList<Long>();
+        for (int i = 0; i < jobs; i++) {
+            FreeStyleBuild build = futures.get(i).get();
+            jenkinsRule.assertBuildStatusSuccess(build);
+            latencies.add(build.getStartTimeInMillis() - enqueuedAt[i]);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        sampling.shutdownNow();
+        sampling.awaitTermination(1, TimeUnit.SECONDS);
+        sampler.run();
+
+        report(jobs, labels, arrivalRate, elapsed, latencies, api, sampler);
+    }
+
+    private static void report(int jobs, List<String> labels, double arrivalRate, long elapsed, List<Long> latencies,
+            FakeScalewayApi api, Sampler sampler) throws IOException {
+        Collections.sort(latencies);
+        int provisioned = api.getCallCount("createServer");
+
+        StringWriter out = new StringWriter();
+        PrintWriter w = new PrintWriter(out);
+        w.printf("Burst simulation: %d builds over %s, %s%n", jobs, labels,
+                arrivalRate > 0 ? arrivalRate + " builds/s" : "enqueued at once");
+        w.printf("  completed in                 %d s%n", TimeUnit.MILLISECONDS.toSeconds(elapsed));
+        w.printf("  time to executor (s)         p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 100));
+        w.printf("  agents provisioned           %d%n", provisioned);
+        w.printf("  API calls                    %d (%.1f per agent)%n", api.getTotalCallCount(),
+                provisioned == 0 ? 0.0 : (double) api.getTotalCallCount() / provisioned);
+        w.printf("  inventory calls              %d%n", api.getCallCount("listServers"));
+        w.printf("  peak in-flight provisions    %d%n", sampler.peakInFlight);
+        w.printf("  peak servers                 %d%n", sampler.peakServers);
+        w.printf("  cap violations               %d samples, worst overshoot %d%n", sampler.capViolations, sampler.worstOvershoot);
+        w.flush();
+
+        System.out.print(out);
+        String report = System.getProperty("simulation.report");
+        if (report != null) {
+            FileWriter file = new FileWriter(new File(report), true);
+            try {
+                file.write(out.toString());
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * @return the given percentile of the sorted latencies, in seconds
+     */
+    private static double percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0)) / 1000.0;
+    }
+
+    /**
+     * Periodically looks at the fake API and at Jenkins to track the peaks
+     * that can't be derived from the final state.
+     */
+    private static final class Sampler implements Runnable {
+
+        private final FakeScalewayApi api;
+        private final List<SlaveTemplate> templates;
+        private final int cloudCap;
+
+        private final Set<String> seenOnline = new HashSet<String>();
+
+        private volatile int peakInFlight;
+        private volatile int peakServers;
+        private volatile int capViolations;
+        private volatile int worstOvershoot;
+
+        Sampler(FakeScalewayApi api, List<SlaveTemplate> templates, int cloudCap) {
+            this.api = api;
+            this.templates = templates;
+            this.cloudCap = cloudCap;
+        }
+
+        @Override
+        public synchronized void run() {
+            List<FakeScalewayApi.Server> servers = api.getServers();
+            Jenkins jenkins = Jenkins.getInstance();
+
+            // a provision is in flight from the server creation until its agent first comes online
+            int inFlight = 0;
+            for (FakeScalewayApi.Server server : servers) {
+                if (seenOnline.contains(server.getName())) {
+                    continue;
+                }
+                hudson.model.Computer computer = jenkins == null ? null : jenkins.getComputer(server.getName());
+                if (computer != null && computer.isOnline()) {
+                    seenOnline.add(server.getName());
+                } else {
+                    inFlight++;
+                }
+            }
+            peakInFlight = Math.max(peakInFlight, inFlight);
+            peakServers = Math.max(peakServers, servers.size());
+
+            int overshoot = Math.max(servers.size() - cloudCap, 0);
+            for (SlaveTemplate template : templates) {
+                int count = 0;
+                for (FakeScalewayApi.Server server : servers) {
+                    if (ScalewayServerName.isServerInstanceOfSlave(server.getName(), CLOUD_NAME, template.getName())) {
+                        count++;
+                    }
+                }
+                overshoot = Math.max(overshoot, count - template.getInstanceCap());
+            }
+            if (overshoot > 0) {
+                capViolations++;
+                worstOvershoot = Math.max(worstOvershoot, overshoot);
+            }
+        }
+    }
+}
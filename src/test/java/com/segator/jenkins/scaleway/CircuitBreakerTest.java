@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private final CircuitBreaker breaker = new CircuitBreaker("test", 3, 100, 300);
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        breaker.recordFailure(false);
+        breaker.recordFailure(false);
+        breaker.recordSuccess(false);
+        breaker.recordFailure(false);
+        breaker.recordFailure(false);
+        Assert.assertTrue(breaker.isClosed());
+
+        breaker.recordFailure(false);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.isAvailable());
+        Assert.assertFalse(breaker.tryProbe());
+    }
+
+    @Test
+    public void letsASingleProbeThroughOnceTheBackoffElapsed() throws Exception {
+        open();
+        Thread.sleep(150);
+
+        Assert.assertTrue(breaker.isAvailable());
+        Assert.assertTrue(breaker.tryProbe());
+        Assert.assertFalse(breaker.tryProbe());
+        Assert.assertFalse(breaker.isAvailable());
+
+        breaker.releaseProbe();
+        Assert.assertTrue(breaker.tryProbe());
+        breaker.recordSuccess(true);
+        Assert.assertTrue(breaker.isClosed());
+    }
+
+    @Test
+    public void doublesTheBackoffWhenTheProbeFails() throws Exception {
+        open();
+        Thread.sleep(150);
+        Assert.assertTrue(breaker.tryProbe());
+        breaker.recordFailure(true);
+
+        Thread.sleep(150);
+        Assert.assertFalse(breaker.isAvailable());
+        Thread.sleep(100);
+        Assert.assertTrue(breaker.isAvailable());
+    }
+
+    @Test
+    public void onlyTheProbeDecidesItsOutcome() throws Exception {
+        open();
+        Thread.sleep(150);
+        Assert.assertTrue(breaker.tryProbe());
+
+        // provisionings started before the breaker opened
+        breaker.recordFailure(false);
+        breaker.recordSuccess(false);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.recordFailure(true);
+        Thread.sleep(150);
+        // the backoff doubled once
+        Assert.assertFalse(breaker.isAvailable());
+        Thread.sleep(100);
+        Assert.assertTrue(breaker.isAvailable());
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure(false);
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
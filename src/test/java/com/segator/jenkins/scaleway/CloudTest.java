@@ -26,32 +26,236 @@
 
 package com.github.segator.jenkins.scaleway;
 
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.recipes.LocalData;
+
+import java.util.Collection;
+import java.util.Collections;
 
 public class CloudTest {
 
-    /*
     @Rule
     public JenkinsRule jenkinsRule = new JenkinsRule();
-    */
+
+    @Rule
+    public ScalewayTestHarness scaleway = new ScalewayTestHarness();
+
+    @Test
+    public void provisionsSlaveForQueuedBuild() throws Exception {
+        SlaveTemplate template = scaleway.createTemplate("small", "scaleway", 1, 2);
+        jenkinsRule.getInstance().clouds.add(scaleway.createCloud("fake", 5, template));
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(Label.get("scaleway"));
+        jenkinsRule.buildAndAssertSuccess(project);
+
+        Assert.assertEquals(1, scaleway.getApi().getServers().size());
+        FakeScalewayApi.Server server = scaleway.getApi().getServers().get(0);
+        Assert.assertTrue(ScalewayServerName.isServerInstanceOfSlave(server.getName(), "fake", "small"));
+        Assert.assertTrue(server.getTags().contains(ScalewayServerName.generateCloudTag("fake")));
+        Assert.assertNotNull(jenkinsRule.getInstance().getNode(server.getName()));
+        // cap checks only list the servers tagged with the cloud
+        Assert.assertEquals(0, scaleway.getApi().getCallCount("getAllServers"));
+        Assert.assertTrue(scaleway.getApi().getCallCount("listServers") > 0);
+    }
+
+    @Test
+    public void adoptsTheServerOfACreateWhoseResponseWasLost() throws Exception {
+        SlaveTemplate template = scaleway.createTemplate("small", "scaleway", 1, 2);
+        jenkinsRule.getInstance().clouds.add(scaleway.createCloud("fake", 5, template));
+        scaleway.getApi().setLostCreations(1);
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(Label.get("scaleway"));
+        jenkinsRule.buildAndAssertSuccess(project);
+
+        Assert.assertEquals(1, scaleway.getApi().getCallCount("createServer"));
+        Assert.assertEquals(1, scaleway.getApi().getServers().size());
+        Assert.assertNotNull(jenkinsRule.getInstance().getNode(scaleway.getApi().getServers().get(0).getName()));
+    }
+
+    @Test
+    public void canProvisionHonoursInstanceCap() throws Exception {
+        SlaveTemplate template = scaleway.createTemplate("small", "scaleway", 1, 1);
+        ScalewayCloud cloud = scaleway.createCloud("fake", 5, template);
+        jenkinsRule.getInstance().clouds.add(cloud);
+
+        Assert.assertTrue(cloud.canProvision(Label.get("scaleway")));
+        Assert.assertFalse(cloud.canProvision(Label.get("other")));
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(Label.get("scaleway"));
+        jenkinsRule.buildAndAssertSuccess(project);
+
+        Assert.assertFalse(cloud.canProvision(Label.get("scaleway")));
+    }
+
+    @Test
+    public void largeTemplateCapsDoNotReachTheCloudCap() throws Exception {
+        ScalewayCloud cloud = scaleway.createCloud("fake", 5,
+                scaleway.createTemplate("small", "scaleway", 1, Integer.MAX_VALUE),
+                scaleway.createTemplate("large", "scaleway", 1, Integer.MAX_VALUE));
+        jenkinsRule.getInstance().clouds.add(cloud);
+
+        Assert.assertFalse(cloud.isInstanceCapReachedLocal());
+        Assert.assertEquals(5, cloud.getAvailableInstances());
+    }
+
+    @Test
+    public void destroysServerWhenSlaveIsRemoved() throws Exception {
+        SlaveTemplate template = scaleway.createTemplate("small", "scaleway", 1, 2);
+        jenkinsRule.getInstance().clouds.add(scaleway.createCloud("fake", 5, template));
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(Label.get("scaleway"));
+        jenkinsRule.buildAndAssertSuccess(project);
+
+        for (Node node : jenkinsRule.getInstance().getNodes()) {
+            jenkinsRule.getInstance().removeNode(node);
+        }
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!scaleway.getApi().getServers().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+        }
+        Assert.assertTrue(scaleway.getApi().getServers().isEmpty());
+    }
+
+    @Test
+    public void adoptionReconnectsSurvivorsAndDropsGoneSlaves() throws Exception {
+        SlaveTemplate template = scaleway.createTemplate("small", "scaleway", 1, 2);
+        jenkinsRule.getInstance().clouds.add(scaleway.createCloud("fake", 5, template));
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(Label.get("scaleway"));
+        jenkinsRule.buildAndAssertSuccess(project);
+
+        Computer computer = null;
+        for (hudson.model.Computer c : jenkinsRule.getInstance().getComputers()) {
+            if (c instanceof Computer) {
+                computer = (Computer) c;
+            }
+        }
+        Assert.assertNotNull(computer);
+        Assert.assertTrue(computer.getNode().isBootstrapped());
+
+        computer.disconnect(null).get();
+        SlaveAdopter.adopt(Collections.singletonList(computer));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!computer.isOnline() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+        }
+        Assert.assertTrue(computer.isOnline());
+
+        // missing from the listing isn't enough to be gone
+        computer.disconnect(null).get();
+        scaleway.getApi().clearTags(computer.getServerId());
+        SlaveAdopter.adopt(Collections.singletonList(computer));
+        Assert.assertNotNull(jenkinsRule.getInstance().getNode(computer.getName()));
+
+        computer.disconnect(null).get();
+        scaleway.getApi().deleteServer(computer.getServerId());
+        SlaveAdopter.adopt(Collections.singletonList(computer));
+        Assert.assertNull(jenkinsRule.getInstance().getNode(computer.getName()));
+    }
 
     @Test
-    public void testSomething() throws Exception {
+    public void watchdogKeepsHealthySlavesAndReclaimsDeadOnes() throws Exception {
+        SlaveTemplate template = scaleway.createTemplate("small", "scaleway", 1, 2);
+        jenkinsRule.getInstance().clouds.add(scaleway.createCloud("fake", 5, template));
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(Label.get("scaleway"));
+        jenkinsRule.buildAndAssertSuccess(project);
 
-        /*
-        List<SlaveTemplate> templates = new ArrayList<SlaveTemplate>();
-        templates.add(new SlaveTemplate("444", "4", "4", "4", "10", ""));
-        jenkinsRule.getInstance().clouds.add(new Cloud("foo", "key", "id", "key", "2", templates));
-        hudson.slaves.Cloud foo = jenkinsRule.getInstance().getCloud("foo");
-        jenkinsRule.createSlave();
-        List<Node> nodes = jenkinsRule.getInstance().getNodes();
-        */
+        Computer computer = null;
+        for (hudson.model.Computer c : jenkinsRule.getInstance().getComputers()) {
+            if (c instanceof Computer) {
+                computer = (Computer) c;
+            }
+        }
+        Assert.assertNotNull(computer);
 
-        //TODO: find out how to write jenkins tests :)
-        // i'm seeing Caused by: java.io.FileNotFoundException: jenkins/./target/jenkins-for-test.exploding (No such file or directory)
-        Assert.assertTrue(true);
+        AgentWatchdog.check();
+        Assert.assertNotNull(jenkinsRule.getInstance().getNode(computer.getName()));
+
+        // the listing misses the server, which still exists
+        scaleway.getApi().clearTags(computer.getServerId());
+        for (int i = 0; i < AgentWatchdog.FAILURES; i++) {
+            AgentWatchdog.check();
+        }
+        Assert.assertNotNull(jenkinsRule.getInstance().getNode(computer.getName()));
+
+        scaleway.getApi().deleteServer(computer.getServerId());
+        for (int i = 1; i < AgentWatchdog.FAILURES; i++) {
+            AgentWatchdog.check();
+            Assert.assertNotNull(jenkinsRule.getInstance().getNode(computer.getName()));
+        }
+        AgentWatchdog.check();
+        Assert.assertNull(jenkinsRule.getInstance().getNode(computer.getName()));
+    }
 
+    @Test
+    public void dashboardIsServedWithoutCallingTheApi() throws Exception {
+        SlaveTemplate template = scaleway.createTemplate("small", "scaleway", 1, 2);
+        jenkinsRule.getInstance().clouds.add(scaleway.createCloud("fake", 5, template));
+
+        FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        project.setAssignedLabel(Label.get("scaleway"));
+        jenkinsRule.buildAndAssertSuccess(project);
+
+        int calls = scaleway.getApi().getTotalCallCount();
+        ScalewayDashboard dashboard = jenkinsRule.getInstance().getExtensionList(ScalewayDashboard.class).get(0);
+        ScalewayDashboard.CloudStatus cloud = dashboard.getClouds().get(0);
+        Assert.assertEquals(1, cloud.getSlaves().size());
+        Assert.assertEquals(1, cloud.getTemplates().get(0).getLocalCount());
+        jenkinsRule.createWebClient().goTo("scaleway");
+        Assert.assertEquals(calls, scaleway.getApi().getTotalCallCount());
+    }
+
+    @Test
+    public void cancelledProvisioningReleasesCapacityAndTerminatesServer() throws Exception {
+        scaleway.getApi().setBootDelayMillis(5000);
+        SlaveTemplate template = scaleway.createTemplate("small", "scaleway", 1, 1);
+        ScalewayCloud cloud = scaleway.createCloud("fake", 5, template);
+        jenkinsRule.getInstance().clouds.add(cloud);
+
+        Collection<NodeProvisioner.PlannedNode> planned = cloud.provision(Label.get("scaleway"), 1);
+        Assert.assertEquals(1, planned.size());
+        Assert.assertEquals(1, ProvisioningPipeline.countReserved("fake", "small"));
+        Assert.assertFalse(cloud.canProvision(Label.get("scaleway")));
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (scaleway.getApi().getServers().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(1, scaleway.getApi().getServers().size());
+
+        planned.iterator().next().future.cancel(true);
+        Assert.assertEquals(0, ProvisioningPipeline.countReserved("fake", "small"));
+        Assert.assertTrue(cloud.canProvision(Label.get("scaleway")));
+
+        deadline = System.currentTimeMillis() + 60000;
+        while (!scaleway.getApi().getServers().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+        }
+        Assert.assertTrue(scaleway.getApi().getServers().isEmpty());
+        Assert.assertTrue(jenkinsRule.getInstance().getNodes().isEmpty());
+    }
+
+    @Test
+    @LocalData
+    public void readsTheRegionOfCloudsSavedWithTheirClient() {
+        ScalewayCloud cloud = (ScalewayCloud) jenkinsRule.getInstance().getCloud("legacy");
 
+        Assert.assertEquals("AMS1", cloud.getRegionId());
+        Assert.assertEquals("AMS1", cloud.getScalewayClient().getRegion().toString());
     }
 }
@@ -0,0 +1,56 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExecutorSizingTest {
+
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    @Test
+    public void givesAnExecutorPerCore() {
+        ScalewayCatalog.ServerType type = new ScalewayCatalog.ServerType("C2L", 8, 32 * GB, "x86_64");
+
+        Assert.assertEquals(8, ExecutorSizing.getExecutors(type, 0, 1, 2));
+        Assert.assertEquals(4, ExecutorSizing.getExecutors(type, 0, 2, 2));
+    }
+
+    @Test
+    public void isLimitedByTheMemory() {
+        ScalewayCatalog.ServerType type = new ScalewayCatalog.ServerType("C2L", 8, 32 * GB, "x86_64");
+
+        Assert.assertEquals(4, ExecutorSizing.getExecutors(type, 0, 1, 8));
+        Assert.assertEquals(2, ExecutorSizing.getExecutors(type, 16 * GB, 1, 8));
+    }
+
+    @Test
+    public void keepsAtLeastOneExecutor() {
+        ScalewayCatalog.ServerType type = new ScalewayCatalog.ServerType("VC1S", 2, 2 * GB, "x86_64");
+
+        Assert.assertEquals(1, ExecutorSizing.getExecutors(type, 0, 4, 4));
+    }
+}
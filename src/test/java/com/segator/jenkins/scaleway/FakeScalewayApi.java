@@ -0,0 +1,891 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.ScalewayClient;
+import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
+import com.github.segator.scaleway.api.entity.ScalewayCommercialType;
+import com.github.segator.scaleway.api.entity.ScalewayImage;
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+import com.github.segator.scaleway.api.entity.ScalewayServerAction;
+import com.github.segator.scaleway.api.entity.ScalewayServerDefinition;
+import com.github.segator.scaleway.api.entity.ScalewayState;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for the Scaleway compute API.
+ *
+ * <p>
+ * Servers go through a simulated lifecycle: they are created STOPPED, go
+ * STARTING when powered on, RUNNING after the boot delay and get their
+ * dynamic IP after the IP delay. Every call can be slowed down, and can fail
+ * with a server error or a 429 at a given rate.
+ *
+ * <p>
+ * Install it with {@link Scaleway#setClientFactory(Scaleway.ClientFactory)},
+ * every client the plugin creates then talks to this fake.
+ */
+public class FakeScalewayApi implements Scaleway.ClientFactory {
+
+    public static final class Server {
+
+        private final String id;
+        private final String name;
+        private final String image;
+        private final String commercialType;
+        private final List<String> tags;
+        private final List<Long> volumeSizes;
+        private final List<String> volumeSnapshots;
+        private final List<String> volumeNames;
+        private volatile ScalewayState state = ScalewayState.STOPPED;
+        private volatile String publicIp;
+        private volatile boolean dynamicIpRequired = true;
+
+        private Server(String id, String name, String image, String commercialType, List<String> tags) {
+            this(id, name, image, commercialType, tags, Collections.<Long>emptyList(), Collections.<String>emptyList(),
+                    Collections.<String>emptyList());
+        }
+
+        private Server(String id, String name, String image, String commercialType, List<String> tags,
+                List<Long> volumeSizes, List<String> volumeSnapshots, List<String> volumeNames) {
+            this.id = id;
+            this.name = name;
+            this.image = image;
+            this.commercialType = commercialType;
+            this.tags = tags;
+            this.volumeSizes = volumeSizes;
+            this.volumeSnapshots = volumeSnapshots;
+            this.volumeNames = volumeNames;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getImage() {
+            return image;
+        }
+
+        public String getCommercialType() {
+            return commercialType;
+        }
+
+        public List<String> getTags() {
+            return tags;
+        }
+
+        /**
+         * @return the sizes in bytes of the volumes attached besides the root
+         * one
+         */
+        public List<Long> getVolumeSizes() {
+            return volumeSizes;
+        }
+
+        /**
+         * @return the snapshot each volume besides the root one was cloned
+         * from, or null
+         */
+        public List<String> getVolumeSnapshots() {
+            return volumeSnapshots;
+        }
+
+        public ScalewayState getState() {
+            return state;
+        }
+
+        public String getPublicIp() {
+            return publicIp;
+        }
+    }
+
+    public static final class Snapshot {
+
+        private final String id;
+        private final String name;
+        private final long size;
+        private final String creationDate;
+        private volatile long availableMillis;
+
+        private Snapshot(String id, String name, long size, String creationDate) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.creationDate = creationDate;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final Map<String, Server> servers = Collections.synchronizedMap(new LinkedHashMap<String, Server>());
+
+    private final Map<String, Snapshot> snapshots = Collections.synchronizedMap(new LinkedHashMap<String, Snapshot>());
+
+    private final Map<String, String> images = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+    /**
+     * Cores and GiB of RAM of the offered commercial types.
+     */
+    private final Map<String, int[]> products = Collections.synchronizedMap(new LinkedHashMap<String, int[]>());
+
+    /**
+     * The quotas of the organization, by resource name, missing ones are not
+     * enforced.
+     */
+    private final Map<String, Integer> quotas = Collections.synchronizedMap(new LinkedHashMap<String, Integer>());
+
+    private final Set<String> revokedTokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final ScheduledExecutorService lifecycle = Executors.newSingleThreadScheduledExecutor();
+
+    private final Random random = new Random(42);
+
+    private volatile String address = "127.0.0.1";
+
+    private volatile String privateAddress = "127.0.0.1";
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile long bootDelayMillis = 2000;
+    private volatile long ipDelayMillis = 500;
+    private volatile long stopDelayMillis = 1000;
+    private volatile long terminateDelayMillis = 1000;
+    private volatile long snapshotDelayMillis;
+
+    /**
+     * How many of the next server creations fail after creating the server,
+     * as if the response was lost.
+     */
+    private final AtomicInteger lostCreations = new AtomicInteger();
+
+    public FakeScalewayApi() {
+        images.put(UUID.randomUUID().toString(), "Ubuntu Xenial");
+        for (ScalewayCommercialType type : ScalewayCommercialType.values()) {
+            products.put(type.toString(), new int[]{4, 8});
+        }
+    }
+
+    @Override
+    public ScalewayClient getClient(String authToken, String orgToken, final ScalewayComputeRegion region) {
+        return (ScalewayClient) Proxy.newProxyInstance(ScalewayClient.class.getClassLoader(), new Class<?>[]{ScalewayClient.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            try {
+                                return method.invoke(this, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                        if ("getRegion".equals(method.getName())) {
+                            return region;
+                        }
+                        return call(method, args);
+                    }
+                });
+    }
+
+    /**
+     * Serves the raw API calls of the plugin, each path is accounted as its
+     * own method, e.g. {@code GET /servers} as {@code listServers}.
+     */
+    @Override
+    public ScalewayRestClient getRestClient(final String authToken, ScalewayComputeRegion region) {
+        return new ScalewayRestClient() {
+            @Override
+            public JSONObject get(String path) throws ScalewayException {
+                checkToken(authToken);
+                String resource = path.contains("?") ? path.substring(0, path.indexOf('?')) : path;
+                Map<String, String> query = parseQuery(path);
+                try {
+                    if (resource.startsWith("https://") && resource.endsWith("/quotas")) {
+                        simulateCall("getQuotas");
+                        JSONObject result = new JSONObject();
+                        result.put("quotas", new JSONObject());
+                        result.getJSONObject("quotas").putAll(quotas);
+                        return result;
+                    }
+                    if ("/ips".equals(resource)) {
+                        simulateCall("listIps");
+                        return listIps(Integer.parseInt(query.get("page")), Integer.parseInt(query.get("per_page")));
+                    }
+                    if ("/volumes".equals(resource)) {
+                        simulateCall("listVolumes");
+                        return listVolumes(Integer.parseInt(query.get("page")), Integer.parseInt(query.get("per_page")));
+                    }
+                    if ("/servers".equals(resource)) {
+                        simulateCall("listServers");
+                        return listServers(query.get("tags"), Integer.parseInt(query.get("page")), Integer.parseInt(query.get("per_page")));
+                    }
+                    if ("/products/servers".equals(resource)) {
+                        simulateCall("listProducts");
+                        return listProducts();
+                    }
+                    if (resource.startsWith("/servers/")) {
+                        simulateCall("getServerDetails");
+                        return getServerDetails(resource.substring("/servers/".length()));
+                    }
+                    if ("/snapshots".equals(resource)) {
+                        simulateCall("listSnapshots");
+                        return listSnapshots(query.get("name"));
+                    }
+                    if (resource.startsWith("/snapshots/")) {
+                        simulateCall("getSnapshot");
+                        return getSnapshot(resource.substring("/snapshots/".length()));
+                    }
+                } catch (InterruptedException e) {
+                    throw new ScalewayException(e);
+                }
+                throw new ScalewayException(new IOException("404 GET " + path));
+            }
+
+            @Override
+            public JSONObject post(String path, JSONObject body) throws ScalewayException {
+                checkToken(authToken);
+                try {
+                    if ("/servers".equals(path)) {
+                        simulateCall("createServer");
+                        JSONObject result = new JSONObject();
+                        result.put("server", toJson(createServer(body)));
+                        if (lostCreations.getAndDecrement() > 0) {
+                            throw new ScalewayException(new SocketTimeoutException("Read timed out"));
+                        }
+                        return result;
+                    }
+                    if ("/snapshots".equals(path)) {
+                        simulateCall("createSnapshot");
+                        JSONObject result = new JSONObject();
+                        result.put("snapshot", createSnapshot(body));
+                        return result;
+                    }
+                } catch (InterruptedException e) {
+                    throw new ScalewayException(e);
+                }
+                throw new ScalewayException(new IOException("404 POST " + path));
+            }
+
+            @Override
+            public void delete(String path) throws ScalewayException {
+                checkToken(authToken);
+                try {
+                    if (path.startsWith("/snapshots/")) {
+                        simulateCall("deleteSnapshot");
+                        if (snapshots.remove(path.substring("/snapshots/".length())) != null) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw new ScalewayException(e);
+                }
+                throw new ScalewayException(new IOException("404 DELETE " + path));
+            }
+        };
+    }
+
+    private void checkToken(String authToken) throws ScalewayException {
+        if (revokedTokens.contains(authToken)) {
+            throw new ScalewayException(new IOException("401 Unauthorized"));
+        }
+    }
+
+    private static Map<String, String> parseQuery(String path) {
+        Map<String, String> query = new LinkedHashMap<String, String>();
+        if (path.contains("?")) {
+            for (String parameter : path.substring(path.indexOf('?') + 1).split("&")) {
+                String[] pair = parameter.split("=", 2);
+                try {
+                    query.put(pair[0], pair.length > 1 ? URLDecoder.decode(pair[1], "UTF-8") : "");
+                } catch (UnsupportedEncodingException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        return query;
+    }
+
+    private JSONObject listServers(String tag, int page, int perPage) {
+        List<Server> tagged = new ArrayList<Server>();
+        synchronized (servers) {
+            for (Server server : servers.values()) {
+                if (tag == null || server.tags.contains(tag)) {
+                    tagged.add(server);
+                }
+            }
+        }
+        JSONArray array = new JSONArray();
+        int from = Math.min((page - 1) * perPage, tagged.size());
+        for (Server server : tagged.subList(from, Math.min(from + perPage, tagged.size()))) {
+            array.add(toJson(server));
+        }
+        JSONObject result = new JSONObject();
+        result.put("servers", array);
+        return result;
+    }
+
+    private JSONObject listIps(int page, int perPage) {
+        List<JSONObject> ips = new ArrayList<JSONObject>();
+        synchronized (servers) {
+            for (Server server : servers.values()) {
+                if (server.dynamicIpRequired) {
+                    JSONObject ip = new JSONObject();
+                    ip.put("id", server.id);
+                    ip.put("address", server.publicIp != null ? server.publicIp : JSONNull.getInstance());
+                    ips.add(ip);
+                }
+            }
+        }
+        return page("ips", ips, page, perPage);
+    }
+
+    /**
+     * Every server has a root volume, followed by the volumes it was created
+     * with.
+     */
+    private JSONObject listVolumes(int page, int perPage) {
+        List<JSONObject> volumes = new ArrayList<JSONObject>();
+        synchronized (servers) {
+            for (Server server : servers.values()) {
+                for (int i = 0; i <= server.volumeSizes.size(); i++) {
+                    JSONObject volume = new JSONObject();
+                    volume.put("id", server.id + "-" + i);
+                    volume.put("server", server.id);
+                    volumes.add(volume);
+                }
+            }
+        }
+        return page("volumes", volumes, page, perPage);
+    }
+
+    private static JSONObject page(String name, List<JSONObject> items, int page, int perPage) {
+        JSONArray array = new JSONArray();
+        int from = Math.min((page - 1) * perPage, items.size());
+        array.addAll(items.subList(from, Math.min(from + perPage, items.size())));
+        JSONObject result = new JSONObject();
+        result.put(name, array);
+        return result;
+    }
+
+    /**
+     * Running servers have a private IP right away, their public IP comes
+     * after the IP delay.
+     */
+    private JSONObject toJson(Server server) {
+        JSONObject json = new JSONObject();
+        json.put("id", server.id);
+        json.put("name", server.name);
+        json.put("state", server.state.name().toLowerCase(Locale.ENGLISH));
+        json.put("tags", server.tags);
+        if (server.publicIp != null) {
+            JSONObject publicIp = new JSONObject();
+            publicIp.put("address", server.publicIp);
+            json.put("public_ip", publicIp);
+        } else {
+            json.put("public_ip", JSONNull.getInstance());
+        }
+        json.put("private_ip", server.state == ScalewayState.RUNNING ? privateAddress : JSONNull.getInstance());
+        return json;
+    }
+
+    /**
+     * Volume ids are the server id followed by the volume index.
+     */
+    private JSONObject getServerDetails(String id) throws ScalewayException {
+        Server server = servers.get(id);
+        if (server == null) {
+            throw new ScalewayException(new ScalewayRestClient.NotFoundException("404 Server " + id + " not found"));
+        }
+        JSONObject volumes = new JSONObject();
+        for (int i = 0; i < server.volumeNames.size(); i++) {
+            JSONObject volume = new JSONObject();
+            volume.put("id", server.id + "-" + (i + 1));
+            volume.put("name", server.volumeNames.get(i));
+            volumes.put(String.valueOf(i + 1), volume);
+        }
+        JSONObject json = toJson(server);
+        json.put("volumes", volumes);
+        JSONObject result = new JSONObject();
+        result.put("server", json);
+        return result;
+    }
+
+    private JSONObject listSnapshots(String name) {
+        JSONArray array = new JSONArray();
+        synchronized (snapshots) {
+            for (Snapshot snapshot : snapshots.values()) {
+                if (name == null || snapshot.name.startsWith(name)) {
+                    array.add(toJson(snapshot));
+                }
+            }
+        }
+        JSONObject result = new JSONObject();
+        result.put("snapshots", array);
+        return result;
+    }
+
+    private JSONObject getSnapshot(String id) throws ScalewayException {
+        Snapshot snapshot = snapshots.get(id);
+        if (snapshot == null) {
+            throw new ScalewayException(new ScalewayRestClient.NotFoundException("404 Snapshot " + id + " not found"));
+        }
+        JSONObject result = new JSONObject();
+        result.put("snapshot", toJson(snapshot));
+        return result;
+    }
+
+    private JSONObject createSnapshot(JSONObject definition) throws ScalewayException {
+        String volumeId = definition.getString("volume_id");
+        int separator = volumeId.lastIndexOf('-');
+        Server server = servers.get(volumeId.substring(0, separator));
+        if (server == null) {
+            throw new ScalewayException(new IOException("404 Volume " + volumeId + " not found"));
+        }
+        long size = server.volumeSizes.get(Integer.parseInt(volumeId.substring(separator + 1)) - 1);
+        Snapshot snapshot = addSnapshot(definition.getString("name"), size, System.currentTimeMillis());
+        snapshot.availableMillis = System.currentTimeMillis() + snapshotDelayMillis;
+        return toJson(snapshot);
+    }
+
+    private static JSONObject toJson(Snapshot snapshot) {
+        JSONObject json = new JSONObject();
+        json.put("id", snapshot.id);
+        json.put("name", snapshot.name);
+        json.put("state", System.currentTimeMillis() < snapshot.availableMillis ? "snapshotting" : "available");
+        json.put("size", snapshot.size);
+        json.put("creation_date", snapshot.creationDate);
+        return json;
+    }
+
+    private JSONObject listProducts() {
+        JSONObject products = new JSONObject();
+        synchronized (this.products) {
+            for (Map.Entry<String, int[]> entry : this.products.entrySet()) {
+                JSONObject product = new JSONObject();
+                product.put("ncpus", entry.getValue()[0]);
+                product.put("ram", (long) entry.getValue()[1] * 1024 * 1024 * 1024);
+                product.put("arch", "x86_64");
+                products.put(entry.getKey(), product);
+            }
+        }
+        JSONObject result = new JSONObject();
+        result.put("servers", products);
+        return result;
+    }
+
+    /**
+     * Accounts for a call, then applies the latency and the injected errors.
+     */
+    private void simulateCall(String name) throws ScalewayException, InterruptedException {
+        calls.putIfAbsent(name, new AtomicInteger());
+        calls.get(name).incrementAndGet();
+
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < throttleRate) {
+            throw new ScalewayException(new IOException("429 Too Many Requests"));
+        }
+        if (roll < throttleRate + errorRate) {
+            throw new ScalewayException(new IOException("500 Internal Server Error"));
+        }
+    }
+
+    private Object call(Method method, Object[] args) throws ScalewayException, InterruptedException {
+        String name = method.getName();
+        simulateCall(name);
+
+        switch (name) {
+            case "getAllServers":
+                return getAllServers();
+            case "getServer":
+                return getServer((String) args[0]);
+            case "createServer":
+                ScalewayServer created = createServer((ScalewayServerDefinition) args[0]);
+                if (lostCreations.getAndDecrement() > 0) {
+                    throw new ScalewayException(new SocketTimeoutException("Read timed out"));
+                }
+                return created;
+            case "executeServerAction":
+                String id = args[0] instanceof ScalewayServer ? ((ScalewayServer) args[0]).getId() : (String) args[0];
+                executeServerAction(id, (ScalewayServerAction) args[1]);
+                return null;
+            case "getAllImages":
+                return getAllImages();
+            case "getAllOrganizations":
+                return Collections.emptyList();
+            default:
+                throw new UnsupportedOperationException("The fake Scaleway API doesn't support " + name);
+        }
+    }
+
+    private List<ScalewayServer> getAllServers() {
+        List<ScalewayServer> result = new ArrayList<ScalewayServer>();
+        synchronized (servers) {
+            for (Server server : servers.values()) {
+                result.add(toEntity(server));
+            }
+        }
+        return result;
+    }
+
+    private ScalewayServer getServer(String id) throws ScalewayException {
+        Server server = servers.get(id);
+        if (server == null) {
+            throw new ScalewayException(new IOException("404 Server " + id + " not found"));
+        }
+        return toEntity(server);
+    }
+
+    private ScalewayServer createServer(ScalewayServerDefinition definition) throws ScalewayException {
+        if (!images.containsKey(definition.getImage())) {
+            throw new ScalewayException(new IOException("400 Image " + definition.getImage() + " not found"));
+        }
+        List<String> tags = definition.getTags() == null ? Collections.<String>emptyList() : new ArrayList<String>(definition.getTags());
+        Server server = new Server(UUID.randomUUID().toString(), definition.getName(), definition.getImage(),
+                String.valueOf(definition.getCommercialType()), tags);
+        servers.put(server.id, server);
+        return toEntity(server);
+    }
+
+    private Server createServer(JSONObject definition) throws ScalewayException {
+        String image = definition.getString("image");
+        if (!images.containsKey(image)) {
+            throw new ScalewayException(new IOException("400 Image " + image + " not found"));
+        }
+        List<String> tags = new ArrayList<String>();
+        JSONArray tagArray = definition.optJSONArray("tags");
+        for (int i = 0; tagArray != null && i < tagArray.size(); i++) {
+            tags.add(tagArray.getString(i));
+        }
+        List<Long> volumeSizes = new ArrayList<Long>();
+        List<String> volumeSnapshots = new ArrayList<String>();
+        List<String> volumeNames = new ArrayList<String>();
+        JSONObject volumes = definition.optJSONObject("volumes");
+        for (int i = 1; volumes != null && volumes.has(String.valueOf(i)); i++) {
+            JSONObject volume = volumes.getJSONObject(String.valueOf(i));
+            String snapshot = volume.optString("base_snapshot", null);
+            if (snapshot != null && !snapshots.containsKey(snapshot)) {
+                throw new ScalewayException(new IOException("400 Snapshot " + snapshot + " not found"));
+            }
+            volumeSizes.add(snapshot != null ? snapshots.get(snapshot).size : volume.getLong("size"));
+            volumeSnapshots.add(snapshot);
+            volumeNames.add(volume.getString("name"));
+        }
+        Integer serverQuota = quotas.get("servers");
+        if (serverQuota != null && servers.size() >= serverQuota) {
+            throw new ScalewayException(new IOException("403 Quota exceeded for servers"));
+        }
+        Server server = new Server(UUID.randomUUID().toString(), definition.getString("name"), image,
+                definition.getString("commercial_type"), tags, volumeSizes, volumeSnapshots, volumeNames);
+        server.dynamicIpRequired = definition.optBoolean("dynamic_ip_required", true);
+        servers.put(server.id, server);
+        return server;
+    }
+
+    private void executeServerAction(String id, ScalewayServerAction action) throws ScalewayException {
+        final Server server = servers.get(id);
+        if (server == null) {
+            throw new ScalewayException(new IOException("404 Server " + id + " not found"));
+        }
+
+        switch (action) {
+            case POWER_ON:
+                if (server.state != ScalewayState.STOPPED) {
+                    throw new ScalewayException(new IOException("400 Server " + id + " is not stopped"));
+                }
+                server.state = ScalewayState.STARTING;
+                lifecycle.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        server.state = ScalewayState.RUNNING;
+                    }
+                }, bootDelayMillis, TimeUnit.MILLISECONDS);
+                if (server.dynamicIpRequired) {
+                    lifecycle.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            server.publicIp = address;
+                        }
+                    }, bootDelayMillis + ipDelayMillis, TimeUnit.MILLISECONDS);
+                }
+                break;
+            case POWER_OFF:
+                if (server.state != ScalewayState.RUNNING) {
+                    throw new ScalewayException(new IOException("400 Server " + id + " is not running"));
+                }
+                lifecycle.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        server.state = ScalewayState.STOPPED;
+                        server.publicIp = null;
+                    }
+                }, stopDelayMillis, TimeUnit.MILLISECONDS);
+                break;
+            case TERMINATE:
+                if (server.state != ScalewayState.RUNNING) {
+                    throw new ScalewayException(new IOException("400 Server " + id + " is not running"));
+                }
+                lifecycle.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        servers.remove(server.id);
+                    }
+                }, terminateDelayMillis, TimeUnit.MILLISECONDS);
+                break;
+            default:
+                throw new UnsupportedOperationException("The fake Scaleway API doesn't support " + action);
+        }
+    }
+
+    private List<ScalewayImage> getAllImages() {
+        List<ScalewayImage> result = new ArrayList<ScalewayImage>();
+        synchronized (images) {
+            for (Map.Entry<String, String> entry : images.entrySet()) {
+                ScalewayImage image = new ScalewayImage();
+                image.setId(entry.getKey());
+                image.setName(entry.getValue());
+                result.add(image);
+            }
+        }
+        return result;
+    }
+
+    private static ScalewayServer toEntity(Server server) {
+        ScalewayServer entity = new ScalewayServer();
+        entity.setId(server.id);
+        entity.setName(server.name);
+        entity.setState(server.state);
+        entity.setTags(server.tags);
+        setPublicIp(entity, server.publicIp);
+        return entity;
+    }
+
+    /**
+     * The plugin only ever reads {@code getPublicIp().getAddress()}, the IP
+     * entity is filled reflectively so the fake doesn't depend on its type.
+     */
+    private static void setPublicIp(ScalewayServer entity, String address) {
+        try {
+            Class<?> ipType = ScalewayServer.class.getMethod("getPublicIp").getReturnType();
+            Object ip = ipType.newInstance();
+            ipType.getMethod("setAddress", String.class).invoke(ip, address);
+            ScalewayServer.class.getMethod("setPublicIp", ipType).invoke(entity, ip);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to set the public IP of a fake server", e);
+        }
+    }
+
+    public String getImageId() {
+        synchronized (images) {
+            return images.keySet().iterator().next();
+        }
+    }
+
+    public List<Server> getServers() {
+        synchronized (servers) {
+            return new ArrayList<Server>(servers.values());
+        }
+    }
+
+    public List<String> getAllocatedIps() {
+        List<String> ips = new ArrayList<String>();
+        for (Server server : getServers()) {
+            if (server.publicIp != null) {
+                ips.add(server.publicIp);
+            }
+        }
+        return ips;
+    }
+
+    /**
+     * @param method a {@link ScalewayClient} method name
+     * @return how many times it was called
+     */
+    public int getCallCount(String method) {
+        AtomicInteger counter = calls.get(method);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public int getTotalCallCount() {
+        int total = 0;
+        for (AtomicInteger counter : calls.values()) {
+            total += counter.get();
+        }
+        return total;
+    }
+
+    /**
+     * Deletes a server behind the plugin's back, as if done from the console.
+     */
+    public void deleteServer(String id) {
+        servers.remove(id);
+    }
+
+    /**
+     * Drops the tags of a server, as for servers created before the plugin
+     * tagged them, tagged listings leave it out.
+     */
+    public void clearTags(String id) {
+        servers.get(id).tags.clear();
+    }
+
+    /**
+     * Adds an available snapshot, as if taken at the given time.
+     */
+    public Snapshot addSnapshot(String name, long size, long creationMillis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'000+00:00'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Snapshot snapshot = new Snapshot(UUID.randomUUID().toString(), name, size, format.format(new Date(creationMillis)));
+        snapshots.put(snapshot.id, snapshot);
+        return snapshot;
+    }
+
+    public List<Snapshot> getSnapshots() {
+        synchronized (snapshots) {
+            return new ArrayList<Snapshot>(snapshots.values());
+        }
+    }
+
+    public void addImage(String id, String name) {
+        images.put(id, name);
+    }
+
+    /**
+     * Offers a commercial type, or changes its specs.
+     */
+    public void setProduct(String commercialType, int cores, int ramGiB) {
+        products.put(commercialType, new int[]{cores, ramGiB});
+    }
+
+    public void removeProduct(String commercialType) {
+        products.remove(commercialType);
+    }
+
+    /**
+     * Sets a quota of the organization, e.g. {@code servers}, creating more
+     * servers than their quota fails.
+     */
+    public void revokeToken(String authToken) {
+        revokedTokens.add(authToken);
+    }
+
+    public void setQuota(String name, int value) {
+        quotas.put(name, value);
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public void setPrivateAddress(String privateAddress) {
+        this.privateAddress = privateAddress;
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    public void setLostCreations(int count) {
+        lostCreations.set(count);
+    }
+
+    public void setBootDelayMillis(long bootDelayMillis) {
+        this.bootDelayMillis = bootDelayMillis;
+    }
+
+    public void setIpDelayMillis(long ipDelayMillis) {
+        this.ipDelayMillis = ipDelayMillis;
+    }
+
+    public void setStopDelayMillis(long stopDelayMillis) {
+        this.stopDelayMillis = stopDelayMillis;
+    }
+
+    public void setTerminateDelayMillis(long terminateDelayMillis) {
+        this.terminateDelayMillis = terminateDelayMillis;
+    }
+
+    public void setSnapshotDelayMillis(long snapshotDelayMillis) {
+        this.snapshotDelayMillis = snapshotDelayMillis;
+    }
+
+    public void shutdown() {
+        lifecycle.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JvmSizingTest {
+
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    @Test
+    public void usesTheSerialCollectorOnSmallServers() {
+        String options = JvmSizing.getOptions(new ScalewayCatalog.ServerType("VC1S", 2, 2 * GB, "x86_64"), 0);
+
+        Assert.assertEquals("-Xms256m -Xmx512m -XX:+UseSerialGC", options);
+    }
+
+    @Test
+    public void usesG1WithHalfOfTheCoresOnBigServers() {
+        String options = JvmSizing.getOptions(new ScalewayCatalog.ServerType("C2L", 8, 32 * GB, "x86_64"), 0);
+
+        Assert.assertEquals("-Xms2048m -Xmx8192m -XX:+UseG1GC -XX:ParallelGCThreads=4 -XX:ConcGCThreads=1", options);
+    }
+
+    @Test
+    public void capsTheHeap() {
+        String options = JvmSizing.getOptions(new ScalewayCatalog.ServerType("X64-120GB", 12, 120 * GB, "x86_64"), 0);
+
+        Assert.assertTrue(options.contains("-Xmx16384m"));
+    }
+
+    @Test
+    public void leavesTheTmpfsWorkspaceOut() {
+        String options = JvmSizing.getOptions(new ScalewayCatalog.ServerType("C2L", 8, 32 * GB, "x86_64"), 16 * GB);
+
+        Assert.assertTrue(options.contains("-Xmx4096m"));
+    }
+
+    @Test
+    public void keepsAMinimumHeap() {
+        String options = JvmSizing.getOptions(new ScalewayCatalog.ServerType("VC1S", 2, 2 * GB, "x86_64"), 2 * GB);
+
+        Assert.assertTrue(options.contains("-Xmx256m"));
+    }
+}
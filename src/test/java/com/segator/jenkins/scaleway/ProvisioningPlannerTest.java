@@ -0,0 +1,69 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProvisioningPlannerTest {
+
+    private static final int U = ProvisioningPlanner.UNLIMITED;
+
+    @Test
+    public void prefersFewestServers() {
+        int[] counts = ProvisioningPlanner.plan(24, new int[]{1, 8}, new int[]{U, U}, U);
+        Assert.assertArrayEquals(new int[]{0, 3}, counts);
+    }
+
+    @Test
+    public void respectsTemplateInstanceCap() {
+        int[] counts = ProvisioningPlanner.plan(24, new int[]{1, 8}, new int[]{U, 2}, U);
+        Assert.assertArrayEquals(new int[]{8, 2}, counts);
+    }
+
+    @Test
+    public void prefersLeastWastedExecutors() {
+        int[] counts = ProvisioningPlanner.plan(5, new int[]{4, 2}, new int[]{U, U}, U);
+        Assert.assertArrayEquals(new int[]{1, 1}, counts);
+    }
+
+    @Test
+    public void coversAsMuchAsTheCloudCapAllows() {
+        int[] counts = ProvisioningPlanner.plan(24, new int[]{1, 8}, new int[]{U, 2}, 5);
+        Assert.assertArrayEquals(new int[]{3, 2}, counts);
+    }
+
+    @Test
+    public void provisionsNothingWithoutCapacity() {
+        int[] counts = ProvisioningPlanner.plan(4, new int[]{2, 4}, new int[]{0, 0}, U);
+        Assert.assertArrayEquals(new int[]{0, 0}, counts);
+    }
+
+    @Test
+    public void capsTheWorkloadOfASinglePlan() {
+        int[] counts = ProvisioningPlanner.plan(100000, new int[]{1, 2}, new int[]{U, U}, U);
+        Assert.assertArrayEquals(new int[]{0, ProvisioningPlanner.MAX_WORKLOAD / 2}, counts);
+    }
+}
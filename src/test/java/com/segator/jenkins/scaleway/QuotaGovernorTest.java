@@ -0,0 +1,203 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
+import com.github.segator.scaleway.api.entity.ScalewayCommercialType;
+import com.github.segator.scaleway.api.entity.exceptions.ScalewayException;
+import net.sf.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuotaGovernorTest {
+
+    private final FakeScalewayApi api = new FakeScalewayApi();
+
+    private final ScalewayComputeRegion region = ScalewayComputeRegion.values()[0];
+
+    private final QuotaGovernor.Demand demand = new QuotaGovernor.Demand(1, 1, 2);
+
+    @Before
+    public void installFakeApi() {
+        Scaleway.setClientFactory(api);
+        QuotaGovernor.invalidateAll();
+    }
+
+    @After
+    public void uninstallFakeApi() {
+        QuotaGovernor.invalidateAll();
+        Scaleway.setClientFactory(null);
+        api.shutdown();
+    }
+
+    @Test
+    public void doesNotLimitWithoutQuotas() throws Exception {
+        QuotaGovernor governor = load(QuotaGovernor.get("token", "organization", region));
+
+        Assert.assertEquals(ProvisioningPlanner.UNLIMITED, governor.getAvailable(demand));
+        Assert.assertNotNull(governor.tryReserve(demand));
+        Assert.assertEquals(1, api.getCallCount("getQuotas"));
+        Assert.assertEquals(0, api.getCallCount("listServers"));
+    }
+
+    @Test
+    public void doesNotLimitWhileLoading() throws Exception {
+        api.setQuota("servers", 0);
+        api.setLatencyMillis(500);
+
+        QuotaGovernor governor = QuotaGovernor.get("token", "organization", region);
+
+        Assert.assertEquals(ProvisioningPlanner.UNLIMITED, governor.getAvailable(demand));
+        Assert.assertFalse(governor.isLoaded());
+        load(governor);
+        Assert.assertEquals(0, governor.getAvailable(demand));
+    }
+
+    @Test
+    public void countsServersNotCreatedByJenkins() throws Exception {
+        api.setQuota("servers", 3);
+        createServer("manual");
+
+        QuotaGovernor governor = load(QuotaGovernor.get("token", "organization", region));
+
+        Assert.assertEquals(2, governor.getAvailable(demand));
+        Assert.assertNotNull(governor.tryReserve(demand));
+        Assert.assertNotNull(governor.tryReserve(demand));
+        Assert.assertNull(governor.tryReserve(demand));
+        Assert.assertEquals(1, api.getCallCount("listServers"));
+        Assert.assertEquals(0, api.getCallCount("listVolumes"));
+    }
+
+    @Test
+    public void sharesReservationsAcrossCloudsOfTheOrganization() throws Exception {
+        api.setQuota("volumes", 4);
+
+        QuotaGovernor first = load(QuotaGovernor.get("token", "organization", region));
+        QuotaGovernor second = QuotaGovernor.get("other-token", "organization", region);
+
+        Assert.assertSame(first, second);
+        Assert.assertNotNull(first.tryReserve(demand));
+        Assert.assertEquals(1, second.getAvailable(demand));
+        Assert.assertNotSame(first, QuotaGovernor.get("token", "other-organization", region));
+    }
+
+    @Test
+    public void usesTheLatestTokenOfTheOrganization() throws Exception {
+        api.setQuota("servers", 3);
+        QuotaGovernor governor = load(QuotaGovernor.get("token", "organization", region));
+        createServer("manual");
+
+        api.revokeToken("token");
+        Assert.assertSame(governor, QuotaGovernor.get("rotated-token", "organization", region));
+        governor.invalidate();
+
+        Assert.assertEquals(2, refresh(governor).getAvailable(demand));
+    }
+
+    @Test
+    public void countsCreatedServersOnceReloaded() throws Exception {
+        api.setQuota("servers", 2);
+        api.setQuota("ips", 5);
+
+        QuotaGovernor governor = load(QuotaGovernor.get("token", "organization", region));
+        QuotaGovernor.Reservation released = governor.tryReserve(demand);
+        QuotaGovernor.Reservation created = governor.tryReserve(demand);
+        Assert.assertEquals(0, governor.getAvailable(demand));
+
+        released.release();
+        Assert.assertEquals(1, governor.getAvailable(demand));
+
+        createServer("jenkins-1");
+        created.created();
+        Thread.sleep(10);
+        governor.invalidate();
+
+        // the server is counted by the usage, not by its reservation anymore
+        Assert.assertEquals(1, refresh(governor).getAvailable(demand));
+        Assert.assertEquals(2, api.getCallCount("getQuotas"));
+    }
+
+    @Test
+    public void recognizesQuotaErrors() throws Exception {
+        api.setQuota("servers", 1);
+        createServer("manual");
+
+        try {
+            createServer("jenkins-1");
+            Assert.fail("the quota should be exceeded");
+        } catch (ScalewayException e) {
+            Assert.assertTrue(QuotaGovernor.isQuotaExceeded(e));
+        }
+        Assert.assertFalse(QuotaGovernor.isQuotaExceeded(new ScalewayException(new IllegalStateException("500 Internal error"))));
+    }
+
+    /**
+     * Waits for the quotas to be loaded in the background.
+     */
+    private QuotaGovernor load(QuotaGovernor governor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!governor.isLoaded()) {
+            Assert.assertTrue("the quotas should load", System.currentTimeMillis() < deadline);
+            governor.getAvailable(demand);
+            Thread.sleep(10);
+        }
+        return governor;
+    }
+
+    @Test
+    public void keepsTheCachedQuotasWhileRefreshing() throws Exception {
+        api.setQuota("servers", 1);
+        QuotaGovernor governor = load(QuotaGovernor.get("token", "organization", region));
+        createServer("manual");
+        api.setLatencyMillis(500);
+
+        governor.invalidate();
+
+        Assert.assertTrue(governor.isRefreshing());
+        Assert.assertEquals(1, governor.getAvailable(demand));
+        Assert.assertEquals(0, refresh(governor).getAvailable(demand));
+    }
+
+    /**
+     * Waits for the refresh started by {@link QuotaGovernor#invalidate()}.
+     */
+    private QuotaGovernor refresh(QuotaGovernor governor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (governor.isRefreshing()) {
+            Assert.assertTrue("the quotas should refresh", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return governor;
+    }
+
+    private void createServer(String name) throws ScalewayException {
+        JSONObject definition = new JSONObject();
+        definition.put("name", name);
+        definition.put("image", api.getImageId());
+        definition.put("commercial_type", ScalewayCommercialType.values()[0].toString());
+        Scaleway.getRestClient("token", region).post("/servers", definition);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
+import com.github.segator.scaleway.api.entity.ScalewayCommercialType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScalewayCatalogTest {
+
+    private final FakeScalewayApi api = new FakeScalewayApi();
+
+    private final ScalewayComputeRegion region = ScalewayComputeRegion.values()[0];
+
+    @Before
+    public void installFakeApi() {
+        Scaleway.setClientFactory(api);
+        ScalewayCatalog.invalidateAll();
+    }
+
+    @After
+    public void uninstallFakeApi() {
+        ScalewayCatalog.invalidateAll();
+        Scaleway.setClientFactory(null);
+        api.shutdown();
+    }
+
+    @Test
+    public void servesRepeatedLookupsFromMemory() throws Exception {
+        String type = ScalewayCommercialType.values()[0].toString();
+        api.setProduct(type, 16, 64);
+
+        load(ScalewayCatalog.get("token", "organization", region));
+        for (int i = 0; i < 15; i++) {
+            ScalewayCatalog catalog = ScalewayCatalog.get("token", "organization", region);
+            Assert.assertEquals(1, catalog.getImages().size());
+            Assert.assertEquals(16, catalog.getServerType(type).getCores());
+            Assert.assertEquals(64L << 30, catalog.getServerType(type).getRamBytes());
+        }
+
+        Assert.assertEquals(1, api.getCallCount("getAllImages"));
+        Assert.assertEquals(1, api.getCallCount("listProducts"));
+    }
+
+    @Test
+    public void reloadsOnceInvalidated() throws Exception {
+        ScalewayCatalog catalog = load(ScalewayCatalog.get("token", "organization", region));
+        Assert.assertEquals(1, catalog.getImages().size());
+
+        api.addImage("image-2", "Debian Jessie");
+        Assert.assertEquals(1, catalog.getImages().size());
+
+        catalog.invalidate();
+        Assert.assertEquals(2, refresh(catalog).getImages().size());
+        Assert.assertEquals(2, api.getCallCount("getAllImages"));
+    }
+
+    @Test
+    public void keepsCatalogsPerCredentials() throws Exception {
+        load(ScalewayCatalog.get("token", "organization", region));
+        load(ScalewayCatalog.get("other-token", "organization", region));
+
+        Assert.assertSame(ScalewayCatalog.get("token", "organization", region), ScalewayCatalog.get("token", "organization", region));
+        Assert.assertEquals(2, api.getCallCount("getAllImages"));
+    }
+
+    @Test
+    public void isEmptyUntilLoaded() throws Exception {
+        api.setLatencyMillis(500);
+        ScalewayCatalog catalog = ScalewayCatalog.get("token", "organization", region);
+
+        Assert.assertTrue(catalog.getImages().isEmpty());
+        Assert.assertNull(catalog.getServerType(ScalewayCommercialType.values()[0].toString()));
+        Assert.assertEquals(1, load(catalog).getImages().size());
+    }
+
+    @Test
+    public void waitsBeforeRetryingAFailedLoad() throws Exception {
+        api.setErrorRate(1);
+        ScalewayCatalog catalog = ScalewayCatalog.get("token", "organization", region);
+
+        Assert.assertTrue(catalog.getImages().isEmpty());
+        Assert.assertTrue(refresh(catalog).getImages().isEmpty());
+        Assert.assertTrue(catalog.getServerTypes().isEmpty());
+        Assert.assertFalse(catalog.isRefreshing());
+        Assert.assertEquals(1, api.getCallCount("getAllImages"));
+    }
+
+    /**
+     * Waits for the catalog to be loaded in the background.
+     */
+    private static ScalewayCatalog load(ScalewayCatalog catalog) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!catalog.isLoaded()) {
+            Assert.assertTrue("the catalog should load", System.currentTimeMillis() < deadline);
+            catalog.getImages();
+            Thread.sleep(10);
+        }
+        return catalog;
+    }
+
+    /**
+     * Waits for the load started by the last use or invalidation.
+     */
+    private static ScalewayCatalog refresh(ScalewayCatalog catalog) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (catalog.isRefreshing()) {
+            Assert.assertTrue("the catalog should refresh", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return catalog;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+import com.github.segator.scaleway.api.entity.ScalewayState;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ScalewayInventoryTest {
+
+    /**
+     * Serves pages of running servers of the "cloud" cloud, alternating
+     * between its "a" and "b" templates.
+     */
+    private static class PagedInventory extends ScalewayInventory {
+
+        private final int size;
+
+        private int pagesFetched;
+
+        PagedInventory(int size) {
+            super(null);
+            this.size = size;
+        }
+
+        @Override
+        protected List<ScalewayServer> getServers(String tag, int page, int perPage) {
+            pagesFetched++;
+            List<ScalewayServer> servers = new ArrayList<ScalewayServer>();
+            for (int i = (page - 1) * perPage; i < Math.min(page * perPage, size); i++) {
+                String template = i % 2 == 0 ? "a" : "b";
+                ScalewayServer server = new ScalewayServer();
+                server.setName(ScalewayServerName.generateServerName("cloud", template));
+                server.setState(ScalewayState.RUNNING);
+                server.setTags(ScalewayServerName.generateServerTags("cloud", template));
+                servers.add(server);
+            }
+            return servers;
+        }
+    }
+
+    @Test
+    public void countsAllPagesBelowTheLimit() throws Exception {
+        PagedInventory inventory = new PagedInventory(ScalewayInventory.PAGE_SIZE * 2 + 10);
+        RemoteInstanceCount count = new RemoteInstanceCount("cloud", templates("a", "b"), ProvisioningPlanner.UNLIMITED);
+
+        inventory.visitServers(ScalewayServerName.generateCloudTag("cloud"), count);
+
+        Assert.assertEquals(3, inventory.pagesFetched);
+        Assert.assertEquals(ScalewayInventory.PAGE_SIZE * 2 + 10, count.getTotal());
+        Assert.assertEquals(ScalewayInventory.PAGE_SIZE + 5, count.getCount("a"));
+        Assert.assertEquals(ScalewayInventory.PAGE_SIZE + 5, count.getCount("b"));
+        Assert.assertFalse(count.isLimitReached());
+    }
+
+    @Test
+    public void stopsOnceTheLimitIsReached() throws Exception {
+        PagedInventory inventory = new PagedInventory(ScalewayInventory.PAGE_SIZE * 10);
+        RemoteInstanceCount count = new RemoteInstanceCount("cloud", templates("a", "b"), 10);
+
+        inventory.visitServers(ScalewayServerName.generateCloudTag("cloud"), count);
+
+        Assert.assertEquals(1, inventory.pagesFetched);
+        Assert.assertEquals(10, count.getTotal());
+        Assert.assertTrue(count.isLimitReached());
+    }
+
+    @Test
+    public void fetchesSinglePageWhenEmpty() throws Exception {
+        PagedInventory inventory = new PagedInventory(0);
+        RemoteInstanceCount count = new RemoteInstanceCount("cloud", templates("a"), 1);
+
+        inventory.visitServers(ScalewayServerName.generateCloudTag("cloud"), count);
+
+        Assert.assertEquals(1, inventory.pagesFetched);
+        Assert.assertFalse(count.isLimitReached());
+    }
+
+    private static List<SlaveTemplate> templates(String... names) {
+        List<SlaveTemplate> templates = new ArrayList<SlaveTemplate>();
+        for (String name : Arrays.asList(names)) {
+            templates.add(new SlaveTemplate(name, "image", "C2S", "root", "/jenkins/", 22, "10", "1", "", "0", ""));
+        }
+        return templates;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ScalewayServerNameTest {
+
+    @Test
+    public void matchesGeneratedNames() {
+        String name = ScalewayServerName.generateServerName("my.cloud", "small_template");
+
+        Assert.assertTrue(ScalewayServerName.isServerInstanceOfCloud(name, "my.cloud"));
+        Assert.assertTrue(ScalewayServerName.isServerInstanceOfSlave(name, "my.cloud", "small_template"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfCloud(name, "my"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfSlave(name, "my.cloud", "small"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfSlave(name, "my.cloud", "small_template2"));
+        Assert.assertEquals("small_template", ScalewayServerName.getSlaveName(name, "my.cloud"));
+    }
+
+    @Test
+    public void doesNotParseNamesContainingDashes() {
+        String name = ScalewayServerName.generateServerName("a-b", "t");
+
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfCloud(name, "a"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfCloud(name, "a-b"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfSlave(name, "a", "b-t"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfSlave(name, "a-b", "t"));
+        Assert.assertNull(ScalewayServerName.getSlaveName(name, "a"));
+    }
+
+    @Test
+    public void rejectsForeignNames() {
+        String uuid = "123e4567-e89b-12d3-a456-426655440000";
+
+        Assert.assertTrue(ScalewayServerName.isServerInstanceOfCloud("jenkins-cloud-slave-" + uuid, "cloud"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfCloud("jenkins-cloud--" + uuid, "cloud"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfCloud("jenkins-cloud-slave-" + uuid.replace('a', 'g'), "cloud"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfCloud("jenkins-cloud-slave-" + uuid.substring(1), "cloud"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfCloud("builder-cloud-slave-" + uuid, "cloud"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfCloud("jenkins-cloud", "cloud"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfSlave("", "cloud", "slave"));
+    }
+
+    @Test
+    public void prefersTagsOverNames() {
+        ScalewayServer server = new ScalewayServer();
+        server.setName(ScalewayServerName.generateServerName("a", "b-c"));
+        server.setTags(ScalewayServerName.generateServerTags("a-b", "c"));
+
+        Assert.assertTrue(ScalewayServerName.isServerInstanceOfCloud(server, "a-b"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfCloud(server, "a"));
+        Assert.assertTrue(ScalewayServerName.isServerInstanceOfSlave(server, "a-b", "c"));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfSlave(server, "a", "b-c"));
+
+        server.setTags(Arrays.asList(ScalewayServerName.SLAVE_TAG));
+        Assert.assertFalse(ScalewayServerName.isServerInstanceOfSlave(server, "a", "b-c"));
+
+        server.setName(ScalewayServerName.generateServerName("a", "c"));
+        Assert.assertTrue(ScalewayServerName.isServerInstanceOfSlave(server, "a", "c"));
+    }
+
+    @Test
+    public void validatesNames() {
+        Assert.assertTrue(ScalewayServerName.isValidCloudName("my-cloud_1.eu"));
+        Assert.assertFalse(ScalewayServerName.isValidCloudName(""));
+        Assert.assertFalse(ScalewayServerName.isValidSlaveName("small template"));
+        Assert.assertFalse(ScalewayServerName.isValidSlaveName("small/template"));
+    }
+}
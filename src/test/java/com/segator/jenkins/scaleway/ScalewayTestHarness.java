@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
+import com.github.segator.scaleway.api.entity.ScalewayCommercialType;
+import org.apache.commons.io.IOUtils;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.CommandFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.scp.ScpCommandFactory;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Runs the plugin against a {@link FakeScalewayApi} whose servers all resolve
+ * to a local SSH server, so that provisioning, launching and termination can
+ * be exercised for real from a {@code JenkinsRule} test.
+ *
+ * <p>
+ * Commands sent to the fake servers run on the local machine, as the current
+ * user.
+ */
+public class ScalewayTestHarness extends ExternalResource {
+
+    private final FakeScalewayApi api = new FakeScalewayApi();
+
+    private final TemporaryFolder folder = new TemporaryFolder();
+
+    private SshServer sshd;
+
+    @Override
+    protected void before() throws Throwable {
+        folder.create();
+        Scaleway.setClientFactory(api);
+        QuotaGovernor.invalidateAll();
+        ScalewayCatalog.invalidateAll();
+
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(0);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(new File(folder.getRoot(), "hostkey.ser")));
+        sshd.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+        sshd.setCommandFactory(new ScpCommandFactory.Builder().withDelegate(new CommandFactory() {
+            @Override
+            public Command createCommand(String command) {
+                return new ProcessShellFactory(new String[]{"/bin/sh", "-c", command}).create();
+            }
+        }).build());
+        sshd.start();
+    }
+
+    @Override
+    protected void after() {
+        try {
+            sshd.stop(true);
+        } catch (IOException e) {
+            // ignore
+        }
+        api.shutdown();
+        QuotaGovernor.invalidateAll();
+        ScalewayCatalog.invalidateAll();
+        Scaleway.setClientFactory(null);
+        folder.delete();
+    }
+
+    public FakeScalewayApi getApi() {
+        return api;
+    }
+
+    public int getSshPort() {
+        return sshd.getPort();
+    }
+
+    public String getPrivateKey() throws IOException {
+        InputStream in = ScalewayTestHarness.class.getResourceAsStream("id_rsa");
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    public SlaveTemplate createTemplate(String name, String labels, int numExecutors, int instanceCap) throws IOException {
+        return createTemplate(name, labels, numExecutors, instanceCap, 10);
+    }
+
+    public SlaveTemplate createTemplate(String name, String labels, int numExecutors, int instanceCap,
+            int idleTerminationInMinutes) throws IOException {
+        return new SlaveTemplate(name, api.getImageId(), ScalewayCommercialType.C2S.toString(),
+                System.getProperty("user.name"), folder.newFolder().getAbsolutePath(), getSshPort(),
+                String.valueOf(idleTerminationInMinutes), String.valueOf(numExecutors), labels, String.valueOf(instanceCap), "");
+    }
+
+    /**
+     * @return a template whose servers get a build cache volume, they are
+     * never launched as the cache can't be mounted on the local SSH server
+     */
+    public SlaveTemplate createCacheTemplate(String name, int cacheVolumeSize, boolean cacheWriteBack) throws IOException {
+        SlaveTemplate template = new SlaveTemplate(name, api.getImageId(), ScalewayCommercialType.C2S.toString(),
+                System.getProperty("user.name"), folder.newFolder().getAbsolutePath(), getSshPort(),
+                "10", "1", "cache", "0", "");
+        template.setCacheVolumeSize(String.valueOf(cacheVolumeSize));
+        template.setCachePaths("~/.m2");
+        template.setCacheWriteBack(cacheWriteBack);
+        return template;
+    }
+
+    public ScalewayCloud createCloud(String name, int instanceCap, SlaveTemplate... templates) throws IOException {
+        return new ScalewayCloud(name, ScalewayComputeRegion.values()[0].toString(), "token", "organization",
+                getPrivateKey(), String.valueOf(instanceCap), "2", Arrays.asList(templates));
+    }
+}
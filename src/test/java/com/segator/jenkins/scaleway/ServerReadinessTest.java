@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import com.github.segator.scaleway.api.ScalewayClient;
+import com.github.segator.scaleway.api.constants.ScalewayComputeRegion;
+import com.github.segator.scaleway.api.entity.ScalewayCommercialType;
+import com.github.segator.scaleway.api.entity.ScalewayServer;
+import com.github.segator.scaleway.api.entity.ScalewayServerAction;
+import com.github.segator.scaleway.api.entity.ScalewayServerDefinition;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class ServerReadinessTest {
+
+    private final FakeScalewayApi api = new FakeScalewayApi();
+
+    private ScalewayClient client;
+
+    private ScalewayRestClient rest;
+
+    private ServerSocket ssh;
+
+    @Before
+    public void setUp() throws Exception {
+        api.setBootDelayMillis(100);
+        api.setIpDelayMillis(100);
+        client = api.getClient("token", "organization", ScalewayComputeRegion.values()[0]);
+        rest = api.getRestClient("token", ScalewayComputeRegion.values()[0]);
+        ssh = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ssh.close();
+        api.shutdown();
+    }
+
+    @Test
+    public void resolvesOnceTheServerAcceptsConnections() throws Exception {
+        ScalewayServer server = createServer();
+        client.executeServerAction(server, ScalewayServerAction.POWER_ON);
+
+        Future<String> address = ServerReadiness.watch(rest, server.getId(), ssh.getLocalPort(), false, 1);
+
+        Assert.assertEquals("127.0.0.1", address.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void connectsOverThePrivateIpWithoutWaitingForAPublicOne() throws Exception {
+        api.setIpDelayMillis(TimeUnit.MINUTES.toMillis(5));
+        api.setPrivateAddress("127.0.0.2");
+        ScalewayServer server = createServer();
+        client.executeServerAction(server, ScalewayServerAction.POWER_ON);
+
+        Future<String> address = ServerReadiness.watch(rest, server.getId(), ssh.getLocalPort(), true, 1);
+
+        Assert.assertEquals("127.0.0.2", address.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void retriesApiErrors() throws Exception {
+        ScalewayServer server = createServer();
+        client.executeServerAction(server, ScalewayServerAction.POWER_ON);
+        api.setErrorRate(0.5);
+
+        Future<String> address = ServerReadiness.watch(rest, server.getId(), ssh.getLocalPort(), false, 1);
+
+        Assert.assertEquals("127.0.0.1", address.get(60, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failsWhenTheServerIsGone() throws Exception {
+        ScalewayServer server = createServer();
+        api.deleteServer(server.getId());
+
+        Future<String> address = ServerReadiness.watch(rest, server.getId(), ssh.getLocalPort(), false, 1);
+
+        try {
+            address.get(30, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            // expected
+        } catch (TimeoutException e) {
+            Assert.fail("should fail on the first step");
+        }
+    }
+
+    private ScalewayServer createServer() throws Exception {
+        ScalewayServerDefinition definition = new ScalewayServerDefinition();
+        definition.setName(ScalewayServerName.generateServerName("cloud", "template"));
+        definition.setImage(api.getImageId());
+        definition.setCommercialType(ScalewayCommercialType.C2S);
+        return client.createServer(definition);
+    }
+}
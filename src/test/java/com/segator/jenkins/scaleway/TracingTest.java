@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TracingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), Tracing.FILE_NAME);
+        Tracing.setFile(file);
+    }
+
+    @After
+    public void tearDown() {
+        Tracing.setFile(null);
+    }
+
+    @Test
+    public void exportsTheSpansOfASlaveAsOneTrace() throws Exception {
+        Tracing.Span root = Tracing.startAgent("server", "cloud", "template");
+        Tracing.Span stage = root.startChild("creating");
+        stage.startApiCall("POST /servers").end(new IllegalStateException("quota"));
+        stage.end();
+        Assert.assertSame(root, Tracing.getAgent("server"));
+        Tracing.endAgent("server", null);
+        Tracing.flush();
+
+        List<String> lines = FileUtils.readLines(file, "UTF-8");
+        Assert.assertEquals(1, lines.size());
+        JSONArray spans = JSONObject.fromObject(lines.get(0)).getJSONArray("resourceSpans").getJSONObject(0)
+                .getJSONArray("scopeSpans").getJSONObject(0).getJSONArray("spans");
+        Assert.assertEquals(3, spans.size());
+
+        Map<String, JSONObject> byName = new HashMap<String, JSONObject>();
+        for (int i = 0; i < spans.size(); i++) {
+            byName.put(spans.getJSONObject(i).getString("name"), spans.getJSONObject(i));
+        }
+        JSONObject agent = byName.get("agent");
+        JSONObject creating = byName.get("creating");
+        JSONObject call = byName.get("POST /servers");
+        Assert.assertEquals(32, agent.getString("traceId").length());
+        Assert.assertFalse(agent.has("parentSpanId"));
+        Assert.assertEquals(agent.getString("traceId"), call.getString("traceId"));
+        Assert.assertEquals(agent.getString("spanId"), creating.getString("parentSpanId"));
+        Assert.assertEquals(creating.getString("spanId"), call.getString("parentSpanId"));
+        Assert.assertEquals(3, call.getInt("kind"));
+        Assert.assertEquals(2, call.getJSONObject("status").getInt("code"));
+        Assert.assertEquals(1, agent.getJSONObject("status").getInt("code"));
+    }
+
+    @Test
+    public void slavesWithoutATraceRecordNothing() throws Exception {
+        Tracing.Span span = Tracing.getAgent("unknown").startChild("launch");
+        span.end();
+        Tracing.flush();
+
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void rotatesTheFile() throws Exception {
+        RandomAccessFile full = new RandomAccessFile(file, "rw");
+        try {
+            full.setLength(Tracing.MAX_FILE_BYTES);
+        } finally {
+            full.close();
+        }
+
+        Tracing.startAgent("server", "cloud", "template");
+        Tracing.endAgent("server", null);
+        Tracing.flush();
+
+        Assert.assertTrue(new File(file.getPath() + ".1").exists());
+        Assert.assertEquals(1, FileUtils.readLines(file, "UTF-8").size());
+    }
+}
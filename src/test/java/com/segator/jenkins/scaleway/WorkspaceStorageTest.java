@@ -0,0 +1,101 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2016 Isaac Aymerich <isaac.aymerich@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.github.segator.jenkins.scaleway;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class WorkspaceStorageTest {
+
+    @Test
+    public void parsesVolumeSizes() {
+        Assert.assertEquals(Arrays.asList(50, 100), WorkspaceStorage.parseVolumeSizes(" 50, 100 "));
+        Assert.assertEquals(Collections.emptyList(), WorkspaceStorage.parseVolumeSizes(""));
+        Assert.assertEquals(Collections.emptyList(), WorkspaceStorage.parseVolumeSizes(null));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsEmptyVolumes() {
+        WorkspaceStorage.parseVolumeSizes("50 0");
+    }
+
+    @Test
+    public void mountsTheWorkspaceOnTheFirstVolume() {
+        WorkspaceStorage storage = new WorkspaceStorage(Arrays.asList(50, 100), 0, false, Collections.<String>emptyList());
+        Assert.assertFalse(storage.isDefault());
+
+        String script = storage.getSetupScript("/jenkins/", "jenkins");
+        Assert.assertTrue(script.contains("mkfs.ext4"));
+        Assert.assertTrue(script.contains("if [ $n -lt 2 ]"));
+        Assert.assertTrue(script.contains("UUID=$uuid /mnt/volume$n ext4"));
+        Assert.assertTrue(script.contains("/mnt/volume1/workspace /jenkins/ none bind 0 0"));
+        Assert.assertTrue(script.contains("chown 'jenkins' '/jenkins/'"));
+        Assert.assertFalse(script.contains("tmpfs"));
+    }
+
+    @Test
+    public void sizesTheTmpfsWorkspace() {
+        WorkspaceStorage storage = new WorkspaceStorage(Collections.<Integer>emptyList(), 2L * 1024 * 1024 * 1024, false,
+                Collections.<String>emptyList());
+
+        String script = storage.getSetupScript("/jenkins/", "root");
+        Assert.assertTrue(script.contains("tmpfs /jenkins/ tmpfs size=2048m,mode=0755 0 0"));
+        Assert.assertFalse(script.contains("mkfs"));
+    }
+
+    @Test
+    public void escapesTheWorkspaceInFstab() {
+        WorkspaceStorage storage = new WorkspaceStorage(Arrays.asList(50), 0, false, Collections.<String>emptyList());
+
+        String script = storage.getSetupScript("/home/jenkins/my $HOME `id` \"ws\"", "jenkins");
+        Assert.assertTrue(script.contains("printf '%s\\n' '/mnt/volume1/workspace /home/jenkins/my\\040$HOME\\040`id`\\040\"ws\" none bind 0 0'"));
+    }
+
+    @Test
+    public void mountsTheBuildCacheAfterTheVolumes() {
+        WorkspaceStorage storage = new WorkspaceStorage(Arrays.asList(50), 0, true,
+                WorkspaceStorage.parseCachePaths("~/.m2 /var/lib/docker"));
+        Assert.assertFalse(storage.isDefault());
+
+        String script = storage.getSetupScript("/jenkins/", "jenkins");
+        Assert.assertTrue(script.contains("if [ $n -ge 1 ]"));
+        Assert.assertTrue(script.contains("mkfs.ext4 -q -L jenkins-cache /dev/$cache_disk"));
+        Assert.assertTrue(script.contains("/mnt/cache/__.m2 $home/.m2 none bind 0 0"));
+        Assert.assertTrue(script.contains("/mnt/cache/_var_lib_docker /var/lib/docker none bind 0 0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRelativeCachePaths() {
+        WorkspaceStorage.parseCachePaths("~/.m2 .gradle");
+    }
+
+    @Test
+    public void leavesDefaultStorageAlone() {
+        Assert.assertTrue(new WorkspaceStorage(Collections.<Integer>emptyList(), 0, false, Collections.<String>emptyList()).isDefault());
+    }
+}